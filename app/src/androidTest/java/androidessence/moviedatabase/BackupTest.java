@@ -0,0 +1,148 @@
+package androidessence.moviedatabase;
+
+import android.content.ContentResolver;
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.Bundle;
+import android.test.AndroidTestCase;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.StringReader;
+
+/**
+ * Tests backing up and restoring the database with MovieBackup.
+ */
+public class BackupTest extends AndroidTestCase {
+    // Quotes, a backslash and a new line, which all have to be escaped in the backup.
+    private static final String TEST_MOVIE_NAME = "The \"Backslash\" \\ Movie\nPart Two";
+
+    private File mFile;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        deleteAll();
+        mFile = new File(mContext.getCacheDir(), "backup");
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mFile.delete();
+        deleteAll();
+        super.tearDown();
+    }
+
+    public void testBackupRestore() throws IOException{
+        ContentResolver resolver = mContext.getContentResolver();
+
+        ContentValues genreValues = new ContentValues();
+        genreValues.put(MovieContract.GenreEntry.COLUMN_NAME, "Family");
+        long genreId = ContentUris.parseId(resolver.insert(MovieContract.GenreEntry.CONTENT_URI, genreValues));
+
+        ContentValues movieValues = new ContentValues();
+        movieValues.put(MovieContract.MovieEntry.COLUMN_NAME, TEST_MOVIE_NAME);
+        movieValues.put(MovieContract.MovieEntry.COLUMN_RELEASE_DATE, "2001-11-14");
+        movieValues.put(MovieContract.MovieEntry.COLUMN_GENRE, genreId);
+        long movieId = ContentUris.parseId(resolver.insert(MovieContract.MovieEntry.CONTENT_URI, movieValues));
+
+        FileOutputStream output = new FileOutputStream(mFile);
+        try{
+            MovieBackup.backup(resolver, output);
+        } finally{
+            output.close();
+        }
+
+        // Anything changed after the backup is undone by restoring it.
+        deleteAll();
+        genreValues.put(MovieContract.GenreEntry.COLUMN_NAME, "Adventure");
+        resolver.insert(MovieContract.GenreEntry.CONTENT_URI, genreValues);
+
+        Bundle counts = MovieBackup.restore(resolver, mFile);
+        assertEquals(1, counts.getInt(MovieContract.EXTRA_GENRE_COUNT));
+        assertEquals(1, counts.getInt(MovieContract.EXTRA_MOVIE_COUNT));
+
+        Cursor cursor = resolver.query(MovieContract.MovieEntry.CONTENT_URI, MovieContract.MovieEntry.COLUMNS, null, null, null);
+        assertEquals(1, cursor.getCount());
+        assertTrue(cursor.moveToFirst());
+        assertEquals(movieId, cursor.getLong(cursor.getColumnIndex(MovieContract.MovieEntry._ID)));
+        assertEquals(TEST_MOVIE_NAME, cursor.getString(cursor.getColumnIndex(MovieContract.MovieEntry.COLUMN_NAME)));
+        assertEquals(genreId, cursor.getLong(cursor.getColumnIndex(MovieContract.MovieEntry.COLUMN_GENRE)));
+        // The release day isn't in the backup, it is worked out again from the release date.
+        assertEquals((long) MovieContract.MovieEntry.toReleaseDay("2001-11-14"),
+                cursor.getLong(cursor.getColumnIndex(MovieContract.MovieEntry.COLUMN_RELEASE_DAY)));
+        cursor.close();
+
+        cursor = resolver.query(MovieContract.GenreEntry.CONTENT_URI, null, null, null, null);
+        assertEquals(1, cursor.getCount());
+        assertTrue(cursor.moveToFirst());
+        assertEquals("Family", cursor.getString(cursor.getColumnIndex(MovieContract.GenreEntry.COLUMN_NAME)));
+        cursor.close();
+    }
+
+    public void testRestoreInvalidBackup() throws IOException{
+        ContentValues genreValues = new ContentValues();
+        genreValues.put(MovieContract.GenreEntry.COLUMN_NAME, "Family");
+        Uri genreUri = mContext.getContentResolver().insert(MovieContract.GenreEntry.CONTENT_URI, genreValues);
+
+        FileOutputStream output = new FileOutputStream(mFile);
+        try{
+            output.write("{\"format\":\"somethingElse\"}\n".getBytes("UTF-8"));
+        } finally{
+            output.close();
+        }
+
+        try{
+            MovieBackup.restore(mContext.getContentResolver(), mFile);
+            fail("Restored a file that isn't a backup.");
+        } catch(IllegalArgumentException expected){
+        }
+
+        // Nothing was changed.
+        Cursor cursor = mContext.getContentResolver().query(genreUri, null, null, null, null);
+        assertEquals(1, cursor.getCount());
+        cursor.close();
+    }
+
+    public void testReadUnknownColumn(){
+        String backup = "{\"format\":\"movieDatabase\",\"version\":1}\n"
+                + "{\"type\":\"genre\",\"_id\":1,\"genreName) VALUES (1); DROP TABLE movieTable; --\":\"Family\"}\n";
+        try{
+            MovieBackup.read(new StringReader(backup), new IgnoringHandler());
+            fail("Read a column the genre table doesn't have.");
+        } catch(IOException expected){
+            assertTrue(expected.getMessage(), expected.getMessage().contains("DROP TABLE"));
+        }
+    }
+
+    public void testReadDecimalNumber(){
+        String backup = "{\"format\":\"movieDatabase\",\"version\":1}\n"
+                + "{\"type\":\"genre\",\"_id\":1.5,\"genreName\":\"Family\"}\n";
+        try{
+            MovieBackup.read(new StringReader(backup), new IgnoringHandler());
+            fail("Read a decimal identifier.");
+        } catch(IOException expected){
+        }
+    }
+
+    private void deleteAll(){
+        mContext.getContentResolver().delete(MovieContract.MovieEntry.CONTENT_URI, null, null);
+        mContext.getContentResolver().delete(MovieContract.GenreEntry.CONTENT_URI, null, null);
+    }
+
+    /**
+     * Reads every row of a backup without doing anything with it.
+     */
+    private static final class IgnoringHandler implements MovieBackup.RowHandler {
+        @Override
+        public void onGenre(ContentValues values) {
+        }
+
+        @Override
+        public void onMovie(ContentValues values) {
+        }
+    }
+}
@@ -0,0 +1,119 @@
+package androidessence.moviedatabase;
+
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.net.Uri;
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.Random;
+
+/**
+ * Measures how long movie queries take while a long bulk insert is being written on another
+ * thread. With write ahead logging the queries shouldn't have to wait for the insert to commit.
+ * The latencies are written to the log under {@link #TAG}.
+ */
+public class ConcurrentReadBenchmark extends AndroidTestCase {
+    private static final String TAG = ConcurrentReadBenchmark.class.getSimpleName();
+    private static final int SEED_MOVIE_COUNT = 10000;
+    private static final int BULK_INSERT_COUNT = 50000;
+    private static final int MAX_READS = 10000;
+
+    private long mGenreRowId;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        deleteAll();
+
+        ContentValues genreContentValues = new ContentValues();
+        genreContentValues.put(MovieContract.GenreEntry.COLUMN_NAME, "Benchmark");
+        Uri genreInsertUri = mContext.getContentResolver().insert(MovieContract.GenreEntry.CONTENT_URI, genreContentValues);
+        mGenreRowId = ContentUris.parseId(genreInsertUri);
+
+        mContext.getContentResolver().bulkInsert(MovieContract.MovieEntry.CONTENT_URI, getMovies(SEED_MOVIE_COUNT));
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        deleteAll();
+        super.tearDown();
+    }
+
+    public void testReadLatencyDuringBulkInsert() throws Exception{
+        final ContentValues[] movies = getMovies(BULK_INSERT_COUNT);
+        Thread writer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                mContext.getContentResolver().bulkInsert(MovieContract.MovieEntry.CONTENT_URI, movies);
+            }
+        });
+
+        // Look up movies by their identifier through the database, not the movie row cache.
+        Cursor idCursor = mContext.getContentResolver().query(
+                MovieContract.MovieEntry.CONTENT_URI,
+                new String[]{MovieContract.MovieEntry._ID},
+                null,
+                null,
+                null
+        );
+        long[] ids = new long[idCursor.getCount()];
+        for(int i = 0; idCursor.moveToNext(); i++){
+            ids[i] = idCursor.getLong(0);
+        }
+        idCursor.close();
+
+        long writeStart = System.nanoTime();
+        writer.start();
+
+        Random random = new Random(0);
+        long[] latencies = new long[MAX_READS];
+        int reads = 0;
+        while(writer.isAlive() && reads < MAX_READS){
+            long start = System.nanoTime();
+            Cursor cursor = mContext.getContentResolver().query(
+                    MovieContract.MovieEntry.CONTENT_URI,
+                    null,
+                    MovieContract.MovieEntry._ID + " = ?",
+                    new String[]{String.valueOf(ids[random.nextInt(ids.length)])},
+                    null
+            );
+            assertEquals(1, cursor.getCount());
+            cursor.close();
+            latencies[reads++] = System.nanoTime() - start;
+        }
+
+        writer.join();
+        long writeMillis = (System.nanoTime() - writeStart) / 1000000;
+
+        // If the reads had to wait for the write, only the first one would have finished.
+        assertTrue("Reads were blocked by the bulk insert", reads > 1);
+
+        Arrays.sort(latencies, 0, reads);
+        Log.i(TAG, String.format(Locale.US, "bulkInsert of %d rows took %d ms; %d reads during it: " +
+                        "p50 %d us, p99 %d us, max %d us",
+                BULK_INSERT_COUNT, writeMillis, reads,
+                latencies[reads / 2] / 1000,
+                latencies[reads * 99 / 100] / 1000,
+                latencies[reads - 1] / 1000));
+    }
+
+    private ContentValues[] getMovies(int count){
+        ContentValues[] movies = new ContentValues[count];
+        for(int i = 0; i < count; i++){
+            movies[i] = new ContentValues();
+            movies[i].put(MovieContract.MovieEntry.COLUMN_NAME, "Movie " + i);
+            movies[i].put(MovieContract.MovieEntry.COLUMN_RELEASE_DATE, "2015-09-19");
+            movies[i].put(MovieContract.MovieEntry.COLUMN_GENRE, mGenreRowId);
+        }
+        return movies;
+    }
+
+    private void deleteAll(){
+        mContext.getContentResolver().delete(MovieContract.MovieEntry.CONTENT_URI, null, null);
+        mContext.getContentResolver().delete(MovieContract.GenreEntry.CONTENT_URI, null, null);
+    }
+}
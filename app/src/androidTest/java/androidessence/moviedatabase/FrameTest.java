@@ -0,0 +1,85 @@
+package androidessence.moviedatabase;
+
+import android.content.ContentResolver;
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.test.AndroidTestCase;
+
+import java.io.IOException;
+
+/**
+ * Tests reading every movie through MovieFrame.
+ */
+public class FrameTest extends AndroidTestCase {
+    // More than one block of movies, with a partly filled block at the end.
+    private static final int TEST_MOVIE_COUNT = 1500;
+
+    // Not plain ASCII, so the names have to be encoded and decoded as UTF-8.
+    private static final String TEST_MOVIE_NAME = "Am\u00e9lie ";
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        deleteAll();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        deleteAll();
+        super.tearDown();
+    }
+
+    public void testReadFrames() throws IOException{
+        ContentResolver resolver = mContext.getContentResolver();
+
+        ContentValues genreValues = new ContentValues();
+        genreValues.put(MovieContract.GenreEntry.COLUMN_NAME, "Romance");
+        long genreId = ContentUris.parseId(resolver.insert(MovieContract.GenreEntry.CONTENT_URI, genreValues));
+
+        ContentValues[] movieValues = new ContentValues[TEST_MOVIE_COUNT];
+        for(int i = 0; i < TEST_MOVIE_COUNT; i++){
+            movieValues[i] = new ContentValues();
+            movieValues[i].put(MovieContract.MovieEntry.COLUMN_NAME, TEST_MOVIE_NAME + i);
+            // The first movie's release date isn't a date, so it has no release day.
+            movieValues[i].put(MovieContract.MovieEntry.COLUMN_RELEASE_DATE, i == 0 ? "Someday" : "2001-04-25");
+            movieValues[i].put(MovieContract.MovieEntry.COLUMN_GENRE, genreId);
+        }
+        assertEquals(TEST_MOVIE_COUNT, resolver.bulkInsert(MovieContract.MovieEntry.CONTENT_URI, movieValues));
+
+        int releaseDay = MovieContract.MovieEntry.toReleaseDay("2001-04-25").intValue();
+        int movies = 0;
+        long lastId = 0;
+        MovieFrame.Reader reader = MovieFrame.open(resolver);
+        try{
+            while(reader.next()){
+                for(int row = 0; row < reader.getRowCount(); row++){
+                    // Movies come in order of their identifiers, and so in the order inserted.
+                    assertTrue(reader.getIds()[row] > lastId);
+                    lastId = reader.getIds()[row];
+                    assertEquals(genreId, reader.getGenreIds()[row]);
+                    assertEquals(movies == 0 ? MovieFrame.NO_RELEASE_DAY : releaseDay, reader.getReleaseDays()[row]);
+                    assertEquals(TEST_MOVIE_NAME + movies, reader.getName(row));
+                    movies++;
+                }
+            }
+            assertFalse(reader.next());
+        } finally{
+            reader.close();
+        }
+        assertEquals(TEST_MOVIE_COUNT, movies);
+    }
+
+    public void testReadEmptyFrames() throws IOException{
+        MovieFrame.Reader reader = MovieFrame.open(mContext.getContentResolver());
+        try{
+            assertFalse(reader.next());
+        } finally{
+            reader.close();
+        }
+    }
+
+    private void deleteAll(){
+        mContext.getContentResolver().delete(MovieContract.MovieEntry.CONTENT_URI, null, null);
+        mContext.getContentResolver().delete(MovieContract.GenreEntry.CONTENT_URI, null, null);
+    }
+}
@@ -0,0 +1,167 @@
+package androidessence.moviedatabase;
+
+import android.database.Cursor;
+import android.net.Uri;
+import android.test.AndroidTestCase;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+/**
+ * Tests importing movies from CSV and JSON files with MovieImporter.
+ */
+public class ImporterTest extends AndroidTestCase {
+    private static final String TEST_CSV =
+            MovieContract.MovieEntry.COLUMN_NAME + "," +
+                    MovieContract.MovieEntry.COLUMN_RELEASE_DATE + "," +
+                    MovieContract.MovieEntry.COLUMN_GENRE_NAME + "\n" +
+                    "\"Harry Potter and the Sorcerer's Stone\",2001-11-14,Family\n" +
+                    "\"Monsters, Inc.\",2001-11-02,Family\n" +
+                    "The Lord of the Rings: The Fellowship of the Ring,2001-12-19,Adventure\n";
+
+    private static final String TEST_JSON = "[" +
+            "{\"" + MovieContract.MovieEntry.COLUMN_NAME + "\": \"Up\", " +
+            "\"" + MovieContract.MovieEntry.COLUMN_RELEASE_DATE + "\": \"2009-05-29\", " +
+            "\"" + MovieContract.MovieEntry.COLUMN_GENRE_NAME + "\": \"Family\"}" +
+            "]";
+
+    // Brackets and commas in the names, which mustn't be taken for the end of a movie.
+    private static final String TEST_JSON_MOVIES = "[\n" +
+            "  {\"" + MovieContract.MovieEntry.COLUMN_NAME + "\": \"Up}, ]\", " +
+            "\"" + MovieContract.MovieEntry.COLUMN_RELEASE_DATE + "\": \"2009-05-29\", " +
+            "\"" + MovieContract.MovieEntry.COLUMN_GENRE_NAME + "\": \"Family\"},\n" +
+            "  {\"" + MovieContract.MovieEntry.COLUMN_NAME + "\": \"Am\u00e9lie {\\\"\", " +
+            "\"" + MovieContract.MovieEntry.COLUMN_RELEASE_DATE + "\": \"2001-04-25\", " +
+            "\"" + MovieContract.MovieEntry.COLUMN_GENRE_NAME + "\": \"Romance\"},\n" +
+            "  {\"" + MovieContract.MovieEntry.COLUMN_NAME + "\": \"Wall-E\", " +
+            "\"" + MovieContract.MovieEntry.COLUMN_RELEASE_DATE + "\": \"2008-06-27\", " +
+            "\"" + MovieContract.MovieEntry.COLUMN_GENRE_NAME + "\": \"Family\"}\n" +
+            "]";
+
+    private File mFile;
+    private MovieImporter mImporter;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        deleteAll();
+        mFile = new File(mContext.getCacheDir(), "import");
+        // Import one movie per transaction, so resuming can be tested with a small file.
+        mImporter = new MovieImporter(mContext, 1);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mImporter.clearCheckpoint(mFile);
+        mFile.delete();
+        deleteAll();
+        super.tearDown();
+    }
+
+    public void testImportCsv() throws IOException{
+        writeFile(TEST_CSV);
+        assertEquals(3, mImporter.importCsv(mFile, null));
+        assertEquals(3, count(MovieContract.MovieEntry.CONTENT_URI));
+        assertEquals(2, count(MovieContract.GenreEntry.CONTENT_URI));
+
+        // The whole file has been imported, so importing it again resumes at the end of it.
+        assertEquals(3, mImporter.importCsv(mFile, null));
+        assertEquals(3, count(MovieContract.MovieEntry.CONTENT_URI));
+    }
+
+    public void testImportJson() throws IOException{
+        writeFile(TEST_JSON);
+        assertEquals(1, mImporter.importJson(mFile, null));
+        assertEquals(1, count(MovieContract.MovieEntry.CONTENT_URI));
+    }
+
+    public void testResumeCsv() throws IOException{
+        writeFile(TEST_CSV);
+        assertImportStopped(false);
+        assertEquals(1, count(MovieContract.MovieEntry.CONTENT_URI));
+
+        // Only the movies after the first one are read this time.
+        assertEquals(3, mImporter.importCsv(mFile, null));
+        assertEquals(3, count(MovieContract.MovieEntry.CONTENT_URI));
+        assertEquals(1, count(MovieContract.MovieEntry.CONTENT_URI, "Monsters, Inc."));
+    }
+
+    public void testResumeJson() throws IOException{
+        writeFile(TEST_JSON_MOVIES);
+        assertImportStopped(true);
+        assertEquals(1, count(MovieContract.MovieEntry.CONTENT_URI));
+
+        assertEquals(3, mImporter.importJson(mFile, null));
+        assertEquals(3, count(MovieContract.MovieEntry.CONTENT_URI));
+        assertEquals(1, count(MovieContract.MovieEntry.CONTENT_URI, "Up}, ]"));
+        assertEquals(1, count(MovieContract.MovieEntry.CONTENT_URI, "Am\u00e9lie {\""));
+        assertEquals(1, count(MovieContract.MovieEntry.CONTENT_URI, "Wall-E"));
+    }
+
+    public void testImportAfterDeletingGenres() throws IOException{
+        writeFile(TEST_JSON);
+        assertEquals(1, mImporter.importJson(mFile, null));
+
+        // The genre the importer has already seen is gone, so it has to be added again.
+        deleteAll();
+        mImporter.clearCheckpoint(mFile);
+        assertEquals(1, mImporter.importJson(mFile, null));
+        assertEquals(1, count(MovieContract.MovieEntry.CONTENT_URI));
+        assertEquals(1, count(MovieContract.GenreEntry.CONTENT_URI));
+    }
+
+    /**
+     * Imports the file, but stops after the first movie, as if the app had been killed.
+     */
+    private void assertImportStopped(boolean json) throws IOException{
+        MovieImporter.ProgressListener stop = new MovieImporter.ProgressListener() {
+            @Override
+            public void onProgress(long moviesImported, long bytesRead, long totalBytes) {
+                throw new ImportStoppedException();
+            }
+        };
+        try{
+            if(json){
+                mImporter.importJson(mFile, stop);
+            } else{
+                mImporter.importCsv(mFile, stop);
+            }
+            fail("The import should have stopped");
+        } catch(ImportStoppedException e){
+            // Expected, after the first movie's checkpoint was saved.
+        }
+    }
+
+    private void writeFile(String contents) throws IOException{
+        FileOutputStream output = new FileOutputStream(mFile);
+        try{
+            output.write(contents.getBytes("UTF-8"));
+        } finally{
+            output.close();
+        }
+    }
+
+    private int count(Uri uri){
+        Cursor cursor = mContext.getContentResolver().query(uri, null, null, null, null);
+        int count = cursor.getCount();
+        cursor.close();
+        return count;
+    }
+
+    private int count(Uri uri, String name){
+        Cursor cursor = mContext.getContentResolver().query(uri, null,
+                MovieContract.MovieEntry.COLUMN_NAME + " = ?", new String[]{name}, null);
+        int count = cursor.getCount();
+        cursor.close();
+        return count;
+    }
+
+    private void deleteAll(){
+        mContext.getContentResolver().delete(MovieContract.MovieEntry.CONTENT_URI, null, null);
+        mContext.getContentResolver().delete(MovieContract.GenreEntry.CONTENT_URI, null, null);
+    }
+
+    private static class ImportStoppedException extends RuntimeException {
+    }
+}
@@ -0,0 +1,605 @@
+package androidessence.moviedatabase;
+
+import android.content.ContentProviderOperation;
+import android.content.ContentValues;
+import android.content.OperationApplicationException;
+import android.database.Cursor;
+import android.os.Build;
+import android.os.RemoteException;
+import android.test.AndroidTestCase;
+import android.text.TextUtils;
+import android.util.JsonReader;
+import android.util.JsonToken;
+import android.util.JsonWriter;
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Locale;
+import java.util.Random;
+
+/**
+ * Measures MovieProvider against a database seeded with 10 thousand, 100 thousand and a million
+ * generated movies: bulk inserts, lookups by identifier, scans of a genre in release date order,
+ * paging in release date order, searching as the user types, and single and batched updates.
+ * Every workload is warmed up before it is measured.
+ *
+ * The results of each size are logged under {@link #TAG} and written as JSON to
+ * benchmarks/movies-SIZE.json in the app's files directory, with the device they ran on.
+ *
+ * Each size is then compared with the baseline in the test resource {@link #BASELINE_RESOURCE},
+ * and fails if a workload's median latency or throughput is worse than the baseline's by more
+ * than its tolerance. The baseline is only compared on the device and SDK level it was
+ * recorded on, and workloads it has no figures for are skipped. A size fails if the baseline
+ * is missing, has no figures for it, or doesn't say which device it was recorded on, so a
+ * comparison is never passed without being made. To record one, pull the results with adb,
+ * copy the device and SDK level into the baseline, and copy the "results" object of each size
+ * under "movies", keyed by the size.
+ */
+public class ProviderBenchmark extends AndroidTestCase {
+    private static final String TAG = ProviderBenchmark.class.getSimpleName();
+    private static final String RESULTS_DIRECTORY = "benchmarks";
+    private static final String BASELINE_RESOURCE = "benchmark-baseline.json";
+
+    private static final int GENRE_COUNT = 20;
+    private static final int BULK_INSERT_CHUNK_SIZE = 10000;
+    private static final int WARM_UP_OPERATIONS = 100;
+    private static final int LOOKUP_OPERATIONS = 2000;
+    private static final int SCAN_OPERATIONS = 10;
+    private static final int PAGE_OPERATIONS = 500;
+    private static final int PAGE_SIZE = MovieContract.MovieEntry.DEFAULT_PAGE_SIZE;
+    private static final int SEARCH_OPERATIONS = 100;
+    private static final int UPDATE_OPERATIONS = 1000;
+    private static final int UPDATE_BATCH_SIZE = 500;
+    private static final int UPDATE_BATCH_OPERATIONS = 10;
+
+    // Release dates are spread over these years.
+    private static final int FIRST_YEAR = 1950;
+    private static final int YEARS = 66;
+
+    private final Random mRandom = new Random(0);
+    private long[] mGenreIds;
+    private long mFirstMovieId;
+    private long mLastMovieId;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        deleteAll();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        deleteAll();
+        super.tearDown();
+    }
+
+    public void testTenThousandMovies() throws Exception{
+        benchmark(10000);
+    }
+
+    public void testHundredThousandMovies() throws Exception{
+        benchmark(100000);
+    }
+
+    public void testMillionMovies() throws Exception{
+        benchmark(1000000);
+    }
+
+    private void benchmark(int movieCount) throws IOException, RemoteException, OperationApplicationException{
+        List<Measurement> measurements = new ArrayList<Measurement>();
+        measurements.add(seed(movieCount));
+        measurements.add(benchmarkLookups());
+        measurements.add(benchmarkGenreScans());
+        measurements.add(benchmarkPages());
+        measurements.add(benchmarkSearches());
+        measurements.add(benchmarkUpdates());
+        measurements.add(benchmarkBatchUpdates());
+
+        for(Measurement measurement : measurements){
+            Log.i(TAG, movieCount + " movies, " + measurement);
+        }
+        writeResults(movieCount, measurements);
+        assertNoRegressions(movieCount, measurements);
+    }
+
+    /**
+     * Inserts the genres, then the movies a chunk at a time, timing each chunk.
+     */
+    private Measurement seed(int movieCount){
+        ContentValues[] genres = new ContentValues[GENRE_COUNT];
+        for(int i = 0; i < GENRE_COUNT; i++){
+            genres[i] = new ContentValues();
+            genres[i].put(MovieContract.GenreEntry.COLUMN_NAME, "Genre " + i);
+        }
+        mContext.getContentResolver().bulkInsert(MovieContract.GenreEntry.CONTENT_URI, genres);
+
+        Cursor genreCursor = mContext.getContentResolver().query(
+                MovieContract.GenreEntry.CONTENT_URI,
+                new String[]{MovieContract.GenreEntry._ID},
+                null,
+                null,
+                null
+        );
+        mGenreIds = new long[genreCursor.getCount()];
+        for(int i = 0; genreCursor.moveToNext(); i++){
+            mGenreIds[i] = genreCursor.getLong(0);
+        }
+        genreCursor.close();
+
+        Measurement measurement = new Measurement("bulkInsert", (movieCount + BULK_INSERT_CHUNK_SIZE - 1) / BULK_INSERT_CHUNK_SIZE);
+        for(int inserted = 0; inserted < movieCount; inserted += BULK_INSERT_CHUNK_SIZE){
+            ContentValues[] chunk = new ContentValues[Math.min(BULK_INSERT_CHUNK_SIZE, movieCount - inserted)];
+            for(int i = 0; i < chunk.length; i++){
+                chunk[i] = getMovieContentValues(inserted + i);
+            }
+
+            long start = System.nanoTime();
+            int rows = mContext.getContentResolver().bulkInsert(MovieContract.MovieEntry.CONTENT_URI, chunk);
+            measurement.add(System.nanoTime() - start, rows);
+        }
+
+        Cursor idCursor = mContext.getContentResolver().query(
+                MovieContract.MovieEntry.CONTENT_URI,
+                new String[]{MovieContract.MovieEntry._ID},
+                null,
+                null,
+                MovieContract.MovieEntry._ID
+        );
+        assertTrue(idCursor.moveToFirst());
+        mFirstMovieId = idCursor.getLong(0);
+        assertTrue(idCursor.moveToLast());
+        mLastMovieId = idCursor.getLong(0);
+        idCursor.close();
+        assertEquals(movieCount, mLastMovieId - mFirstMovieId + 1);
+
+        return measurement;
+    }
+
+    private Measurement benchmarkLookups(){
+        for(int i = 0; i < WARM_UP_OPERATIONS; i++){
+            lookup();
+        }
+
+        Measurement measurement = new Measurement("lookupById", LOOKUP_OPERATIONS);
+        for(int i = 0; i < LOOKUP_OPERATIONS; i++){
+            long start = System.nanoTime();
+            int rows = lookup();
+            measurement.add(System.nanoTime() - start, rows);
+        }
+        return measurement;
+    }
+
+    private int lookup(){
+        Cursor cursor = mContext.getContentResolver().query(
+                MovieContract.MovieEntry.buildMovieUri(getRandomMovieId()),
+                null,
+                null,
+                null,
+                null
+        );
+        assertTrue(cursor.moveToFirst());
+        cursor.getString(cursor.getColumnIndex(MovieContract.MovieEntry.COLUMN_NAME));
+        int rows = cursor.getCount();
+        cursor.close();
+        return rows;
+    }
+
+    private Measurement benchmarkGenreScans(){
+        scanGenre();
+
+        Measurement measurement = new Measurement("scanGenreByReleaseDate", SCAN_OPERATIONS);
+        for(int i = 0; i < SCAN_OPERATIONS; i++){
+            long start = System.nanoTime();
+            int rows = scanGenre();
+            measurement.add(System.nanoTime() - start, rows);
+        }
+        return measurement;
+    }
+
+    /**
+     * Reads every movie of a random genre, in order of release date.
+     */
+    private int scanGenre(){
+        Cursor cursor = mContext.getContentResolver().query(
+                MovieContract.MovieEntry.CONTENT_URI,
+                new String[]{MovieContract.MovieEntry._ID, MovieContract.MovieEntry.COLUMN_NAME, MovieContract.MovieEntry.COLUMN_RELEASE_DATE},
+                MovieContract.MovieEntry.COLUMN_GENRE + " = ?",
+                new String[]{String.valueOf(mGenreIds[mRandom.nextInt(mGenreIds.length)])},
+                MovieContract.MovieEntry.COLUMN_RELEASE_DATE
+        );
+        int rows = 0;
+        while(cursor.moveToNext()){
+            cursor.getString(1);
+            rows++;
+        }
+        cursor.close();
+        return rows;
+    }
+
+    /**
+     * Pages through the movies in order of release date, from the first page onwards, timing
+     * every page.
+     */
+    private Measurement benchmarkPages(){
+        String[] projection = new String[]{
+                MovieContract.MovieEntry._ID,
+                MovieContract.MovieEntry.COLUMN_NAME,
+                MovieContract.MovieEntry.COLUMN_RELEASE_DATE
+        };
+        Measurement measurement = new Measurement("pageByReleaseDate", PAGE_OPERATIONS);
+
+        String afterDate = null;
+        long afterId = -1;
+        for(int i = 0; i < WARM_UP_OPERATIONS + PAGE_OPERATIONS; i++){
+            long start = System.nanoTime();
+            Cursor cursor = mContext.getContentResolver().query(
+                    MovieContract.MovieEntry.buildMoviePageByReleaseDateUri(afterDate, afterId, PAGE_SIZE),
+                    projection,
+                    null,
+                    null,
+                    null
+            );
+            int rows = 0;
+            while(cursor.moveToNext()){
+                afterId = cursor.getLong(0);
+                cursor.getString(1);
+                afterDate = cursor.getString(2);
+                rows++;
+            }
+            cursor.close();
+            long nanos = System.nanoTime() - start;
+
+            if(i >= WARM_UP_OPERATIONS){
+                measurement.add(nanos, rows);
+            }
+            if(rows < PAGE_SIZE){
+                // Start again from the first page once the last one has been read.
+                afterDate = null;
+                afterId = -1;
+            }
+        }
+        return measurement;
+    }
+
+    /**
+     * Types the name of random movies one letter at a time, searching after every letter. The
+     * first letters match every movie, since they are all named "Movie" and a number, so they
+     * are the slowest searches there are.
+     */
+    private Measurement benchmarkSearches(){
+        for(int i = 0; i < WARM_UP_OPERATIONS; i++){
+            search("Movie " + (getRandomMovieId() - mFirstMovieId));
+        }
+
+        Measurement measurement = new Measurement("searchAsYouType", SEARCH_OPERATIONS);
+        for(int i = 0; i < SEARCH_OPERATIONS; ){
+            String name = "Movie " + (getRandomMovieId() - mFirstMovieId);
+            for(int length = 1; length <= name.length() && i < SEARCH_OPERATIONS; length++, i++){
+                long start = System.nanoTime();
+                int rows = search(name.substring(0, length));
+                measurement.add(System.nanoTime() - start, rows);
+                if(length == name.length()){
+                    // The whole name always finds the movie, however many others match it too.
+                    assertTrue(rows > 0);
+                }
+            }
+        }
+        return measurement;
+    }
+
+    private int search(String query){
+        Cursor cursor = mContext.getContentResolver().query(
+                MovieContract.MovieEntry.buildMovieSearchUri(query),
+                new String[]{MovieContract.MovieEntry._ID, MovieContract.MovieEntry.COLUMN_NAME},
+                null,
+                null,
+                null
+        );
+        int rows = 0;
+        while(cursor.moveToNext()){
+            cursor.getString(1);
+            rows++;
+        }
+        cursor.close();
+        return rows;
+    }
+
+    /**
+     * Moves random movies to another genre one at a time, each in its own transaction.
+     */
+    private Measurement benchmarkUpdates(){
+        for(int i = 0; i < WARM_UP_OPERATIONS; i++){
+            update();
+        }
+
+        Measurement measurement = new Measurement("updateById", UPDATE_OPERATIONS);
+        for(int i = 0; i < UPDATE_OPERATIONS; i++){
+            long start = System.nanoTime();
+            int rows = update();
+            measurement.add(System.nanoTime() - start, rows);
+        }
+        return measurement;
+    }
+
+    private int update(){
+        ContentValues values = new ContentValues();
+        values.put(MovieContract.MovieEntry.COLUMN_GENRE, mGenreIds[mRandom.nextInt(mGenreIds.length)]);
+        return mContext.getContentResolver().update(
+                MovieContract.MovieEntry.CONTENT_URI,
+                values,
+                MovieContract.MovieEntry._ID + " = ?",
+                new String[]{String.valueOf(getRandomMovieId())}
+        );
+    }
+
+    /**
+     * Moves random movies to another genre a batch at a time, each batch in one transaction.
+     */
+    private Measurement benchmarkBatchUpdates() throws RemoteException, OperationApplicationException{
+        updateBatch();
+
+        Measurement measurement = new Measurement("applyBatchUpdates", UPDATE_BATCH_OPERATIONS);
+        for(int i = 0; i < UPDATE_BATCH_OPERATIONS; i++){
+            long start = System.nanoTime();
+            int rows = updateBatch();
+            measurement.add(System.nanoTime() - start, rows);
+        }
+        return measurement;
+    }
+
+    private int updateBatch() throws RemoteException, OperationApplicationException{
+        ArrayList<ContentProviderOperation> operations = new ArrayList<ContentProviderOperation>(UPDATE_BATCH_SIZE);
+        for(int i = 0; i < UPDATE_BATCH_SIZE; i++){
+            operations.add(ContentProviderOperation.newUpdate(MovieContract.MovieEntry.CONTENT_URI)
+                    .withValue(MovieContract.MovieEntry.COLUMN_GENRE, mGenreIds[mRandom.nextInt(mGenreIds.length)])
+                    .withSelection(MovieContract.MovieEntry._ID + " = ?", new String[]{String.valueOf(getRandomMovieId())})
+                    .build());
+        }
+        return mContext.getContentResolver().applyBatch(MovieContract.CONTENT_AUTHORITY, operations).length;
+    }
+
+    private ContentValues getMovieContentValues(int number){
+        ContentValues values = new ContentValues();
+        values.put(MovieContract.MovieEntry.COLUMN_NAME, "Movie " + number);
+        values.put(MovieContract.MovieEntry.COLUMN_RELEASE_DATE, String.format(Locale.US, "%04d-%02d-%02d",
+                FIRST_YEAR + mRandom.nextInt(YEARS), 1 + mRandom.nextInt(12), 1 + mRandom.nextInt(28)));
+        values.put(MovieContract.MovieEntry.COLUMN_GENRE, mGenreIds[mRandom.nextInt(mGenreIds.length)]);
+        return values;
+    }
+
+    private long getRandomMovieId(){
+        return mFirstMovieId + mRandom.nextInt((int) (mLastMovieId - mFirstMovieId + 1));
+    }
+
+    private void writeResults(int movieCount, List<Measurement> measurements) throws IOException{
+        File directory = new File(mContext.getFilesDir(), RESULTS_DIRECTORY);
+        if(!directory.isDirectory() && !directory.mkdirs()){
+            throw new IOException("Unable to create " + directory);
+        }
+
+        JsonWriter writer = new JsonWriter(new OutputStreamWriter(
+                new FileOutputStream(new File(directory, "movies-" + movieCount + ".json")), "UTF-8"));
+        try{
+            writer.setIndent("  ");
+            writer.beginObject();
+            writer.name("movies").value(movieCount);
+            writer.name("device").value(getDevice());
+            writer.name("sdk").value(Build.VERSION.SDK_INT);
+            writer.name("results").beginObject();
+            for(Measurement measurement : measurements){
+                writer.name(measurement.mName);
+                measurement.write(writer);
+            }
+            writer.endObject();
+            writer.endObject();
+        } finally{
+            writer.close();
+        }
+    }
+
+    /**
+     * Fails if any workload did worse than the baseline for this size, after the results have
+     * been written so they can still be looked at.
+     */
+    private void assertNoRegressions(int movieCount, List<Measurement> measurements) throws IOException{
+        Baseline baseline = Baseline.read(movieCount);
+        if(baseline == null){
+            fail(movieCount + " movies, no figures in " + BASELINE_RESOURCE + " to compare with. Record them"
+                    + " from the results written to " + RESULTS_DIRECTORY + ", as ProviderBenchmark describes.");
+        }
+        if(baseline.mDevice == null){
+            fail(movieCount + " movies, " + BASELINE_RESOURCE + " doesn't say which device it was recorded on");
+        }
+        // Figures from another device or platform version aren't comparable.
+        if(!getDevice().equals(baseline.mDevice) || Build.VERSION.SDK_INT != baseline.mSdk){
+            Log.i(TAG, movieCount + " movies, not compared with the baseline recorded on "
+                    + baseline.mDevice + " at SDK " + baseline.mSdk);
+            return;
+        }
+
+        double limit = 1 + baseline.mTolerance;
+        List<String> regressions = new ArrayList<String>();
+        for(Measurement measurement : measurements){
+            Long p50Micros = baseline.mP50Micros.get(measurement.mName);
+            long measuredP50Micros = measurement.getPercentileMicros(0.5);
+            if(p50Micros != null && measuredP50Micros > p50Micros * limit){
+                regressions.add(String.format(Locale.US, "%s: p50 %d us, baseline %d us",
+                        measurement.mName, measuredP50Micros, p50Micros));
+            }
+
+            Long operationsPerSecond = baseline.mOperationsPerSecond.get(measurement.mName);
+            long measuredOperationsPerSecond = Math.round(measurement.getPerSecond(measurement.mCount));
+            if(operationsPerSecond != null && measuredOperationsPerSecond * limit < operationsPerSecond){
+                regressions.add(String.format(Locale.US, "%s: %d operations per second, baseline %d",
+                        measurement.mName, measuredOperationsPerSecond, operationsPerSecond));
+            }
+        }
+
+        if(!regressions.isEmpty()){
+            fail(String.format(Locale.US, "%d movies, worse than the baseline by more than %d%%: %s",
+                    movieCount, Math.round(baseline.mTolerance * 100), TextUtils.join("; ", regressions)));
+        }
+    }
+
+    private static String getDevice(){
+        return Build.MANUFACTURER + " " + Build.MODEL;
+    }
+
+    private void deleteAll(){
+        mContext.getContentResolver().delete(MovieContract.MovieEntry.CONTENT_URI, null, null);
+        mContext.getContentResolver().delete(MovieContract.GenreEntry.CONTENT_URI, null, null);
+    }
+
+    /**
+     * The figures of one size in the baseline resource: the median latency and throughput of
+     * every workload recorded for it.
+     */
+    private static final class Baseline {
+        private double mTolerance;
+        private String mDevice;
+        private int mSdk;
+        private final Map<String, Long> mP50Micros = new HashMap<String, Long>();
+        private final Map<String, Long> mOperationsPerSecond = new HashMap<String, Long>();
+
+        /**
+         * @return The baseline of the size, or null if the resource is missing or has no figures
+         * for it.
+         */
+        static Baseline read(int movieCount) throws IOException{
+            InputStream input = ProviderBenchmark.class.getClassLoader().getResourceAsStream(BASELINE_RESOURCE);
+            if(input == null){
+                return null;
+            }
+
+            Baseline baseline = new Baseline();
+            JsonReader reader = new JsonReader(new InputStreamReader(input, "UTF-8"));
+            try{
+                reader.beginObject();
+                while(reader.hasNext()){
+                    String name = reader.nextName();
+                    if(reader.peek() == JsonToken.NULL){
+                        // Not recorded yet.
+                        reader.skipValue();
+                    } else if(name.equals("tolerance")){
+                        baseline.mTolerance = reader.nextDouble();
+                    } else if(name.equals("device")){
+                        baseline.mDevice = reader.nextString();
+                    } else if(name.equals("sdk")){
+                        baseline.mSdk = reader.nextInt();
+                    } else if(name.equals("movies")){
+                        reader.beginObject();
+                        while(reader.hasNext()){
+                            if(reader.nextName().equals(String.valueOf(movieCount))){
+                                baseline.readResults(reader);
+                            } else{
+                                reader.skipValue();
+                            }
+                        }
+                        reader.endObject();
+                    } else{
+                        reader.skipValue();
+                    }
+                }
+                reader.endObject();
+            } finally{
+                reader.close();
+            }
+            return baseline.mP50Micros.isEmpty() && baseline.mOperationsPerSecond.isEmpty() ? null : baseline;
+        }
+
+        /**
+         * Reads the "results" object of a size, as written to the results file.
+         */
+        private void readResults(JsonReader reader) throws IOException{
+            reader.beginObject();
+            while(reader.hasNext()){
+                String workload = reader.nextName();
+                reader.beginObject();
+                while(reader.hasNext()){
+                    String name = reader.nextName();
+                    if(name.equals("p50Micros")){
+                        mP50Micros.put(workload, reader.nextLong());
+                    } else if(name.equals("operationsPerSecond")){
+                        mOperationsPerSecond.put(workload, reader.nextLong());
+                    } else{
+                        reader.skipValue();
+                    }
+                }
+                reader.endObject();
+            }
+            reader.endObject();
+        }
+    }
+
+    /**
+     * The latency of every operation of a single workload, and the rows they read or wrote.
+     */
+    private static final class Measurement {
+        private final String mName;
+        private final long[] mNanos;
+        private int mCount;
+        private long mRows;
+
+        Measurement(String name, int operations){
+            mName = name;
+            mNanos = new long[operations];
+        }
+
+        void add(long nanos, int rows){
+            mNanos[mCount++] = nanos;
+            mRows += rows;
+        }
+
+        private long getTotalNanos(){
+            long total = 0;
+            for(int i = 0; i < mCount; i++){
+                total += mNanos[i];
+            }
+            return total;
+        }
+
+        /**
+         * @return The latency in microseconds that the given fraction of operations finished in.
+         */
+        private long getPercentileMicros(double fraction){
+            long[] sorted = Arrays.copyOf(mNanos, mCount);
+            Arrays.sort(sorted);
+            return sorted[Math.min(mCount - 1, (int) (mCount * fraction))] / 1000;
+        }
+
+        private double getPerSecond(long count){
+            return count * 1e9 / Math.max(1, getTotalNanos());
+        }
+
+        void write(JsonWriter writer) throws IOException{
+            writer.beginObject();
+            writer.name("operations").value(mCount);
+            writer.name("rows").value(mRows);
+            writer.name("totalMillis").value(getTotalNanos() / 1000000);
+            writer.name("operationsPerSecond").value(Math.round(getPerSecond(mCount)));
+            writer.name("rowsPerSecond").value(Math.round(getPerSecond(mRows)));
+            writer.name("p50Micros").value(getPercentileMicros(0.5));
+            writer.name("p90Micros").value(getPercentileMicros(0.9));
+            writer.name("p99Micros").value(getPercentileMicros(0.99));
+            writer.name("maxMicros").value(getPercentileMicros(1));
+            writer.endObject();
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.US, "%s: %d operations, %d rows, %d ms, p50 %d us, p99 %d us, max %d us",
+                    mName, mCount, mRows, getTotalNanos() / 1000000,
+                    getPercentileMicros(0.5), getPercentileMicros(0.99), getPercentileMicros(1));
+        }
+    }
+}
@@ -1,11 +1,16 @@
 package androidessence.moviedatabase;
 
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
 import android.content.ContentUris;
 import android.content.ContentValues;
 import android.database.Cursor;
 import android.net.Uri;
+import android.os.Bundle;
 import android.test.AndroidTestCase;
 
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Map;
 import java.util.Set;
 
@@ -18,6 +23,7 @@ public class ProviderTest extends AndroidTestCase {
     private static final String TEST_MOVIE_NAME = "Harry Potter and the Sorcerer's Stone";
     private static final String TEST_UPDATE_MOVIE_NAME = "Harry Potter and the Philosopher's Stone";
     private static final String TEST_MOVIE_RELEASE_DATE = "2001-11-14";
+    private static final int TEST_BULK_INSERT_COUNT = 100;
 
     @Override
     protected void setUp() throws Exception {
@@ -124,6 +130,49 @@ public class ProviderTest extends AndroidTestCase {
         genreCursor.close();
     }
 
+    public void testReadGenreAfterChange(){
+        // Read the genres first, so that the following changes have to replace what was read.
+        Cursor genreCursor = mContext.getContentResolver().query(
+                MovieContract.GenreEntry.CONTENT_URI,
+                new String[]{MovieContract.GenreEntry.COLUMN_NAME},
+                null,
+                null,
+                null
+        );
+        assertEquals(0, genreCursor.getCount());
+        genreCursor.close();
+
+        ContentValues genreContentValues = getGenreContentValues();
+        Uri genreInsertUri = mContext.getContentResolver().insert(MovieContract.GenreEntry.CONTENT_URI, genreContentValues);
+        long genreRowId = ContentUris.parseId(genreInsertUri);
+
+        genreCursor = mContext.getContentResolver().query(
+                MovieContract.GenreEntry.CONTENT_URI,
+                new String[]{MovieContract.GenreEntry.COLUMN_NAME},
+                null,
+                null,
+                null
+        );
+        validateCursor(genreCursor, genreContentValues);
+        genreCursor.close();
+
+        mContext.getContentResolver().delete(
+                MovieContract.GenreEntry.CONTENT_URI,
+                MovieContract.GenreEntry._ID + " = ?",
+                new String[]{String.valueOf(genreRowId)}
+        );
+
+        genreCursor = mContext.getContentResolver().query(
+                MovieContract.GenreEntry.buildGenreUri(genreRowId),
+                null,
+                null,
+                null,
+                null
+        );
+        assertEquals(0, genreCursor.getCount());
+        genreCursor.close();
+    }
+
     public void testInsertReadMovie(){
         // We first insert a Genre
         // No need to verify this, we already have a test for inserting genre
@@ -160,6 +209,105 @@ public class ProviderTest extends AndroidTestCase {
         movieCursor.close();
     }
 
+    public void testMetrics(){
+        ContentValues genreContentValues = getGenreContentValues();
+        Uri genreInsertUri = mContext.getContentResolver().insert(MovieContract.GenreEntry.CONTENT_URI, genreContentValues);
+        long genreRowId = ContentUris.parseId(genreInsertUri);
+        mContext.getContentResolver().bulkInsert(
+                MovieContract.MovieEntry.CONTENT_URI,
+                new ContentValues[]{getMovieContentValues(genreRowId)}
+        );
+
+        Bundle before = getOperationMetrics("query movie");
+
+        Cursor movieCursor = mContext.getContentResolver().query(
+                MovieContract.MovieEntry.CONTENT_URI,
+                null,
+                null,
+                null,
+                null
+        );
+        assertTrue(movieCursor.moveToFirst());
+        movieCursor.close();
+
+        // The query is counted when it returns, and its row once its window has been filled.
+        Bundle after = getOperationMetrics("query movie");
+        assertEquals(before.getLong(MovieContract.EXTRA_COUNT) + 1, after.getLong(MovieContract.EXTRA_COUNT));
+        assertEquals(before.getLong(MovieContract.EXTRA_ROWS) + 1, after.getLong(MovieContract.EXTRA_ROWS));
+        assertTrue(after.getLong(MovieContract.EXTRA_WINDOW_FILL_COUNT) > before.getLong(MovieContract.EXTRA_WINDOW_FILL_COUNT));
+
+        Bundle metrics = mContext.getContentResolver().call(MovieContract.MovieEntry.CONTENT_URI, MovieContract.METHOD_GET_METRICS, null, null);
+        assertEquals(
+                metrics.getLongArray(MovieContract.EXTRA_LATENCY_BUCKETS_MICROS).length + 1,
+                after.getLongArray(MovieContract.EXTRA_LATENCY_HISTOGRAM).length
+        );
+        assertNotNull(metrics.getBundle(MovieContract.EXTRA_OPERATIONS).getBundle("insert genre"));
+        assertNotNull(metrics.getBundle(MovieContract.EXTRA_TRANSACTIONS).getBundle("bulkInsert movie"));
+    }
+
+    /**
+     * Returns the metrics of a single operation, which are all zero if it hasn't run yet.
+     */
+    private Bundle getOperationMetrics(String name){
+        Bundle metrics = mContext.getContentResolver().call(MovieContract.MovieEntry.CONTENT_URI, MovieContract.METHOD_GET_METRICS, null, null);
+        Bundle operation = metrics.getBundle(MovieContract.EXTRA_OPERATIONS).getBundle(name);
+        return operation != null ? operation : new Bundle();
+    }
+
+    public void testMovieCache(){
+        ContentValues genreContentValues = getGenreContentValues();
+        Uri genreInsertUri = mContext.getContentResolver().insert(MovieContract.GenreEntry.CONTENT_URI, genreContentValues);
+        long genreRowId = ContentUris.parseId(genreInsertUri);
+
+        ContentValues movieContentValues = getMovieContentValues(genreRowId);
+        Uri movieInsertUri = mContext.getContentResolver().insert(MovieContract.MovieEntry.CONTENT_URI, movieContentValues);
+
+        Bundle before = mContext.getContentResolver().call(MovieContract.MovieEntry.CONTENT_URI, MovieContract.METHOD_GET_MOVIE_CACHE_STATS, null, null);
+
+        // The first read misses and the second one is served from the cache.
+        for(int i = 0; i < 2; i++){
+            Cursor movieCursor = mContext.getContentResolver().query(
+                    movieInsertUri,
+                    new String[]{MovieContract.MovieEntry.COLUMN_NAME},
+                    null,
+                    null,
+                    null
+            );
+            assertTrue(movieCursor.moveToFirst());
+            assertEquals(TEST_MOVIE_NAME, movieCursor.getString(0));
+            movieCursor.close();
+        }
+
+        Bundle after = mContext.getContentResolver().call(MovieContract.MovieEntry.CONTENT_URI, MovieContract.METHOD_GET_MOVIE_CACHE_STATS, null, null);
+        assertEquals(before.getInt(MovieContract.EXTRA_CACHE_MISSES) + 1, after.getInt(MovieContract.EXTRA_CACHE_MISSES));
+        assertEquals(before.getInt(MovieContract.EXTRA_CACHE_HITS) + 1, after.getInt(MovieContract.EXTRA_CACHE_HITS));
+
+        // An update must not leave the old row behind.
+        ContentValues updatedMovieContentValues = new ContentValues(movieContentValues);
+        updatedMovieContentValues.put(MovieContract.MovieEntry.COLUMN_NAME, TEST_UPDATE_MOVIE_NAME);
+        mContext.getContentResolver().update(
+                MovieContract.MovieEntry.CONTENT_URI,
+                updatedMovieContentValues,
+                MovieContract.MovieEntry._ID + " = ?",
+                new String[]{String.valueOf(ContentUris.parseId(movieInsertUri))}
+        );
+
+        Cursor movieCursor = mContext.getContentResolver().query(
+                movieInsertUri,
+                null,
+                null,
+                null,
+                null
+        );
+        validateCursor(movieCursor, updatedMovieContentValues);
+        movieCursor.close();
+
+        // The row thrown away by the update was invalidated, not evicted to make room.
+        Bundle updated = mContext.getContentResolver().call(MovieContract.MovieEntry.CONTENT_URI, MovieContract.METHOD_GET_MOVIE_CACHE_STATS, null, null);
+        assertEquals(after.getInt(MovieContract.EXTRA_CACHE_EVICTIONS), updated.getInt(MovieContract.EXTRA_CACHE_EVICTIONS));
+        assertTrue(updated.getInt(MovieContract.EXTRA_CACHE_INVALIDATIONS) > after.getInt(MovieContract.EXTRA_CACHE_INVALIDATIONS));
+    }
+
     public void testUpdateGenre(){
         // Insert the genre first.
         // No need to verify, we have a test for that.
@@ -223,6 +371,833 @@ public class ProviderTest extends AndroidTestCase {
         movieCursor.close();
     }
 
+    public void testUpdateDeleteById(){
+        Uri genreInsertUri = mContext.getContentResolver().insert(MovieContract.GenreEntry.CONTENT_URI, getGenreContentValues());
+        long genreRowId = ContentUris.parseId(genreInsertUri);
+
+        ContentValues updatedGenreContentValues = new ContentValues();
+        updatedGenreContentValues.put(MovieContract.GenreEntry.COLUMN_NAME, TEST_UPDATE_GENRE_NAME);
+        assertEquals(1, mContext.getContentResolver().update(genreInsertUri, updatedGenreContentValues, null, null));
+
+        Uri movieInsertUri = mContext.getContentResolver().insert(MovieContract.MovieEntry.CONTENT_URI, getMovieContentValues(genreRowId));
+        ContentValues updatedMovieContentValues = new ContentValues();
+        updatedMovieContentValues.put(MovieContract.MovieEntry.COLUMN_NAME, TEST_UPDATE_MOVIE_NAME);
+
+        // A selection narrows down the row further.
+        assertEquals(0, mContext.getContentResolver().update(
+                movieInsertUri,
+                updatedMovieContentValues,
+                MovieContract.MovieEntry.COLUMN_NAME + " = ?",
+                new String[]{TEST_UPDATE_MOVIE_NAME}
+        ));
+        assertEquals(1, mContext.getContentResolver().update(movieInsertUri, updatedMovieContentValues, null, null));
+
+        Cursor movieCursor = mContext.getContentResolver().query(movieInsertUri, null, null, null, null);
+        validateCursor(movieCursor, updatedMovieContentValues);
+
+        assertEquals(1, mContext.getContentResolver().delete(movieInsertUri, null, null));
+        movieCursor = mContext.getContentResolver().query(movieInsertUri, null, null, null, null);
+        assertEquals(0, movieCursor.getCount());
+        movieCursor.close();
+
+        assertEquals(1, mContext.getContentResolver().delete(genreInsertUri, null, null));
+        Cursor genreCursor = mContext.getContentResolver().query(genreInsertUri, null, null, null, null);
+        assertEquals(0, genreCursor.getCount());
+        genreCursor.close();
+    }
+
+    public void testDeleteGenreDeletesMovies(){
+        long genreRowId = ContentUris.parseId(
+                mContext.getContentResolver().insert(MovieContract.GenreEntry.CONTENT_URI, getGenreContentValues()));
+        ContentValues genreContentValues = new ContentValues();
+        genreContentValues.put(MovieContract.GenreEntry.COLUMN_NAME, TEST_UPDATE_GENRE_NAME);
+        long otherGenreRowId = ContentUris.parseId(
+                mContext.getContentResolver().insert(MovieContract.GenreEntry.CONTENT_URI, genreContentValues));
+
+        ContentValues[] bulkValues = new ContentValues[TEST_BULK_INSERT_COUNT];
+        for(int i = 0; i < TEST_BULK_INSERT_COUNT; i++){
+            bulkValues[i] = getMovieContentValues(i % 2 == 0 ? genreRowId : otherGenreRowId);
+            bulkValues[i].put(MovieContract.MovieEntry.COLUMN_NAME, TEST_MOVIE_NAME + " " + i);
+        }
+        mContext.getContentResolver().bulkInsert(MovieContract.MovieEntry.CONTENT_URI, bulkValues);
+
+        // The default policy deletes the genre's movies along with it.
+        assertEquals(1, mContext.getContentResolver().delete(
+                MovieContract.GenreEntry.buildGenreUri(genreRowId), null, null));
+
+        Cursor movieCursor = mContext.getContentResolver().query(
+                MovieContract.MovieEntry.CONTENT_URI,
+                new String[]{MovieContract.MovieEntry.COLUMN_GENRE},
+                null,
+                null,
+                null
+        );
+        assertEquals(TEST_BULK_INSERT_COUNT / 2, movieCursor.getCount());
+        while(movieCursor.moveToNext()){
+            assertEquals(otherGenreRowId, movieCursor.getLong(0));
+        }
+        movieCursor.close();
+
+        // A movie can't belong to a genre that doesn't exist.
+        try{
+            mContext.getContentResolver().insert(MovieContract.MovieEntry.CONTENT_URI, getMovieContentValues(genreRowId));
+            fail("Expected the missing genre to fail the insert.");
+        } catch(UnsupportedOperationException expected){
+            // Expected.
+        }
+    }
+
+    public void testWarmUp(){
+        MovieDBHelper openHelper = new MovieDBHelper(mContext);
+        try{
+            DatabaseWarmUp warmUp = new DatabaseWarmUp(openHelper, MovieContract.MovieEntry.DEFAULT_PAGE_SIZE);
+            warmUp.start();
+            warmUp.await();
+
+            // The warm up opened the database, so its statements are ready to use.
+            assertNotNull(openHelper.getStatementCache());
+        } finally{
+            openHelper.close();
+        }
+    }
+
+    public void testWriteByIds(){
+        Uri genreInsertUri = mContext.getContentResolver().insert(MovieContract.GenreEntry.CONTENT_URI, getGenreContentValues());
+        long genreRowId = ContentUris.parseId(genreInsertUri);
+
+        // More movies than fit in a single statement, so they are written in several chunks.
+        int movieCount = 1200;
+        ContentValues[] bulkValues = new ContentValues[movieCount];
+        for(int i = 0; i < movieCount; i++){
+            bulkValues[i] = getMovieContentValues(genreRowId);
+            bulkValues[i].put(MovieContract.MovieEntry.COLUMN_NAME, TEST_MOVIE_NAME + " " + i);
+        }
+        mContext.getContentResolver().bulkInsert(MovieContract.MovieEntry.CONTENT_URI, bulkValues);
+
+        Cursor idCursor = mContext.getContentResolver().query(
+                MovieContract.MovieEntry.CONTENT_URI,
+                new String[]{MovieContract.MovieEntry._ID},
+                null,
+                null,
+                MovieContract.MovieEntry._ID
+        );
+        long[] ids = new long[idCursor.getCount()];
+        for(int i = 0; idCursor.moveToNext(); i++){
+            ids[i] = idCursor.getLong(0);
+        }
+        idCursor.close();
+
+        // Update the first half, then delete every movie but the last one.
+        long[] updateIds = Arrays.copyOfRange(ids, 0, movieCount / 2);
+        ContentValues updatedMovieContentValues = new ContentValues();
+        updatedMovieContentValues.put(MovieContract.MovieEntry.COLUMN_RELEASE_DATE, "2002-11-15");
+        Bundle extras = new Bundle();
+        extras.putLongArray(MovieContract.EXTRA_IDS, updateIds);
+        extras.putParcelable(MovieContract.EXTRA_UPDATE_VALUES, updatedMovieContentValues);
+        Bundle result = mContext.getContentResolver().call(
+                MovieContract.MovieEntry.CONTENT_URI,
+                MovieContract.METHOD_UPDATE_IDS,
+                MovieContract.MovieEntry.CONTENT_URI.toString(),
+                extras
+        );
+        assertEquals(updateIds.length, result.getInt(MovieContract.EXTRA_ROW_COUNT));
+
+        Cursor movieCursor = mContext.getContentResolver().query(
+                MovieContract.MovieEntry.CONTENT_URI,
+                null,
+                MovieContract.MovieEntry.COLUMN_RELEASE_DATE + " = ?",
+                new String[]{"2002-11-15"},
+                null
+        );
+        assertEquals(updateIds.length, movieCursor.getCount());
+        movieCursor.close();
+
+        long[] deleteIds = Arrays.copyOfRange(ids, 0, movieCount - 1);
+        extras = new Bundle();
+        extras.putLongArray(MovieContract.EXTRA_IDS, deleteIds);
+        result = mContext.getContentResolver().call(
+                MovieContract.MovieEntry.CONTENT_URI,
+                MovieContract.METHOD_DELETE_IDS,
+                MovieContract.MovieEntry.CONTENT_URI.toString(),
+                extras
+        );
+        assertEquals(deleteIds.length, result.getInt(MovieContract.EXTRA_ROW_COUNT));
+
+        movieCursor = mContext.getContentResolver().query(
+                MovieContract.MovieEntry.CONTENT_URI,
+                new String[]{MovieContract.MovieEntry._ID},
+                null,
+                null,
+                null
+        );
+        assertEquals(1, movieCursor.getCount());
+        assertTrue(movieCursor.moveToFirst());
+        assertEquals(ids[movieCount - 1], movieCursor.getLong(0));
+        movieCursor.close();
+    }
+
+    public void testBulkInsertMovies(){
+        ContentValues genreContentValues = getGenreContentValues();
+        Uri genreInsertUri = mContext.getContentResolver().insert(MovieContract.GenreEntry.CONTENT_URI, genreContentValues);
+        long genreRowId = ContentUris.parseId(genreInsertUri);
+
+        ContentValues[] bulkValues = new ContentValues[TEST_BULK_INSERT_COUNT];
+        for(int i = 0; i < TEST_BULK_INSERT_COUNT; i++){
+            bulkValues[i] = getMovieContentValues(genreRowId);
+            bulkValues[i].put(MovieContract.MovieEntry.COLUMN_NAME, TEST_MOVIE_NAME + " " + i);
+        }
+
+        int rows = mContext.getContentResolver().bulkInsert(MovieContract.MovieEntry.CONTENT_URI, bulkValues);
+        assertEquals(TEST_BULK_INSERT_COUNT, rows);
+
+        Cursor movieCursor = mContext.getContentResolver().query(
+                MovieContract.MovieEntry.CONTENT_URI,
+                null,
+                null,
+                null,
+                MovieContract.MovieEntry._ID
+        );
+        assertEquals(TEST_BULK_INSERT_COUNT, movieCursor.getCount());
+        validateCursor(movieCursor, bulkValues[0]);
+        movieCursor.close();
+    }
+
+    public void testUpsert(){
+        Uri genreUpsertUri = MovieContract.buildUpsertUri(MovieContract.GenreEntry.CONTENT_URI);
+        Uri genreInsertUri = mContext.getContentResolver().insert(genreUpsertUri, getGenreContentValues());
+        long genreRowId = ContentUris.parseId(genreInsertUri);
+
+        // Upserting the same genre again returns the one that already exists.
+        assertEquals(genreInsertUri, mContext.getContentResolver().insert(genreUpsertUri, getGenreContentValues()));
+
+        ContentValues genreContentValues = new ContentValues();
+        genreContentValues.put(MovieContract.GenreEntry.COLUMN_NAME, TEST_UPDATE_GENRE_NAME);
+        long updateGenreRowId = ContentUris.parseId(
+                mContext.getContentResolver().insert(MovieContract.GenreEntry.CONTENT_URI, genreContentValues));
+
+        // The first movie is new, the second one already exists and has its genre changed.
+        ContentValues existingMovie = getMovieContentValues(genreRowId);
+        long movieRowId = ContentUris.parseId(
+                mContext.getContentResolver().insert(MovieContract.MovieEntry.CONTENT_URI, existingMovie));
+        existingMovie.put(MovieContract.MovieEntry.COLUMN_GENRE, updateGenreRowId);
+
+        ContentValues newMovie = getMovieContentValues(genreRowId);
+        newMovie.put(MovieContract.MovieEntry.COLUMN_NAME, TEST_UPDATE_MOVIE_NAME);
+
+        Bundle extras = new Bundle();
+        extras.putParcelableArray(MovieContract.EXTRA_VALUES, new ContentValues[]{newMovie, existingMovie});
+        Bundle counts = mContext.getContentResolver().call(
+                MovieContract.MovieEntry.CONTENT_URI,
+                MovieContract.METHOD_UPSERT,
+                MovieContract.MovieEntry.CONTENT_URI.toString(),
+                extras
+        );
+        assertEquals(1, counts.getInt(MovieContract.EXTRA_INSERTED_COUNT));
+        assertEquals(1, counts.getInt(MovieContract.EXTRA_UPDATED_COUNT));
+
+        Cursor movieCursor = mContext.getContentResolver().query(
+                MovieContract.MovieEntry.buildMovieUri(movieRowId),
+                null,
+                null,
+                null,
+                null
+        );
+        validateCursor(movieCursor, existingMovie);
+        movieCursor.close();
+
+        // Bulk upserts count the updated rows along with the inserted ones.
+        int rows = mContext.getContentResolver().bulkInsert(
+                MovieContract.buildUpsertUri(MovieContract.MovieEntry.CONTENT_URI),
+                new ContentValues[]{newMovie, existingMovie}
+        );
+        assertEquals(2, rows);
+
+        movieCursor = mContext.getContentResolver().query(
+                MovieContract.MovieEntry.CONTENT_URI,
+                null,
+                null,
+                null,
+                null
+        );
+        assertEquals(2, movieCursor.getCount());
+        movieCursor.close();
+    }
+
+    public void testMovieChanges(){
+        long version = getMovieVersion();
+
+        ContentValues genreContentValues = getGenreContentValues();
+        Uri genreInsertUri = mContext.getContentResolver().insert(MovieContract.GenreEntry.CONTENT_URI, genreContentValues);
+        long genreRowId = ContentUris.parseId(genreInsertUri);
+
+        // The first movie is inserted and then updated, the second one inserted and deleted again.
+        ContentValues movieContentValues = getMovieContentValues(genreRowId);
+        long movieRowId = ContentUris.parseId(
+                mContext.getContentResolver().insert(MovieContract.MovieEntry.CONTENT_URI, movieContentValues));
+        ContentValues updatedMovieContentValues = new ContentValues();
+        updatedMovieContentValues.put(MovieContract.MovieEntry.COLUMN_NAME, TEST_UPDATE_MOVIE_NAME);
+        mContext.getContentResolver().update(
+                MovieContract.MovieEntry.CONTENT_URI,
+                updatedMovieContentValues,
+                MovieContract.MovieEntry._ID + " = ?",
+                new String[]{String.valueOf(movieRowId)}
+        );
+
+        long deletedRowId = ContentUris.parseId(
+                mContext.getContentResolver().insert(MovieContract.MovieEntry.CONTENT_URI, getMovieContentValues(genreRowId)));
+        mContext.getContentResolver().delete(
+                MovieContract.MovieEntry.CONTENT_URI,
+                MovieContract.MovieEntry._ID + " = ?",
+                new String[]{String.valueOf(deletedRowId)}
+        );
+
+        String[] projection = new String[]{
+                MovieContract.MovieChangeEntry.COLUMN_MOVIE_ID,
+                MovieContract.MovieChangeEntry.COLUMN_OPERATION,
+                MovieContract.MovieEntry.COLUMN_NAME
+        };
+        Cursor changeCursor = mContext.getContentResolver().query(
+                MovieContract.MovieChangeEntry.buildChangesUri(version),
+                projection,
+                null,
+                null,
+                null
+        );
+        assertEquals(1, changeCursor.getCount());
+        assertTrue(changeCursor.moveToFirst());
+        assertEquals(movieRowId, changeCursor.getLong(0));
+        assertEquals(MovieContract.MovieChangeEntry.OPERATION_INSERT, changeCursor.getInt(1));
+        assertEquals(TEST_UPDATE_MOVIE_NAME, changeCursor.getString(2));
+        changeCursor.close();
+
+        // Nothing has changed since the latest version.
+        long latestVersion = getMovieVersion();
+        assertTrue(latestVersion > version);
+        changeCursor = mContext.getContentResolver().query(
+                MovieContract.MovieChangeEntry.buildChangesUri(latestVersion),
+                projection,
+                null,
+                null,
+                null
+        );
+        assertEquals(0, changeCursor.getCount());
+        changeCursor.close();
+
+        // A version the database never had has to be loaded again from scratch.
+        changeCursor = mContext.getContentResolver().query(
+                MovieContract.MovieChangeEntry.buildChangesUri(latestVersion + 100),
+                null,
+                null,
+                null,
+                null
+        );
+        assertEquals(1, changeCursor.getCount());
+        assertTrue(changeCursor.moveToFirst());
+        assertEquals(MovieContract.MovieChangeEntry.OPERATION_RESET, changeCursor.getInt(
+                changeCursor.getColumnIndexOrThrow(MovieContract.MovieChangeEntry.COLUMN_OPERATION)));
+        changeCursor.close();
+    }
+
+    public void testMovieChangesAcrossReset(){
+        Uri genreInsertUri = mContext.getContentResolver().insert(MovieContract.GenreEntry.CONTENT_URI, getGenreContentValues());
+        mContext.getContentResolver().insert(MovieContract.MovieEntry.CONTENT_URI,
+                getMovieContentValues(ContentUris.parseId(genreInsertUri)));
+
+        // Every column the movie list reads from its changes, which a reset row has to have too.
+        String[] projection = new String[]{
+                MovieContract.MovieChangeEntry.COLUMN_VERSION,
+                MovieContract.MovieChangeEntry.COLUMN_OPERATION,
+                MovieContract.MovieChangeEntry.COLUMN_MOVIE_ID,
+                MovieContract.MovieEntry.COLUMN_NAME,
+                MovieContract.MovieEntry.COLUMN_RELEASE_DATE,
+                MovieContract.MovieEntry.COLUMN_GENRE_NAME
+        };
+
+        long latestVersion = getMovieVersion();
+        Cursor changeCursor = mContext.getContentResolver().query(
+                MovieContract.MovieChangeEntry.buildChangesUri(latestVersion + 100),
+                projection,
+                null,
+                null,
+                null
+        );
+        assertEquals(1, changeCursor.getCount());
+        assertEquals(projection.length, changeCursor.getColumnCount());
+        assertTrue(changeCursor.moveToFirst());
+        assertEquals(latestVersion, changeCursor.getLong(0));
+        assertEquals(MovieContract.MovieChangeEntry.OPERATION_RESET, changeCursor.getInt(1));
+        for(int i = 2; i < projection.length; i++){
+            assertTrue(changeCursor.isNull(i));
+        }
+        changeCursor.close();
+    }
+
+    private long getMovieVersion(){
+        return mContext.getContentResolver().call(
+                MovieContract.MovieEntry.CONTENT_URI,
+                MovieContract.METHOD_GET_MOVIE_VERSION,
+                null,
+                null
+        ).getLong(MovieContract.EXTRA_VERSION);
+    }
+
+    public void testStats(){
+        long genreRowId = ContentUris.parseId(
+                mContext.getContentResolver().insert(MovieContract.GenreEntry.CONTENT_URI, getGenreContentValues()));
+        ContentValues genreContentValues = new ContentValues();
+        genreContentValues.put(MovieContract.GenreEntry.COLUMN_NAME, TEST_UPDATE_GENRE_NAME);
+        long updateGenreRowId = ContentUris.parseId(
+                mContext.getContentResolver().insert(MovieContract.GenreEntry.CONTENT_URI, genreContentValues));
+
+        // Two movies from 2001 and one from 2002, along with one without a release year.
+        String[] releaseDates = new String[]{TEST_MOVIE_RELEASE_DATE, "2001-07-04", "2002-11-15", "Unknown"};
+        long[] movieRowIds = new long[releaseDates.length];
+        for(int i = 0; i < releaseDates.length; i++){
+            ContentValues movieContentValues = getMovieContentValues(genreRowId);
+            movieContentValues.put(MovieContract.MovieEntry.COLUMN_NAME, TEST_MOVIE_NAME + " " + i);
+            movieContentValues.put(MovieContract.MovieEntry.COLUMN_RELEASE_DATE, releaseDates[i]);
+            movieRowIds[i] = ContentUris.parseId(
+                    mContext.getContentResolver().insert(MovieContract.MovieEntry.CONTENT_URI, movieContentValues));
+        }
+
+        // Move the 2002 movie to the other genre and to 2001, and delete one of the 2001 movies.
+        ContentValues updatedMovieContentValues = new ContentValues();
+        updatedMovieContentValues.put(MovieContract.MovieEntry.COLUMN_GENRE, updateGenreRowId);
+        updatedMovieContentValues.put(MovieContract.MovieEntry.COLUMN_RELEASE_DATE, "2001-01-01");
+        mContext.getContentResolver().update(
+                MovieContract.MovieEntry.CONTENT_URI,
+                updatedMovieContentValues,
+                MovieContract.MovieEntry._ID + " = ?",
+                new String[]{String.valueOf(movieRowIds[2])}
+        );
+        mContext.getContentResolver().delete(
+                MovieContract.MovieEntry.CONTENT_URI,
+                MovieContract.MovieEntry._ID + " = ?",
+                new String[]{String.valueOf(movieRowIds[0])}
+        );
+
+        Cursor genreStatsCursor = mContext.getContentResolver().query(
+                MovieContract.GenreStatsEntry.CONTENT_URI,
+                null,
+                null,
+                null,
+                null
+        );
+        assertEquals(2, genreStatsCursor.getCount());
+        ContentValues expectedValues = new ContentValues();
+        expectedValues.put(MovieContract.GenreStatsEntry._ID, genreRowId);
+        expectedValues.put(MovieContract.GenreStatsEntry.COLUMN_GENRE_NAME, TEST_GENRE_NAME);
+        expectedValues.put(MovieContract.GenreStatsEntry.COLUMN_MOVIE_COUNT, 2);
+        validateCursor(genreStatsCursor, expectedValues);
+
+        Cursor yearStatsCursor = mContext.getContentResolver().query(
+                MovieContract.MovieYearStatsEntry.CONTENT_URI,
+                null,
+                null,
+                null,
+                null
+        );
+        assertEquals(1, yearStatsCursor.getCount());
+        expectedValues = new ContentValues();
+        expectedValues.put(MovieContract.MovieYearStatsEntry.COLUMN_YEAR, 2001);
+        expectedValues.put(MovieContract.MovieYearStatsEntry.COLUMN_MOVIE_COUNT, 2);
+        validateCursor(yearStatsCursor, expectedValues);
+
+        // Once the movies are gone every genre is still there, with no movies.
+        mContext.getContentResolver().delete(MovieContract.MovieEntry.CONTENT_URI, null, null);
+        genreStatsCursor = mContext.getContentResolver().query(
+                MovieContract.GenreStatsEntry.CONTENT_URI,
+                new String[]{MovieContract.GenreStatsEntry.COLUMN_MOVIE_COUNT},
+                null,
+                null,
+                null
+        );
+        assertEquals(2, genreStatsCursor.getCount());
+        while(genreStatsCursor.moveToNext()){
+            assertEquals(0, genreStatsCursor.getInt(0));
+        }
+        genreStatsCursor.close();
+
+        yearStatsCursor = mContext.getContentResolver().query(
+                MovieContract.MovieYearStatsEntry.CONTENT_URI,
+                null,
+                null,
+                null,
+                null
+        );
+        assertEquals(0, yearStatsCursor.getCount());
+        yearStatsCursor.close();
+    }
+
+    public void testConcurrentWrites() throws InterruptedException{
+        Uri genreInsertUri = mContext.getContentResolver().insert(MovieContract.GenreEntry.CONTENT_URI, getGenreContentValues());
+        final long genreRowId = ContentUris.parseId(genreInsertUri);
+        final int singleInserts = 200;
+        final int bulkInserts = 20;
+
+        // Single inserts and bulk inserts share the same cached statement, and each used to be
+        // able to hold what the other one was waiting for.
+        Thread singleWriter = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                for(int i = 0; i < singleInserts; i++){
+                    mContext.getContentResolver().insert(MovieContract.MovieEntry.CONTENT_URI, getMovieContentValues(genreRowId));
+                }
+            }
+        });
+        Thread bulkWriter = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                ContentValues[] bulkValues = new ContentValues[TEST_BULK_INSERT_COUNT];
+                for(int i = 0; i < bulkValues.length; i++){
+                    bulkValues[i] = getMovieContentValues(genreRowId);
+                }
+                for(int i = 0; i < bulkInserts; i++){
+                    mContext.getContentResolver().bulkInsert(MovieContract.MovieEntry.CONTENT_URI, bulkValues);
+                }
+            }
+        });
+        singleWriter.start();
+        bulkWriter.start();
+        singleWriter.join(60000);
+        bulkWriter.join(60000);
+        assertFalse("The writers deadlocked", singleWriter.isAlive() || bulkWriter.isAlive());
+
+        Cursor cursor = mContext.getContentResolver().query(MovieContract.MovieEntry.CONTENT_URI, null, null, null, null);
+        assertEquals(singleInserts + bulkInserts * TEST_BULK_INSERT_COUNT, cursor.getCount());
+        cursor.close();
+    }
+
+    public void testConcurrentUpserts() throws InterruptedException{
+        Uri genreInsertUri = mContext.getContentResolver().insert(MovieContract.GenreEntry.CONTENT_URI, getGenreContentValues());
+        final long genreRowId = ContentUris.parseId(genreInsertUri);
+        final Uri movieUpsertUri = MovieContract.buildUpsertUri(MovieContract.MovieEntry.CONTENT_URI);
+        final int upserts = 100;
+
+        // Every thread upserts the same movie, which must only ever be inserted once.
+        Thread[] writers = new Thread[4];
+        for(int i = 0; i < writers.length; i++){
+            writers[i] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for(int j = 0; j < upserts; j++){
+                        mContext.getContentResolver().insert(movieUpsertUri, getMovieContentValues(genreRowId));
+                    }
+                }
+            });
+            writers[i].start();
+        }
+        for(Thread writer : writers){
+            writer.join(60000);
+            assertFalse("The writers deadlocked", writer.isAlive());
+        }
+
+        Cursor cursor = mContext.getContentResolver().query(MovieContract.MovieEntry.CONTENT_URI, null, null, null, null);
+        assertEquals(1, cursor.getCount());
+        cursor.close();
+    }
+
+    public void testBulkInsertIsAtomic(){
+        // The genre name is unique, so the second row fails and the first must be rolled back.
+        ContentValues[] bulkValues = new ContentValues[]{getGenreContentValues(), getGenreContentValues()};
+        try{
+            mContext.getContentResolver().bulkInsert(MovieContract.GenreEntry.CONTENT_URI, bulkValues);
+            fail("Expected the duplicate genre to fail the batch.");
+        } catch(UnsupportedOperationException expected){
+            // Expected.
+        }
+
+        Cursor genreCursor = mContext.getContentResolver().query(
+                MovieContract.GenreEntry.CONTENT_URI,
+                null,
+                null,
+                null,
+                null
+        );
+        assertEquals(0, genreCursor.getCount());
+        genreCursor.close();
+    }
+
+    public void testApplyBatch() throws Exception{
+        ArrayList<ContentProviderOperation> operations = new ArrayList<ContentProviderOperation>();
+        operations.add(ContentProviderOperation.newInsert(MovieContract.GenreEntry.CONTENT_URI)
+                .withValues(getGenreContentValues())
+                .build());
+        // Reference the genre inserted by the first operation.
+        operations.add(ContentProviderOperation.newInsert(MovieContract.MovieEntry.CONTENT_URI)
+                .withValue(MovieContract.MovieEntry.COLUMN_NAME, TEST_MOVIE_NAME)
+                .withValue(MovieContract.MovieEntry.COLUMN_RELEASE_DATE, TEST_MOVIE_RELEASE_DATE)
+                .withValueBackReference(MovieContract.MovieEntry.COLUMN_GENRE, 0)
+                .build());
+
+        ContentProviderResult[] results = mContext.getContentResolver().applyBatch(MovieContract.CONTENT_AUTHORITY, operations);
+        assertEquals(2, results.length);
+
+        long genreRowId = ContentUris.parseId(results[0].uri);
+        Cursor movieCursor = mContext.getContentResolver().query(
+                results[1].uri,
+                null,
+                null,
+                null,
+                null
+        );
+        validateCursor(movieCursor, getMovieContentValues(genreRowId));
+        movieCursor.close();
+    }
+
+    public void testMoviePages(){
+        ContentValues genreContentValues = getGenreContentValues();
+        Uri genreInsertUri = mContext.getContentResolver().insert(MovieContract.GenreEntry.CONTENT_URI, genreContentValues);
+        long genreRowId = ContentUris.parseId(genreInsertUri);
+
+        // Release dates run backwards, so the two orders differ.
+        ContentValues[] bulkValues = new ContentValues[5];
+        for(int i = 0; i < bulkValues.length; i++){
+            bulkValues[i] = getMovieContentValues(genreRowId);
+            bulkValues[i].put(MovieContract.MovieEntry.COLUMN_RELEASE_DATE, "200" + (bulkValues.length - i) + "-01-01");
+        }
+        mContext.getContentResolver().bulkInsert(MovieContract.MovieEntry.CONTENT_URI, bulkValues);
+
+        String[] projection = new String[]{MovieContract.MovieEntry._ID, MovieContract.MovieEntry.COLUMN_RELEASE_DATE};
+
+        // Page by identifier.
+        long afterId = -1;
+        int rows = 0;
+        int pageRows;
+        do{
+            Cursor pageCursor = mContext.getContentResolver().query(
+                    MovieContract.MovieEntry.buildMoviePageUri(afterId, 2),
+                    projection,
+                    null,
+                    null,
+                    null
+            );
+            pageRows = pageCursor.getCount();
+            assertTrue(pageRows <= 2);
+            while(pageCursor.moveToNext()){
+                assertTrue(pageCursor.getLong(0) > afterId);
+                afterId = pageCursor.getLong(0);
+                rows++;
+            }
+            pageCursor.close();
+        } while(pageRows > 0);
+        assertEquals(bulkValues.length, rows);
+
+        // Page by release date.
+        String afterDate = null;
+        rows = 0;
+        do{
+            Cursor pageCursor = mContext.getContentResolver().query(
+                    MovieContract.MovieEntry.buildMoviePageByReleaseDateUri(afterDate, afterId, 2),
+                    projection,
+                    null,
+                    null,
+                    null
+            );
+            pageRows = pageCursor.getCount();
+            while(pageCursor.moveToNext()){
+                assertTrue(afterDate == null || pageCursor.getString(1).compareTo(afterDate) > 0);
+                afterDate = pageCursor.getString(1);
+                afterId = pageCursor.getLong(0);
+                rows++;
+            }
+            pageCursor.close();
+        } while(pageRows > 0);
+        assertEquals(bulkValues.length, rows);
+
+        // Page by release date, newest first.
+        afterDate = null;
+        rows = 0;
+        do{
+            Cursor pageCursor = mContext.getContentResolver().query(
+                    MovieContract.MovieEntry.buildMoviePageByReleaseDateDescendingUri(afterDate, afterId, 2),
+                    projection,
+                    null,
+                    null,
+                    null
+            );
+            pageRows = pageCursor.getCount();
+            while(pageCursor.moveToNext()){
+                assertTrue(afterDate == null || pageCursor.getString(1).compareTo(afterDate) < 0);
+                afterDate = pageCursor.getString(1);
+                afterId = pageCursor.getLong(0);
+                rows++;
+            }
+            pageCursor.close();
+        } while(pageRows > 0);
+        assertEquals(bulkValues.length, rows);
+    }
+
+    public void testReleaseDateRange(){
+        ContentValues genreContentValues = getGenreContentValues();
+        Uri genreInsertUri = mContext.getContentResolver().insert(MovieContract.GenreEntry.CONTENT_URI, genreContentValues);
+        long genreRowId = ContentUris.parseId(genreInsertUri);
+
+        ContentValues movieContentValues = getMovieContentValues(genreRowId);
+        mContext.getContentResolver().insert(MovieContract.MovieEntry.CONTENT_URI, movieContentValues);
+
+        // The release day is written along with the release date.
+        ContentValues expectedValues = new ContentValues(movieContentValues);
+        expectedValues.put(MovieContract.MovieEntry.COLUMN_RELEASE_DAY, MovieContract.MovieEntry.toReleaseDay(TEST_MOVIE_RELEASE_DATE));
+
+        // The release day isn't in the default projection, so it has to be asked for.
+        Cursor movieCursor = mContext.getContentResolver().query(
+                MovieContract.MovieEntry.withReleaseDateRange(MovieContract.MovieEntry.CONTENT_URI, "2001-01-01", TEST_MOVIE_RELEASE_DATE),
+                MovieContract.MovieEntry.COLUMNS,
+                null,
+                null,
+                null
+        );
+        validateCursor(movieCursor, expectedValues);
+        movieCursor.close();
+
+        movieCursor = mContext.getContentResolver().query(
+                MovieContract.MovieEntry.withReleaseDateRange(MovieContract.MovieEntry.CONTENT_URI, "2001-11-15", null),
+                null,
+                null,
+                null,
+                null
+        );
+        assertEquals(0, movieCursor.getCount());
+        movieCursor.close();
+    }
+
+    public void testToReleaseDay(){
+        assertEquals(Long.valueOf(0), MovieContract.MovieEntry.toReleaseDay("1970-01-01"));
+        assertEquals(Long.valueOf(-1), MovieContract.MovieEntry.toReleaseDay("1969-12-31T23:59"));
+
+        // Anything the upgrade's GLOB wouldn't take as a date has no release day either.
+        assertNull(MovieContract.MovieEntry.toReleaseDay("+001-01-01"));
+        assertNull(MovieContract.MovieEntry.toReleaseDay("2001-+1-01"));
+        assertNull(MovieContract.MovieEntry.toReleaseDay("\u0662\u0660\u0660\u0661-01-01"));
+        assertNull(MovieContract.MovieEntry.toReleaseDay("2001-01-01x"));
+    }
+
+    public void testReadMovieWithGenre(){
+        ContentValues genreContentValues = getGenreContentValues();
+        Uri genreInsertUri = mContext.getContentResolver().insert(MovieContract.GenreEntry.CONTENT_URI, genreContentValues);
+        long genreRowId = ContentUris.parseId(genreInsertUri);
+
+        ContentValues movieContentValues = getMovieContentValues(genreRowId);
+        Uri movieInsertUri = mContext.getContentResolver().insert(MovieContract.MovieEntry.CONTENT_URI, movieContentValues);
+
+        // The movie's _ID must come back, not the genre's.
+        ContentValues expectedValues = new ContentValues(movieContentValues);
+        expectedValues.put(MovieContract.MovieEntry._ID, ContentUris.parseId(movieInsertUri));
+        expectedValues.put(MovieContract.MovieEntry.COLUMN_GENRE_NAME, TEST_GENRE_NAME);
+
+        Cursor movieCursor = mContext.getContentResolver().query(
+                MovieContract.MovieEntry.WITH_GENRE_URI,
+                null,
+                null,
+                null,
+                null
+        );
+        validateCursor(movieCursor, expectedValues);
+        movieCursor.close();
+    }
+
+    public void testProjections(){
+        // Without a projection only the default columns are read.
+        Cursor movieCursor = mContext.getContentResolver().query(
+                MovieContract.MovieEntry.CONTENT_URI,
+                null,
+                null,
+                null,
+                null
+        );
+        assertTrue(Arrays.equals(MovieContract.MovieEntry.DEFAULT_PROJECTION, movieCursor.getColumnNames()));
+        movieCursor.close();
+
+        movieCursor = mContext.getContentResolver().query(
+                MovieContract.MovieEntry.WITH_GENRE_URI,
+                null,
+                null,
+                null,
+                null
+        );
+        assertTrue(Arrays.equals(MovieContract.MovieEntry.WITH_GENRE_DEFAULT_PROJECTION, movieCursor.getColumnNames()));
+        movieCursor.close();
+
+        // Columns the URI doesn't have are rejected, instead of being passed through to SQLite.
+        try{
+            mContext.getContentResolver().query(
+                    MovieContract.MovieEntry.CONTENT_URI,
+                    new String[]{"MAX(" + MovieContract.MovieEntry._ID + ")"},
+                    null,
+                    null,
+                    null
+            );
+            fail("Expected the expression to be rejected.");
+        } catch(IllegalArgumentException expected){
+            // Expected.
+        }
+
+        try{
+            mContext.getContentResolver().query(
+                    MovieContract.GenreEntry.CONTENT_URI,
+                    new String[]{MovieContract.MovieEntry.COLUMN_NAME},
+                    null,
+                    null,
+                    null
+            );
+            fail("Expected the movie column to be rejected.");
+        } catch(IllegalArgumentException expected){
+            // Expected.
+        }
+    }
+
+    public void testSearchMovies(){
+        ContentValues genreContentValues = getGenreContentValues();
+        Uri genreInsertUri = mContext.getContentResolver().insert(MovieContract.GenreEntry.CONTENT_URI, genreContentValues);
+        long genreRowId = ContentUris.parseId(genreInsertUri);
+
+        ContentValues movieContentValues = getMovieContentValues(genreRowId);
+        Uri movieInsertUri = mContext.getContentResolver().insert(MovieContract.MovieEntry.CONTENT_URI, movieContentValues);
+        long movieRowId = ContentUris.parseId(movieInsertUri);
+
+        // Prefixes of any of the words match, in any case.
+        Cursor searchCursor = mContext.getContentResolver().query(
+                MovieContract.MovieEntry.buildMovieSearchUri("harry sorc"),
+                null,
+                null,
+                null,
+                null
+        );
+        validateCursor(searchCursor, movieContentValues);
+        searchCursor.close();
+
+        // Renaming the movie has to update the index.
+        ContentValues updatedMovieContentValues = new ContentValues(movieContentValues);
+        updatedMovieContentValues.put(MovieContract.MovieEntry.COLUMN_NAME, TEST_UPDATE_MOVIE_NAME);
+        mContext.getContentResolver().update(
+                MovieContract.MovieEntry.CONTENT_URI,
+                updatedMovieContentValues,
+                MovieContract.MovieEntry._ID + " = ?",
+                new String[]{String.valueOf(movieRowId)}
+        );
+
+        searchCursor = mContext.getContentResolver().query(
+                MovieContract.MovieEntry.buildMovieSearchUri("Sorc"),
+                null,
+                null,
+                null,
+                null
+        );
+        assertEquals(0, searchCursor.getCount());
+        searchCursor.close();
+
+        searchCursor = mContext.getContentResolver().query(
+                MovieContract.MovieEntry.buildMovieSearchUri("philosopher's"),
+                null,
+                null,
+                null,
+                null
+        );
+        validateCursor(searchCursor, updatedMovieContentValues);
+        searchCursor.close();
+    }
+
     private ContentValues getGenreContentValues(){
         ContentValues values = new ContentValues();
         values.put(MovieContract.GenreEntry.COLUMN_NAME, TEST_GENRE_NAME);
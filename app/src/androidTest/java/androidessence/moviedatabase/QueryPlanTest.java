@@ -0,0 +1,147 @@
+package androidessence.moviedatabase;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteQueryBuilder;
+import android.test.AndroidTestCase;
+
+/**
+ * Verifies with EXPLAIN QUERY PLAN that the common movie queries are answered from an index,
+ * instead of scanning or sorting the whole table.
+ */
+public class QueryPlanTest extends AndroidTestCase {
+    private static final String TEMP_SORT = "TEMP B-TREE";
+
+    private MovieDBHelper mOpenHelper;
+    private SQLiteDatabase mDatabase;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mOpenHelper = new MovieDBHelper(mContext);
+        mDatabase = mOpenHelper.getReadableDatabase();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mOpenHelper.close();
+        super.tearDown();
+    }
+
+    public void testFilterByGenre(){
+        String plan = explainMovieQuery(
+                MovieContract.MovieEntry.COLUMN_GENRE + " = ?",
+                null,
+                "1"
+        );
+        assertUsesIndex(plan, MovieContract.MovieEntry.INDEX_GENRE_RELEASE_DATE);
+    }
+
+    public void testSortByReleaseDate(){
+        String plan = explainMovieQuery(
+                null,
+                MovieContract.MovieEntry.COLUMN_RELEASE_DATE
+        );
+        assertUsesIndex(plan, MovieContract.MovieEntry.INDEX_LIST);
+        assertFalse(plan, plan.contains(TEMP_SORT));
+    }
+
+    public void testFilterByGenreSortByReleaseDate(){
+        String plan = explainMovieQuery(
+                MovieContract.MovieEntry.COLUMN_GENRE + " = ?",
+                MovieContract.MovieEntry.COLUMN_RELEASE_DATE,
+                "1"
+        );
+        assertUsesIndex(plan, MovieContract.MovieEntry.INDEX_GENRE_RELEASE_DATE);
+        assertFalse(plan, plan.contains(TEMP_SORT));
+    }
+
+    public void testPageByReleaseDate(){
+        // The same query MovieProvider runs for a page after the first one.
+        String plan = explainMovieQuery(
+                MovieContract.MovieEntry.COLUMN_RELEASE_DATE + " >= ? AND (" +
+                        MovieContract.MovieEntry.COLUMN_RELEASE_DATE + " > ? OR " +
+                        MovieContract.MovieEntry._ID + " > ?)",
+                MovieContract.MovieEntry.COLUMN_RELEASE_DATE + ", " + MovieContract.MovieEntry._ID,
+                "2001-11-14", "2001-11-14", "1"
+        );
+        assertUsesIndex(plan, MovieContract.MovieEntry.INDEX_LIST);
+        assertFalse(plan, plan.contains(TEMP_SORT));
+    }
+
+    public void testReleaseDateRange(){
+        // MovieProvider writes the release days of a date range into the selection.
+        String releaseDay = MovieContract.MovieEntry.TABLE_NAME + "." + MovieContract.MovieEntry.COLUMN_RELEASE_DAY;
+        String plan = explainMovieQuery(
+                releaseDay + " >= 11322 AND " + releaseDay + " <= 11686",
+                null
+        );
+        assertUsesIndex(plan, MovieContract.MovieEntry.INDEX_RELEASE_DAY);
+    }
+
+    public void testFindByNameAndReleaseDate(){
+        // The lookup an upsert runs to find a movie that already exists.
+        String plan = explainMovieQuery(
+                MovieContract.MovieEntry.COLUMN_NAME + " = ? AND " +
+                        MovieContract.MovieEntry.COLUMN_RELEASE_DATE + " = ?",
+                null,
+                "Up", "2009-05-29"
+        );
+        assertUsesIndex(plan, MovieContract.MovieEntry.INDEX_NAME_RELEASE_DATE);
+    }
+
+    public void testMovieListSortByReleaseDate(){
+        // The query MovieListActivity loads, newest movies first, with each movie's genre.
+        String movie = MovieContract.MovieEntry.TABLE_NAME;
+        String genre = MovieContract.GenreEntry.TABLE_NAME;
+        String sql = SQLiteQueryBuilder.buildQueryString(
+                false,
+                movie + " LEFT JOIN " + genre + " ON " + genre + "." + MovieContract.GenreEntry._ID +
+                        " = " + movie + "." + MovieContract.MovieEntry.COLUMN_GENRE,
+                new String[]{movie + "." + MovieContract.MovieEntry._ID, MovieContract.MovieEntry.COLUMN_NAME,
+                        MovieContract.MovieEntry.COLUMN_RELEASE_DATE, MovieContract.MovieEntry.COLUMN_GENRE_NAME},
+                null,
+                null,
+                null,
+                MovieContract.MovieEntry.COLUMN_RELEASE_DATE + " DESC",
+                null
+        );
+        String plan = explain(sql);
+        // Every movie column the list shows is in the index, so the table is never read.
+        assertTrue(plan, plan.contains("COVERING INDEX " + MovieContract.MovieEntry.INDEX_LIST));
+        assertFalse(plan, plan.contains(TEMP_SORT));
+    }
+
+    /**
+     * Explains a query for every column of the movie table.
+     * @return The detail of every step in the plan, one per line.
+     */
+    private String explainMovieQuery(String selection, String sortOrder, String... selectionArgs){
+        String sql = SQLiteQueryBuilder.buildQueryString(
+                false,
+                MovieContract.MovieEntry.TABLE_NAME,
+                null,
+                selection,
+                null,
+                null,
+                sortOrder,
+                null
+        );
+        return explain(sql, selectionArgs);
+    }
+
+    private String explain(String sql, String... selectionArgs){
+        Cursor cursor = mDatabase.rawQuery("EXPLAIN QUERY PLAN " + sql, selectionArgs);
+        StringBuilder plan = new StringBuilder();
+        int detail = cursor.getColumnIndexOrThrow("detail");
+        while(cursor.moveToNext()){
+            plan.append(cursor.getString(detail)).append('\n');
+        }
+        cursor.close();
+        return plan.toString();
+    }
+
+    private static void assertUsesIndex(String plan, String index){
+        assertTrue(plan, plan.contains("INDEX " + index));
+    }
+}
@@ -0,0 +1,103 @@
+package androidessence.moviedatabase;
+
+import android.content.ContentResolver;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.HandlerThread;
+
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Coalesces the change notifications sent by MovieProvider. Every changed URI is collapsed into
+ * the root URI of its table, and each root is notified at most once per window, however many
+ * times it changed. Observers of a root are also told about changes to any URI beneath it, so
+ * nothing is missed; they just hear about a burst of writes once instead of once per row.
+ */
+class ChangeNotifier {
+    private final ContentResolver mResolver;
+    private final long mWindowMillis;
+    private final Handler mHandler;
+
+    // The roots that have changed since the last flush.
+    private final Set<Uri> mDirty = new LinkedHashSet<Uri>();
+
+    private final Runnable mFlush = new Runnable() {
+        @Override
+        public void run() {
+            flush();
+        }
+    };
+
+    /**
+     * @param windowMillis How long to collect changes for before notifying observers. 0 notifies
+     *                     them straight away.
+     */
+    ChangeNotifier(ContentResolver resolver, long windowMillis){
+        mResolver = resolver;
+        mWindowMillis = windowMillis;
+
+        if(windowMillis > 0){
+            HandlerThread thread = new HandlerThread(ChangeNotifier.class.getSimpleName());
+            thread.start();
+            mHandler = new Handler(thread.getLooper());
+        } else{
+            mHandler = null;
+        }
+    }
+
+    /**
+     * Marks the uri as changed. Observers of its root are notified when the current window ends,
+     * or when {@link #flush} is called, whichever comes first.
+     */
+    void notifyChange(Uri uri){
+        if(mHandler == null){
+            mResolver.notifyChange(getRoot(uri), null);
+            return;
+        }
+
+        synchronized(mDirty){
+            // The first change opens the window, later ones just join it.
+            if(mDirty.add(getRoot(uri)) && mDirty.size() == 1){
+                mHandler.postDelayed(mFlush, mWindowMillis);
+            }
+        }
+    }
+
+    /**
+     * Notifies observers of every root that has changed, without waiting for the window to end.
+     * Used once a batch has been committed, so its changes show up immediately.
+     */
+    void flush(){
+        List<Uri> dirty;
+        synchronized(mDirty){
+            if(mDirty.isEmpty()){
+                return;
+            }
+            dirty = new ArrayList<Uri>(mDirty);
+            mDirty.clear();
+            mHandler.removeCallbacks(mFlush);
+        }
+
+        for(Uri uri : dirty){
+            mResolver.notifyChange(uri, null);
+        }
+    }
+
+    /**
+     * Returns the URI of the table the uri belongs to, such as the movie URI for a single movie.
+     */
+    private static Uri getRoot(Uri uri){
+        List<String> segments = uri.getPathSegments();
+        if(segments.size() <= 1){
+            return uri;
+        }
+        return new Uri.Builder()
+                .scheme(uri.getScheme())
+                .authority(uri.getAuthority())
+                .appendPath(segments.get(0))
+                .build();
+    }
+}
@@ -0,0 +1,109 @@
+package androidessence.moviedatabase;
+
+import android.database.Cursor;
+import android.database.SQLException;
+import android.database.sqlite.SQLiteDatabase;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+/**
+ * Opens the database on a background thread as soon as MovieProvider is created, instead of on
+ * whichever thread queries it first, which is often the main thread. Opening creates or
+ * upgrades the schema and compiles the cached statements. The genres and the first page of the
+ * movie list are then read, so their pages are already in SQLite's page cache when the list is
+ * first loaded.
+ *
+ * Anything that uses the database calls {@link #await()} first, so an early query waits for
+ * the warm up to finish instead of opening the database a second time alongside it.
+ */
+class DatabaseWarmUp {
+    private static final String LOG_TAG = DatabaseWarmUp.class.getSimpleName();
+
+    private final FutureTask<Void> mTask;
+
+    /**
+     * @param movieCount How many movies at the top of the list to read. 0 only opens the
+     *                   database and reads the genres.
+     */
+    DatabaseWarmUp(final MovieDBHelper openHelper, final int movieCount){
+        mTask = new FutureTask<Void>(new Callable<Void>() {
+            @Override
+            public Void call() {
+                warmUp(openHelper, movieCount);
+                return null;
+            }
+        });
+    }
+
+    /**
+     * Starts the warm up on its own thread.
+     */
+    void start(){
+        new Thread(mTask, LOG_TAG).start();
+    }
+
+    /**
+     * Waits for the warm up to finish. Returns straight away once it has.
+     */
+    void await(){
+        try{
+            mTask.get();
+        } catch(InterruptedException e){
+            // The caller opens the database itself, so keep the interrupt for it to handle.
+            Thread.currentThread().interrupt();
+        } catch(ExecutionException e){
+            // The warm up has already logged why it failed. The caller opens the database
+            // itself and gets the same error, if it still happens.
+        }
+    }
+
+    private static void warmUp(MovieDBHelper openHelper, int movieCount){
+        long start = SystemClock.elapsedRealtime();
+        try{
+            SQLiteDatabase db = openHelper.getWritableDatabase();
+            long opened = SystemClock.elapsedRealtime();
+
+            GenreCache.getInstance().getSnapshot(db);
+            if(movieCount > 0){
+                readMovies(db, movieCount);
+            }
+
+            Log.d(LOG_TAG, "Opened the database in " + (opened - start) + " ms, and read the first "
+                    + movieCount + " movies in " + (SystemClock.elapsedRealtime() - opened) + " ms");
+        } catch(SQLException e){
+            Log.w(LOG_TAG, "Unable to warm up the database", e);
+        }
+    }
+
+    /**
+     * Reads the top of the movie list the same way its first page does, through the list index,
+     * so the index pages it covers are cached.
+     */
+    private static void readMovies(SQLiteDatabase db, int movieCount){
+        Cursor cursor = db.query(
+                MovieContract.MovieEntry.TABLE_NAME,
+                new String[]{
+                        MovieContract.MovieEntry._ID,
+                        MovieContract.MovieEntry.COLUMN_NAME,
+                        MovieContract.MovieEntry.COLUMN_RELEASE_DATE,
+                        MovieContract.MovieEntry.COLUMN_GENRE
+                },
+                null,
+                null,
+                null,
+                null,
+                MovieContract.MovieEntry.COLUMN_RELEASE_DATE + " DESC, " + MovieContract.MovieEntry._ID + " DESC",
+                String.valueOf(movieCount)
+        );
+        try{
+            // Filling the window is what runs the query.
+            cursor.getCount();
+        } finally{
+            cursor.close();
+        }
+    }
+}
@@ -0,0 +1,193 @@
+package androidessence.moviedatabase;
+
+import android.database.Cursor;
+import android.database.MatrixCursor;
+import android.database.sqlite.SQLiteDatabase;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Keeps every genre in memory so genre lookups don't have to go back to SQLite. There is only
+ * one cache per process, and MovieProvider invalidates it whenever a genre change is committed.
+ *
+ * Reads are lock free: the genres are held in an immutable snapshot that is replaced as a
+ * whole, never modified.
+ */
+class GenreCache {
+    private static final GenreCache sInstance = new GenreCache();
+
+    private static final String[] COLUMNS = new String[]{
+            MovieContract.GenreEntry._ID,
+            MovieContract.GenreEntry.COLUMN_NAME
+    };
+
+    private volatile Snapshot mSnapshot;
+
+    /**
+     * Incremented every time the cache is invalidated. A snapshot is only kept if no
+     * invalidation happened while it was being loaded, otherwise it may already be stale.
+     */
+    private int mGeneration;
+
+    private GenreCache(){
+    }
+
+    static GenreCache getInstance(){
+        return sInstance;
+    }
+
+    /**
+     * Returns the current snapshot of the genres, loading it from the database if needed.
+     * @param db The database to load the genres from.
+     */
+    Snapshot getSnapshot(SQLiteDatabase db){
+        Snapshot snapshot = mSnapshot;
+        if(snapshot != null){
+            return snapshot;
+        }
+
+        int generation;
+        synchronized(this){
+            generation = mGeneration;
+        }
+
+        snapshot = load(db);
+
+        synchronized(this){
+            if(generation == mGeneration){
+                mSnapshot = snapshot;
+            }
+        }
+        return snapshot;
+    }
+
+    /**
+     * Throws away the current snapshot, so the next read loads the genres again.
+     */
+    synchronized void invalidate(){
+        mGeneration++;
+        mSnapshot = null;
+    }
+
+    private static Snapshot load(SQLiteDatabase db){
+        Cursor cursor = db.query(
+                MovieContract.GenreEntry.TABLE_NAME,
+                COLUMNS,
+                null,
+                null,
+                null,
+                null,
+                MovieContract.GenreEntry._ID
+        );
+
+        try{
+            long[] ids = new long[cursor.getCount()];
+            String[] names = new String[ids.length];
+            for(int i = 0; cursor.moveToNext(); i++){
+                ids[i] = cursor.getLong(0);
+                names[i] = cursor.getString(1);
+            }
+            return new Snapshot(ids, names);
+        } finally{
+            cursor.close();
+        }
+    }
+
+    /**
+     * An immutable copy of the genre table, sorted by identifier.
+     */
+    static final class Snapshot {
+        private final long[] mIds;
+        private final String[] mNames;
+        private final Map<String, Long> mIdsByName;
+
+        private Snapshot(long[] ids, String[] names){
+            mIds = ids;
+            mNames = names;
+            mIdsByName = new HashMap<String, Long>(ids.length * 2);
+            for(int i = 0; i < ids.length; i++){
+                mIdsByName.put(names[i], ids[i]);
+            }
+        }
+
+        /**
+         * @return The name of the genre, or null if there is no genre with this identifier.
+         */
+        String getName(long id){
+            int index = Arrays.binarySearch(mIds, id);
+            return index >= 0 ? mNames[index] : null;
+        }
+
+        /**
+         * @return The identifier of the genre, or -1 if there is no genre with this name.
+         */
+        long getId(String name){
+            Long id = mIdsByName.get(name);
+            return id != null ? id : -1;
+        }
+
+        /**
+         * Builds a cursor over every genre, in order of their identifiers.
+         * @return The cursor, or null if the projection asks for a column that isn't cached.
+         */
+        Cursor query(String[] projection){
+            int[] columns = resolve(projection);
+            if(columns == null){
+                return null;
+            }
+
+            MatrixCursor cursor = new MatrixCursor(projection != null ? projection : COLUMNS, mIds.length);
+            for(int i = 0; i < mIds.length; i++){
+                addRow(cursor, columns, i);
+            }
+            return cursor;
+        }
+
+        /**
+         * Builds a cursor over a single genre, which is empty if the genre doesn't exist.
+         * @return The cursor, or null if the projection asks for a column that isn't cached.
+         */
+        Cursor query(String[] projection, long id){
+            int[] columns = resolve(projection);
+            if(columns == null){
+                return null;
+            }
+
+            MatrixCursor cursor = new MatrixCursor(projection != null ? projection : COLUMNS, 1);
+            int index = Arrays.binarySearch(mIds, id);
+            if(index >= 0){
+                addRow(cursor, columns, index);
+            }
+            return cursor;
+        }
+
+        private void addRow(MatrixCursor cursor, int[] columns, int index){
+            Object[] row = new Object[columns.length];
+            for(int i = 0; i < columns.length; i++){
+                row[i] = columns[i] == 0 ? (Object) mIds[index] : mNames[index];
+            }
+            cursor.addRow(row);
+        }
+
+        /**
+         * Maps every column in the projection to its position in {@link #COLUMNS}.
+         * @return The positions, or null if one of the columns is unknown.
+         */
+        private static int[] resolve(String[] projection){
+            if(projection == null){
+                projection = COLUMNS;
+            }
+
+            int[] columns = new int[projection.length];
+            for(int i = 0; i < projection.length; i++){
+                columns[i] = Arrays.asList(COLUMNS).indexOf(projection[i]);
+                if(columns[i] == -1){
+                    return null;
+                }
+            }
+            return columns;
+        }
+    }
+}
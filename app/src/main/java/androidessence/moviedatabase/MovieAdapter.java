@@ -0,0 +1,350 @@
+package androidessence.moviedatabase;
+
+import android.content.Context;
+import android.util.LongSparseArray;
+import android.view.LayoutInflater;
+import android.view.View;
+import android.view.ViewGroup;
+import android.widget.BaseAdapter;
+import android.widget.TextView;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Shows a movie with its release date and genre in each row of a list, newest first. The
+ * movies are loaded a page at a time by MoviePageLoader. Binding a row only reads the movie it
+ * shows, so it never touches the database.
+ *
+ * Only a window of at most {@link #MAX_PAGES} pages is kept, so memory stays flat however far
+ * the list is scrolled. Adding a page at one end of the window drops a page from the other end,
+ * which is loaded again if the list scrolls back to it. The window runs from its start to its
+ * end, the first and last movies read. Changes to the movies are applied to the window in
+ * place: a movie that was inserted, or whose release date changed, is put where it now belongs
+ * if that is inside the window, and otherwise left for the page it falls in to read.
+ */
+class MovieAdapter extends BaseAdapter {
+    // The most pages kept at a time.
+    static final int MAX_PAGES = 5;
+
+    private final LayoutInflater mInflater;
+    private final int mPageSize;
+    private final List<Movie> mMovies = new ArrayList<Movie>();
+
+    // The position of every movie by its identifier, or null if it has to be worked out again
+    // because movies were added, removed or moved since.
+    private LongSparseArray<Integer> mPositions;
+
+    // The release date and identifier of the first movie of the window, where the page before
+    // it ends. Only used if the window doesn't start at the top of the list.
+    private String mStartReleaseDate;
+    private long mStartId = -1;
+
+    // The release date and identifier of the last movie of the window, where the next page
+    // starts, or null before the first page has been loaded.
+    private String mEndReleaseDate;
+    private long mEndId = -1;
+
+    // Whether the window starts at the top of the list, and reaches its bottom.
+    private boolean mAtStart;
+    private boolean mComplete;
+
+    /**
+     * @param pageSize The number of movies in a full page.
+     */
+    MovieAdapter(Context context, int pageSize){
+        mInflater = LayoutInflater.from(context);
+        mPageSize = pageSize;
+    }
+
+    /**
+     * Replaces every movie with the first page of the list.
+     */
+    void setFirstPage(MoviePageLoader.Page page){
+        mMovies.clear();
+        mMovies.addAll(page.mMovies);
+        mPositions = null;
+        mAtStart = true;
+        mEndReleaseDate = null;
+        mEndId = -1;
+        updateEnd(page.mLast);
+        notifyDataSetChanged();
+    }
+
+    /**
+     * Adds a page at the end of the window, and drops pages from its start if the window has
+     * grown too large.
+     * @return The number of movies dropped from the start, or -1 if the page wasn't added since
+     * it doesn't start at the end of the window.
+     */
+    int addNextPage(MoviePageLoader.Page page){
+        if(page.mPrevious || mComplete || mEndReleaseDate == null
+                || !mEndReleaseDate.equals(page.mAfterReleaseDate) || mEndId != page.mAfterId){
+            return -1;
+        }
+
+        mMovies.addAll(page.mMovies);
+        updateEnd(page.mLast);
+
+        int dropped = 0;
+        while(mMovies.size() > MAX_PAGES * mPageSize){
+            mMovies.subList(0, mPageSize).clear();
+            dropped += mPageSize;
+        }
+        if(dropped > 0){
+            mAtStart = false;
+            updateStart();
+        }
+
+        mPositions = null;
+        notifyDataSetChanged();
+        return dropped;
+    }
+
+    /**
+     * Adds a page at the start of the window, and drops pages from its end if the window has
+     * grown too large.
+     * @return The number of movies added at the start, or -1 if the page wasn't added since it
+     * doesn't end at the start of the window.
+     */
+    int addPreviousPage(MoviePageLoader.Page page){
+        if(!page.mPrevious || mAtStart || !mStartReleaseDate.equals(page.mAfterReleaseDate)
+                || mStartId != page.mAfterId){
+            return -1;
+        }
+
+        mMovies.addAll(0, page.mMovies);
+        mAtStart = page.mLast;
+        updateStart();
+
+        boolean dropped = false;
+        while(mMovies.size() > MAX_PAGES * mPageSize){
+            mMovies.subList(mMovies.size() - mPageSize, mMovies.size()).clear();
+            dropped = true;
+        }
+        if(dropped){
+            updateEnd(false);
+        }
+
+        mPositions = null;
+        notifyDataSetChanged();
+        return page.mMovies.size();
+    }
+
+    private void updateStart(){
+        if(!mMovies.isEmpty()){
+            Movie first = mMovies.get(0);
+            mStartReleaseDate = first.mReleaseDate;
+            mStartId = first.mId;
+        }
+    }
+
+    private void updateEnd(boolean complete){
+        if(!mMovies.isEmpty()){
+            Movie last = mMovies.get(mMovies.size() - 1);
+            mEndReleaseDate = last.mReleaseDate;
+            mEndId = last.mId;
+        }
+        mComplete = complete;
+    }
+
+    /**
+     * Returns whether the window starts at the top of the list.
+     */
+    boolean isAtStart(){
+        return mAtStart;
+    }
+
+    /**
+     * Returns whether the window reaches the bottom of the list.
+     */
+    boolean isComplete(){
+        return mComplete;
+    }
+
+    /**
+     * Returns the release date of the first movie of the window.
+     */
+    String getStartReleaseDate(){
+        return mStartReleaseDate;
+    }
+
+    /**
+     * Returns the identifier of the first movie of the window.
+     */
+    long getStartId(){
+        return mStartId;
+    }
+
+    /**
+     * Returns the release date of the last movie of the window, or null if no page has been
+     * loaded.
+     */
+    String getEndReleaseDate(){
+        return mEndReleaseDate;
+    }
+
+    /**
+     * Returns the identifier of the last movie of the window.
+     */
+    long getEndId(){
+        return mEndId;
+    }
+
+    /**
+     * Shows the new values of a movie that was inserted or updated, moving it to where it now
+     * belongs. Call {@link #notifyDataSetChanged()} once every change has been applied.
+     */
+    void putMovie(long id, String name, String releaseDate, String genreName){
+        int position = positionOf(id);
+        if(position >= 0 && mMovies.get(position).mReleaseDate.equals(releaseDate)){
+            // Still in the same place.
+            mMovies.set(position, new Movie(id, name, releaseDate, genreName));
+            return;
+        }
+
+        if(position >= 0){
+            mMovies.remove(position);
+            mPositions = null;
+        }
+        if(isInWindow(releaseDate, id)){
+            mMovies.add(insertionPoint(releaseDate, id), new Movie(id, name, releaseDate, genreName));
+            mPositions = null;
+        }
+    }
+
+    /**
+     * Removes a movie that was deleted, if it is in the window. Call
+     * {@link #notifyDataSetChanged()} once every change has been applied.
+     */
+    void removeMovie(long id){
+        int position = positionOf(id);
+        if(position >= 0){
+            mMovies.remove(position);
+            mPositions = null;
+        }
+    }
+
+    /**
+     * Finds where a movie goes in the window, which is always kept in order.
+     */
+    private int insertionPoint(String releaseDate, long id){
+        int low = 0;
+        int high = mMovies.size();
+        while(low < high){
+            int middle = (low + high) >>> 1;
+            Movie movie = mMovies.get(middle);
+            if(compare(movie.mReleaseDate, movie.mId, releaseDate, id) < 0){
+                low = middle + 1;
+            } else{
+                high = middle;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * Returns whether a movie belongs in the part of the list the window covers.
+     */
+    private boolean isInWindow(String releaseDate, long id){
+        if(!mAtStart && compare(releaseDate, id, mStartReleaseDate, mStartId) < 0){
+            return false;
+        }
+        return mComplete || (mEndReleaseDate != null && compare(releaseDate, id, mEndReleaseDate, mEndId) <= 0);
+    }
+
+    /**
+     * Compares two movies by their place in the list: newest first, and movies released on the
+     * same day in descending order of their identifiers.
+     */
+    private static int compare(String releaseDate, long id, String otherReleaseDate, long otherId){
+        int order = otherReleaseDate.compareTo(releaseDate);
+        if(order != 0){
+            return order;
+        }
+        return otherId < id ? -1 : (otherId == id ? 0 : 1);
+    }
+
+    /**
+     * @return The position of the movie in the window, or -1 if it isn't in it.
+     */
+    private int positionOf(long id){
+        if(mPositions == null){
+            mPositions = new LongSparseArray<Integer>(mMovies.size());
+            for(int i = 0; i < mMovies.size(); i++){
+                mPositions.put(mMovies.get(i).mId, i);
+            }
+        }
+        Integer position = mPositions.get(id);
+        return position != null ? position : -1;
+    }
+
+    @Override
+    public int getCount() {
+        return mMovies.size();
+    }
+
+    @Override
+    public Movie getItem(int position) {
+        return mMovies.get(position);
+    }
+
+    @Override
+    public long getItemId(int position) {
+        return mMovies.get(position).mId;
+    }
+
+    @Override
+    public boolean hasStableIds() {
+        // Selected movies are kept by identifier as the list changes.
+        return true;
+    }
+
+    @Override
+    public View getView(int position, View convertView, ViewGroup parent) {
+        View view = convertView;
+        if(view == null){
+            view = mInflater.inflate(R.layout.list_item_movie, parent, false);
+            view.setTag(new ViewHolder(view));
+        }
+
+        ViewHolder holder = (ViewHolder) view.getTag();
+        Movie movie = mMovies.get(position);
+        holder.mName.setText(movie.mName);
+        holder.mReleaseDate.setText(movie.mReleaseDate);
+        holder.mGenre.setText(movie.mGenreName);
+        return view;
+    }
+
+    /**
+     * A movie in the list, with the name of its genre.
+     */
+    static final class Movie {
+        private final long mId;
+        private final String mName;
+        private final String mReleaseDate;
+        private final String mGenreName;
+
+        Movie(long id, String name, String releaseDate, String genreName){
+            mId = id;
+            mName = name;
+            mReleaseDate = releaseDate;
+            mGenreName = genreName;
+        }
+    }
+
+    /**
+     * Holds the views of a row.
+     */
+    private static final class ViewHolder {
+        private final TextView mName;
+        private final TextView mReleaseDate;
+        private final TextView mGenre;
+
+        private ViewHolder(View view){
+            mName = (TextView) view.findViewById(R.id.movie_name);
+            mReleaseDate = (TextView) view.findViewById(R.id.movie_release_date);
+            mGenre = (TextView) view.findViewById(R.id.movie_genre);
+        }
+    }
+}
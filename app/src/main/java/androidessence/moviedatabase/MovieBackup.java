@@ -0,0 +1,339 @@
+package androidessence.moviedatabase;
+
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.os.Bundle;
+import android.os.ParcelFileDescriptor;
+import android.util.JsonReader;
+import android.util.JsonToken;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.io.Writer;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Set;
+
+/**
+ * Backs up and restores every genre and movie. A backup is newline delimited JSON: a header
+ * object with the format and its version, then one object per genre or movie. Each genre comes
+ * before the first movie in it, and genres without movies come last. Each row object has a
+ * type, and the columns of the row under their column names.
+ *
+ * Backups are written by MovieProvider through {@link MovieContract#BACKUP_URI}, and restored
+ * with {@link MovieContract#METHOD_RESTORE}. Both are streamed, so neither holds the whole
+ * database in memory.
+ */
+public class MovieBackup {
+    public static final String MIME_TYPE = "application/x-ndjson";
+
+    /**
+     * The version of the format written by this class. Newer versions can't be restored.
+     */
+    public static final int VERSION = 1;
+
+    private static final String FORMAT = "movieDatabase";
+    private static final String KEY_FORMAT = "format";
+    private static final String KEY_VERSION = "version";
+    private static final String KEY_TYPE = "type";
+    private static final String TYPE_GENRE = "genre";
+    private static final String TYPE_MOVIE = "movie";
+
+    // The number of movies read from the database at a time.
+    private static final int PAGE_SIZE = 1000;
+
+    private static final String[] GENRE_COLUMNS = new String[]{
+            MovieContract.GenreEntry._ID,
+            MovieContract.GenreEntry.COLUMN_NAME
+    };
+
+    // The release day isn't backed up, it is worked out from the release date on restore.
+    private static final String[] MOVIE_COLUMNS = new String[]{
+            MovieContract.MovieEntry._ID,
+            MovieContract.MovieEntry.COLUMN_NAME,
+            MovieContract.MovieEntry.COLUMN_RELEASE_DATE,
+            MovieContract.MovieEntry.COLUMN_GENRE
+    };
+
+    // A page of movies, and the genre of each. The genre's columns follow the movie's, starting
+    // with the genre identifier, so the same row holds both.
+    private static final String MOVIE_PAGE_SQL =
+            "SELECT m." + MovieContract.MovieEntry._ID +
+                    ", m." + MovieContract.MovieEntry.COLUMN_NAME +
+                    ", m." + MovieContract.MovieEntry.COLUMN_RELEASE_DATE +
+                    ", m." + MovieContract.MovieEntry.COLUMN_GENRE +
+                    ", g." + MovieContract.GenreEntry.COLUMN_NAME +
+                    " FROM " + MovieContract.MovieEntry.TABLE_NAME + " m" +
+                    " JOIN " + MovieContract.GenreEntry.TABLE_NAME + " g" +
+                    " ON g." + MovieContract.GenreEntry._ID + " = m." + MovieContract.MovieEntry.COLUMN_GENRE +
+                    " WHERE m." + MovieContract.MovieEntry._ID + " > ? AND m." + MovieContract.MovieEntry._ID + " <= ?" +
+                    " ORDER BY m." + MovieContract.MovieEntry._ID +
+                    " LIMIT " + PAGE_SIZE;
+
+    // Where the genre's columns start in a row of MOVIE_PAGE_SQL.
+    private static final int MOVIE_PAGE_GENRE = 3;
+
+    /**
+     * Receives the rows of a backup as it is read.
+     */
+    interface RowHandler {
+        void onGenre(ContentValues values);
+
+        void onMovie(ContentValues values);
+    }
+
+    /**
+     * Writes a backup of the database to the output stream, which is left open.
+     */
+    public static void backup(ContentResolver resolver, OutputStream output) throws IOException{
+        InputStream input = resolver.openInputStream(MovieContract.BACKUP_URI);
+        try{
+            byte[] buffer = new byte[8192];
+            int read;
+            while((read = input.read(buffer)) != -1){
+                output.write(buffer, 0, read);
+            }
+        } finally{
+            input.close();
+        }
+    }
+
+    /**
+     * Replaces every genre and movie with the ones in the backup file. Either the whole backup
+     * is restored or nothing is changed.
+     * @return The number of genres and movies restored, under
+     * {@link MovieContract#EXTRA_GENRE_COUNT} and {@link MovieContract#EXTRA_MOVIE_COUNT}.
+     */
+    public static Bundle restore(ContentResolver resolver, File file) throws IOException{
+        ParcelFileDescriptor descriptor = ParcelFileDescriptor.open(file, ParcelFileDescriptor.MODE_READ_ONLY);
+        try{
+            Bundle extras = new Bundle();
+            extras.putParcelable(MovieContract.EXTRA_FILE_DESCRIPTOR, descriptor);
+            return resolver.call(MovieContract.BACKUP_URI, MovieContract.METHOD_RESTORE, null, extras);
+        } finally{
+            descriptor.close();
+        }
+    }
+
+    /**
+     * Writes every movie, with the genres they are in, and then the rest of the genres to the
+     * writer. Movies are read a page at a time, each page in order of identifier after the last
+     * one, so memory use stays flat and no transaction is held open that writers would have to
+     * wait for. Only movies that existed when the backup started are written.
+     *
+     * Each page reads its movies and their genres in a single statement, so it sees them at the
+     * same moment, and every movie written is in a genre written before it. Genres are written
+     * the first time a movie refers to them, even if they were added after the backup started.
+     */
+    static void write(SQLiteDatabase db, Writer writer) throws IOException{
+        long maxMovieId = DatabaseUtils.longForQuery(db,
+                "SELECT IFNULL(MAX(" + MovieContract.MovieEntry._ID + "), 0) FROM " +
+                        MovieContract.MovieEntry.TABLE_NAME, null);
+
+        writer.write("{\"" + KEY_FORMAT + "\":" + quote(FORMAT) +
+                ",\"" + KEY_VERSION + "\":" + VERSION + "}\n");
+
+        StringBuilder line = new StringBuilder();
+        Set<Long> genreIds = new HashSet<Long>();
+
+        String[] pageArgs = new String[]{"0", String.valueOf(maxMovieId)};
+        int rows;
+        Cursor cursor;
+        do{
+            cursor = db.rawQuery(MOVIE_PAGE_SQL, pageArgs);
+            try{
+                rows = 0;
+                while(cursor.moveToNext()){
+                    if(genreIds.add(cursor.getLong(MOVIE_PAGE_GENRE))){
+                        writeRow(writer, line, TYPE_GENRE, GENRE_COLUMNS, cursor, MOVIE_PAGE_GENRE);
+                    }
+                    writeRow(writer, line, TYPE_MOVIE, MOVIE_COLUMNS, cursor, 0);
+                    pageArgs[0] = cursor.getString(0);
+                    rows++;
+                }
+            } finally{
+                cursor.close();
+            }
+        } while(rows == PAGE_SIZE);
+
+        cursor = db.query(MovieContract.GenreEntry.TABLE_NAME, GENRE_COLUMNS,
+                null, null, null, null, MovieContract.GenreEntry._ID);
+        try{
+            while(cursor.moveToNext()){
+                if(genreIds.add(cursor.getLong(0))){
+                    writeRow(writer, line, TYPE_GENRE, GENRE_COLUMNS, cursor, 0);
+                }
+            }
+        } finally{
+            cursor.close();
+        }
+
+        writer.flush();
+    }
+
+    /**
+     * Writes a row from the cursor's columns, starting at the first column given.
+     */
+    private static void writeRow(Writer writer, StringBuilder line, String type, String[] columns, Cursor cursor,
+                                 int firstColumn) throws IOException{
+        line.setLength(0);
+        line.append("{\"").append(KEY_TYPE).append("\":").append(quote(type));
+        for(int i = 0; i < columns.length; i++){
+            int column = firstColumn + i;
+            line.append(",\"").append(columns[i]).append("\":");
+            switch(cursor.getType(column)){
+                case Cursor.FIELD_TYPE_NULL:
+                    line.append("null");
+                    break;
+                case Cursor.FIELD_TYPE_INTEGER:
+                    line.append(cursor.getLong(column));
+                    break;
+                default:
+                    appendQuoted(line, cursor.getString(column));
+                    break;
+            }
+        }
+        line.append("}\n");
+        writer.append(line);
+    }
+
+    private static String quote(String value){
+        StringBuilder quoted = new StringBuilder(value.length() + 2);
+        appendQuoted(quoted, value);
+        return quoted.toString();
+    }
+
+    /**
+     * Appends the value as a JSON string, escaping quotes, backslashes and control characters.
+     */
+    private static void appendQuoted(StringBuilder line, String value){
+        line.append('"');
+        for(int i = 0; i < value.length(); i++){
+            char c = value.charAt(i);
+            switch(c){
+                case '"':
+                    line.append("\\\"");
+                    break;
+                case '\\':
+                    line.append("\\\\");
+                    break;
+                case '\n':
+                    line.append("\\n");
+                    break;
+                case '\r':
+                    line.append("\\r");
+                    break;
+                case '\t':
+                    line.append("\\t");
+                    break;
+                default:
+                    if(c < 0x20 || c == '\u2028' || c == '\u2029'){
+                        line.append(String.format(Locale.US, "\\u%04x", (int) c));
+                    } else{
+                        line.append(c);
+                    }
+                    break;
+            }
+        }
+        line.append('"');
+    }
+
+    /**
+     * Reads a backup, passing each of its rows to the handler in the order they were written.
+     * Every row only holds columns of its table, since they are inserted as they are.
+     * @throws IOException If the backup can't be read, is in a newer or unknown format, or has a
+     * row with a column its table doesn't have.
+     */
+    static void read(Reader input, RowHandler handler) throws IOException{
+        JsonReader reader = new JsonReader(input);
+        // Allows one object after another, instead of a single top level value.
+        reader.setLenient(true);
+
+        ContentValues header = readObject(reader);
+        if(header == null || !FORMAT.equals(header.getAsString(KEY_FORMAT))){
+            throw new IOException("Not a movie database backup");
+        }
+        Integer version = header.getAsInteger(KEY_VERSION);
+        if(version == null || version > VERSION){
+            throw new IOException("Unsupported backup version: " + version);
+        }
+
+        ContentValues values;
+        while((values = readObject(reader)) != null){
+            String type = values.getAsString(KEY_TYPE);
+            values.remove(KEY_TYPE);
+            if(TYPE_GENRE.equals(type)){
+                checkColumns(values, GENRE_COLUMNS, type);
+                handler.onGenre(values);
+            } else if(TYPE_MOVIE.equals(type)){
+                checkColumns(values, MOVIE_COLUMNS, type);
+                handler.onMovie(values);
+            } else{
+                throw new IOException("Unknown row type: " + type);
+            }
+        }
+    }
+
+    /**
+     * Checks that a row only has the columns that are backed up for its table.
+     * @throws IOException Naming the first column that isn't.
+     */
+    private static void checkColumns(ContentValues values, String[] columns, String type) throws IOException{
+        for(String key : values.keySet()){
+            boolean known = false;
+            for(String column : columns){
+                if(column.equals(key)){
+                    known = true;
+                    break;
+                }
+            }
+            if(!known){
+                throw new IOException("Unknown " + type + " column: " + key);
+            }
+        }
+    }
+
+    /**
+     * Reads the next object from the backup.
+     * @return The object's values, or null at the end of the backup.
+     */
+    private static ContentValues readObject(JsonReader reader) throws IOException{
+        if(reader.peek() == JsonToken.END_DOCUMENT){
+            return null;
+        }
+
+        ContentValues values = new ContentValues();
+        reader.beginObject();
+        while(reader.hasNext()){
+            String name = reader.nextName();
+            switch(reader.peek()){
+                case NULL:
+                    reader.nextNull();
+                    values.putNull(name);
+                    break;
+                case NUMBER:
+                    // Every number backed up is a whole one, and nextLong() won't read any other.
+                    try{
+                        values.put(name, reader.nextLong());
+                    } catch(NumberFormatException e){
+                        throw new IOException("Invalid number for " + name, e);
+                    }
+                    break;
+                case STRING:
+                    values.put(name, reader.nextString());
+                    break;
+                default:
+                    reader.skipValue();
+                    break;
+            }
+        }
+        reader.endObject();
+        return values;
+    }
+}
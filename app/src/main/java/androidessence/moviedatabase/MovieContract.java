@@ -29,6 +29,94 @@ public class MovieContract {
      */
     public static final String PATH_MOVIE = "movie";
     public static final String PATH_GENRE = "genre";
+    public static final String PATH_PAGE = "page";
+    public static final String PATH_SEARCH = "search";
+    public static final String PATH_WITH_GENRE = "with_genre";
+    public static final String PATH_BACKUP = "backup";
+    public static final String PATH_CHANGES = "changes";
+    public static final String PATH_STATS = "stats";
+    public static final String PATH_YEAR = "year";
+    public static final String PATH_FRAME = "frame";
+
+    /**
+     * Opening this URI for reading streams a backup of every genre and movie, see MovieBackup.
+     */
+    public static final Uri BACKUP_URI = BASE_CONTENT_URI.buildUpon().appendPath(PATH_BACKUP).build();
+
+    /**
+     * Methods that can be run on the content provider through ContentResolver.call(), along with
+     * the keys of the values they return.
+     */
+    public static final String METHOD_GET_MOVIE_CACHE_STATS = "getMovieCacheStats";
+    public static final String EXTRA_CACHE_SIZE = "cacheSize";
+    public static final String EXTRA_CACHE_MAX_SIZE = "cacheMaxSize";
+    public static final String EXTRA_CACHE_HITS = "cacheHits";
+    public static final String EXTRA_CACHE_MISSES = "cacheMisses";
+    public static final String EXTRA_CACHE_EVICTIONS = "cacheEvictions";
+    public static final String EXTRA_CACHE_INVALIDATIONS = "cacheInvalidations";
+
+    // Replaces every genre and movie with the backup read from EXTRA_FILE_DESCRIPTOR, and
+    // returns the number of each that were restored.
+    public static final String METHOD_RESTORE = "restore";
+    public static final String EXTRA_FILE_DESCRIPTOR = "fileDescriptor";
+    public static final String EXTRA_GENRE_COUNT = "genreCount";
+    public static final String EXTRA_MOVIE_COUNT = "movieCount";
+
+    // Upserts every ContentValues in EXTRA_VALUES into the genre or movie content URI given as
+    // the argument, and returns the number of rows that were inserted and updated.
+    public static final String METHOD_UPSERT = "upsert";
+    public static final String EXTRA_VALUES = "values";
+    public static final String EXTRA_INSERTED_COUNT = "insertedCount";
+    public static final String EXTRA_UPDATED_COUNT = "updatedCount";
+
+    // Deletes, or updates with the ContentValues in EXTRA_UPDATE_VALUES, the rows of the genre or
+    // movie content URI given as the argument whose identifiers are in EXTRA_IDS. Every row is
+    // written inside of a single transaction, and the number of rows is returned.
+    public static final String METHOD_DELETE_IDS = "deleteIds";
+    public static final String METHOD_UPDATE_IDS = "updateIds";
+    public static final String EXTRA_IDS = "ids";
+    public static final String EXTRA_UPDATE_VALUES = "updateValues";
+    public static final String EXTRA_ROW_COUNT = "rowCount";
+
+    // Returns how long the provider's operations and transactions have taken. Operations are
+    // under EXTRA_OPERATIONS, keyed by the operation and the path of its URI, such as
+    // "query movie/#". Transactions are under EXTRA_TRANSACTIONS, keyed by the operation that ran
+    // them. Each of them, along with EXTRA_WINDOW_FILLS, is a Bundle of the EXTRA_COUNT through
+    // EXTRA_ROLLBACKS values. The histogram counts the latencies up to each of
+    // EXTRA_LATENCY_BUCKETS_MICROS, with one more count for anything slower. EXTRA_SLOW_QUERIES
+    // lists the most recent slow queries, with their SQL and query plan.
+    public static final String METHOD_GET_METRICS = "getMetrics";
+    public static final String EXTRA_LATENCY_BUCKETS_MICROS = "latencyBucketsMicros";
+    public static final String EXTRA_OPERATIONS = "operations";
+    public static final String EXTRA_TRANSACTIONS = "transactions";
+    public static final String EXTRA_WINDOW_FILLS = "windowFills";
+    public static final String EXTRA_SLOW_QUERIES = "slowQueries";
+    public static final String EXTRA_COUNT = "count";
+    public static final String EXTRA_TOTAL_MICROS = "totalMicros";
+    public static final String EXTRA_MAX_MICROS = "maxMicros";
+    public static final String EXTRA_LATENCY_HISTOGRAM = "latencyHistogram";
+    public static final String EXTRA_ROWS = "rows";
+    public static final String EXTRA_WINDOW_FILL_COUNT = "windowFillCount";
+    public static final String EXTRA_WINDOW_FILL_MICROS = "windowFillMicros";
+    public static final String EXTRA_ROLLBACKS = "rollbacks";
+
+    // Returns the version of the latest change to the movies, see MovieChangeEntry.
+    public static final String METHOD_GET_MOVIE_VERSION = "getMovieVersion";
+    public static final String EXTRA_VERSION = "version";
+
+    /**
+     * Query parameter that turns an insert or bulk insert of genres or movies into an upsert. A
+     * row that already exists is updated instead of inserted again. Genres are matched on their
+     * name, and movies on their name and release date, which must both be given.
+     */
+    public static final String PARAM_UPSERT = "upsert";
+
+    /**
+     * Builds a genre or movie content URI that upserts the rows inserted into it.
+     */
+    public static Uri buildUpsertUri(Uri uri){
+        return uri.buildUpon().appendQueryParameter(PARAM_UPSERT, "true").build();
+    }
 
     /**
      * Create one class for each table that handles all information regarding the table schema and
@@ -51,10 +139,306 @@ public class MovieContract {
         public static final String COLUMN_RELEASE_DATE = "movieReleaseDate";
         public static final String COLUMN_GENRE = "movieGenre";
 
+        // The release date as a number of days since 1970-01-01, which is kept in sync with the
+        // release date by the provider. It is null if the release date isn't a yyyy-MM-dd date.
+        public static final String COLUMN_RELEASE_DAY = "movieReleaseDay";
+
+        // The name of the movie's genre, which is only available from the with genre URI
+        public static final String COLUMN_GENRE_NAME = GenreEntry.COLUMN_NAME;
+
+        // Every column a projection on the movie, page and search URIs may ask for.
+        public static final String[] COLUMNS = new String[]{
+                _ID, COLUMN_NAME, COLUMN_RELEASE_DATE, COLUMN_GENRE, COLUMN_RELEASE_DAY
+        };
+
+        // The columns returned when no projection is given. The release day is left out, since
+        // it only exists to filter on and the release date already holds the same value.
+        public static final String[] DEFAULT_PROJECTION = new String[]{
+                _ID, COLUMN_NAME, COLUMN_RELEASE_DATE, COLUMN_GENRE
+        };
+
+        // Every column a projection on the with genre URI may ask for.
+        public static final String[] WITH_GENRE_COLUMNS = new String[]{
+                _ID, COLUMN_NAME, COLUMN_RELEASE_DATE, COLUMN_GENRE, COLUMN_RELEASE_DAY, COLUMN_GENRE_NAME
+        };
+
+        // The columns the with genre URI returns when no projection is given. The movie's
+        // columns are all in INDEX_LIST, so they are read from the index without touching the
+        // table.
+        public static final String[] WITH_GENRE_DEFAULT_PROJECTION = new String[]{
+                _ID, COLUMN_NAME, COLUMN_RELEASE_DATE, COLUMN_GENRE, COLUMN_GENRE_NAME
+        };
+
+        // Define the indexes on the table. The list index covers every column a list of movies
+        // shows, in order of release date, so it also serves every query sorted by release date.
+        public static final String INDEX_LIST = "movieListIndex";
+        public static final String INDEX_GENRE_RELEASE_DATE = "movieGenreReleaseDateIndex";
+        public static final String INDEX_RELEASE_DAY = "movieReleaseDayIndex";
+        public static final String INDEX_NAME_RELEASE_DATE = "movieNameReleaseDateIndex";
+
+        // The full text index of the movie names
+        public static final String SEARCH_TABLE_NAME = "movieSearch";
+
+        // The most movies a search returns when no limit is given
+        public static final int DEFAULT_SEARCH_LIMIT = 50;
+
+        // Returns the movies along with the name of their genre, so it doesn't have to be looked
+        // up separately for every movie. Selections and sort orders must qualify the _ID column
+        // with the table it belongs to, since both tables have one.
+        public static final Uri WITH_GENRE_URI = CONTENT_URI.buildUpon().appendPath(PATH_WITH_GENRE).build();
+
+        // Pages through the movies in a fixed order. Each page starts right after the last row
+        // of the previous one, so reading a page costs the same no matter how deep it is.
+        public static final Uri PAGE_URI = CONTENT_URI.buildUpon().appendPath(PATH_PAGE).build();
+
+        // Opening this URI for reading streams the identifier, genre, release day and name of
+        // every movie in a compact binary format, see MovieFrame.
+        public static final Uri FRAME_URI = CONTENT_URI.buildUpon().appendPath(PATH_FRAME).build();
+
+        // Query parameters that limit the movie, with genre and page URIs to the movies released
+        // on or after, and on or before, a yyyy-MM-dd date
+        public static final String PARAM_RELEASED_FROM = "releasedFrom";
+        public static final String PARAM_RELEASED_TO = "releasedTo";
+
+        // Query parameters for the page URI
+        public static final String PARAM_AFTER_ID = "after";
+        public static final String PARAM_AFTER_RELEASE_DATE = "afterDate";
+        public static final String PARAM_LIMIT = "limit";
+        public static final String PARAM_ORDER = "order";
+
+        // The orders a page URI can be read in
+        public static final String ORDER_ID = "id";
+        public static final String ORDER_RELEASE_DATE = "releaseDate";
+        public static final String ORDER_RELEASE_DATE_DESCENDING = "releaseDateDesc";
+
+        // The number of rows in a page when no limit is given
+        public static final int DEFAULT_PAGE_SIZE = 100;
+
         // Define a function to build a URI to find a specific movie by it's identifier
         public static Uri buildMovieUri(long id){
             return ContentUris.withAppendedId(CONTENT_URI, id);
         }
+
+        /**
+         * Adds a release date range to one of the movie URIs.
+         * @param from The first release date to include, or null to not limit it.
+         * @param to The last release date to include, or null to not limit it.
+         */
+        public static Uri withReleaseDateRange(Uri uri, String from, String to){
+            Uri.Builder builder = uri.buildUpon();
+            if(from != null){
+                builder.appendQueryParameter(PARAM_RELEASED_FROM, from);
+            }
+            if(to != null){
+                builder.appendQueryParameter(PARAM_RELEASED_TO, to);
+            }
+            return builder.build();
+        }
+
+        /**
+         * Converts a release date to the number of days since 1970-01-01, the same way SQLite's
+         * date functions do.
+         * @param releaseDate A date in the yyyy-MM-dd format, optionally followed by a time.
+         * @return The number of days, or null if the date isn't in that format.
+         */
+        public static Long toReleaseDay(String releaseDate){
+            if(releaseDate == null || releaseDate.length() < 10 || releaseDate.charAt(4) != '-'
+                    || releaseDate.charAt(7) != '-'
+                    || (releaseDate.length() > 10 && releaseDate.charAt(10) != ' ' && releaseDate.charAt(10) != 'T')){
+                return null;
+            }
+
+            // Only ASCII digits, as the GLOB that fills in the release days on upgrade accepts.
+            // Integer.parseInt() would also take a sign, and digits of any other script.
+            for(int i = 0; i < 10; i++){
+                char c = releaseDate.charAt(i);
+                if(i != 4 && i != 7 && (c < '0' || c > '9')){
+                    return null;
+                }
+            }
+
+            int year = Integer.parseInt(releaseDate.substring(0, 4));
+            int month = Integer.parseInt(releaseDate.substring(5, 7));
+            int day = Integer.parseInt(releaseDate.substring(8, 10));
+            if(month < 1 || month > 12 || day < 1 || day > 31){
+                return null;
+            }
+
+            // Count the days from 0000-03-01, so that the leap day comes at the end of the year.
+            if(month <= 2){
+                year--;
+            }
+            long era = (year >= 0 ? year : year - 399) / 400;
+            long yearOfEra = year - era * 400;
+            long dayOfYear = (153 * (month > 2 ? month - 3 : month + 9) + 2) / 5 + day - 1;
+            long dayOfEra = yearOfEra * 365 + yearOfEra / 4 - yearOfEra / 100 + dayOfYear;
+            return era * 146097 + dayOfEra - 719468;
+        }
+
+        /**
+         * Builds a URI that searches for movies whose names contain words starting with each of
+         * the words in the query, best matches first. Use {@link #PARAM_LIMIT} to change the
+         * number of movies returned.
+         */
+        public static Uri buildMovieSearchUri(String query){
+            return CONTENT_URI.buildUpon().appendPath(PATH_SEARCH).appendPath(query).build();
+        }
+
+        /**
+         * Builds a URI for a page of movies in order of their identifiers.
+         * @param afterId The identifier of the last movie on the previous page, or -1 for the
+         *                first page.
+         * @param limit The most movies to return.
+         */
+        public static Uri buildMoviePageUri(long afterId, int limit){
+            Uri.Builder builder = PAGE_URI.buildUpon()
+                    .appendQueryParameter(PARAM_ORDER, ORDER_ID)
+                    .appendQueryParameter(PARAM_LIMIT, String.valueOf(limit));
+            if(afterId >= 0){
+                builder.appendQueryParameter(PARAM_AFTER_ID, String.valueOf(afterId));
+            }
+            return builder.build();
+        }
+
+        /**
+         * Builds a URI for a page of movies in order of their release date, with movies released
+         * on the same day in order of their identifiers.
+         * @param afterReleaseDate The release date of the last movie on the previous page, or
+         *                         null for the first page.
+         * @param afterId The identifier of the last movie on the previous page.
+         * @param limit The most movies to return.
+         */
+        public static Uri buildMoviePageByReleaseDateUri(String afterReleaseDate, long afterId, int limit){
+            Uri.Builder builder = PAGE_URI.buildUpon()
+                    .appendQueryParameter(PARAM_ORDER, ORDER_RELEASE_DATE)
+                    .appendQueryParameter(PARAM_LIMIT, String.valueOf(limit));
+            if(afterReleaseDate != null){
+                builder.appendQueryParameter(PARAM_AFTER_RELEASE_DATE, afterReleaseDate)
+                        .appendQueryParameter(PARAM_AFTER_ID, String.valueOf(afterId));
+            }
+            return builder.build();
+        }
+
+        /**
+         * Builds a URI for a page of movies in order of their release date, newest first, with
+         * movies released on the same day in descending order of their identifiers.
+         * @param afterReleaseDate The release date of the last movie on the previous page, or
+         *                         null for the first page.
+         * @param afterId The identifier of the last movie on the previous page.
+         * @param limit The most movies to return.
+         */
+        public static Uri buildMoviePageByReleaseDateDescendingUri(String afterReleaseDate, long afterId, int limit){
+            Uri.Builder builder = PAGE_URI.buildUpon()
+                    .appendQueryParameter(PARAM_ORDER, ORDER_RELEASE_DATE_DESCENDING)
+                    .appendQueryParameter(PARAM_LIMIT, String.valueOf(limit));
+            if(afterReleaseDate != null){
+                builder.appendQueryParameter(PARAM_AFTER_RELEASE_DATE, afterReleaseDate)
+                        .appendQueryParameter(PARAM_AFTER_ID, String.valueOf(afterId));
+            }
+            return builder.build();
+        }
+    }
+
+    /**
+     * Every insert, update and delete of a movie is logged with a new version, which only ever
+     * increases. Someone who has read the movies as of a version can ask for the movies that
+     * changed since then, instead of reading all of them again. Only the most recent changes are
+     * kept.
+     */
+    public static final class MovieChangeEntry {
+        // Returns one row for every movie that changed since the PARAM_SINCE version, in order of
+        // their latest change, along with the movie's current columns and the name of its genre.
+        public static final Uri CONTENT_URI =
+                MovieEntry.CONTENT_URI.buildUpon().appendPath(PATH_CHANGES).build();
+
+        public static final String CONTENT_TYPE =
+                "vnd.android.cursor.dir/" + CONTENT_URI + "/" + PATH_CHANGES;
+
+        public static final String TABLE_NAME = "movieChanges";
+        public static final String COLUMN_VERSION = "version";
+        public static final String COLUMN_MOVIE_ID = "movieId";
+        public static final String COLUMN_OPERATION = "operation";
+
+        // Every column a projection may ask for: the change, and the movie's current columns
+        // along with the name of its genre.
+        public static final String[] COLUMNS = new String[]{
+                COLUMN_VERSION, COLUMN_MOVIE_ID, COLUMN_OPERATION, MovieEntry.COLUMN_NAME,
+                MovieEntry.COLUMN_RELEASE_DATE, MovieEntry.COLUMN_GENRE, MovieEntry.COLUMN_RELEASE_DAY,
+                MovieEntry.COLUMN_GENRE_NAME
+        };
+
+        // The columns returned when no projection is given, which is just enough to tell what
+        // changed.
+        public static final String[] DEFAULT_PROJECTION = new String[]{
+                COLUMN_VERSION, COLUMN_MOVIE_ID, COLUMN_OPERATION
+        };
+
+        public static final String PARAM_SINCE = "since";
+
+        // The values of COLUMN_OPERATION. A movie that was inserted since the version is an
+        // insert even if it has been updated since, and one that was inserted and deleted again
+        // isn't returned at all. A single reset row is returned instead of any changes if the
+        // changes since the version are no longer kept, so the movies must be read again.
+        public static final int OPERATION_INSERT = 0;
+        public static final int OPERATION_UPDATE = 1;
+        public static final int OPERATION_DELETE = 2;
+        public static final int OPERATION_RESET = 3;
+
+        public static Uri buildChangesUri(long sinceVersion){
+            return CONTENT_URI.buildUpon()
+                    .appendQueryParameter(PARAM_SINCE, String.valueOf(sinceVersion))
+                    .build();
+        }
+    }
+
+    /**
+     * The number of movies in each genre, which is kept up to date as movies are written, so
+     * reading it only costs as much as reading the genres.
+     */
+    public static final class GenreStatsEntry implements BaseColumns {
+        // Returns one row for every genre, including the ones without any movies, in order of
+        // their identifiers unless a sort order is given.
+        public static final Uri CONTENT_URI =
+                GenreEntry.CONTENT_URI.buildUpon().appendPath(PATH_STATS).build();
+
+        public static final String CONTENT_TYPE =
+                "vnd.android.cursor.dir/" + CONTENT_URI + "/" + PATH_STATS;
+
+        public static final String TABLE_NAME = "genreStats";
+        public static final String COLUMN_GENRE_ID = "genreId";
+        public static final String COLUMN_MOVIE_COUNT = "movieCount";
+
+        // The genre's name, from the genre table
+        public static final String COLUMN_GENRE_NAME = GenreEntry.COLUMN_NAME;
+
+        // Every column a projection may ask for, which are also the ones returned when no
+        // projection is given. The _ID is the genre's.
+        public static final String[] COLUMNS = new String[]{_ID, COLUMN_GENRE_NAME, COLUMN_MOVIE_COUNT};
+    }
+
+    /**
+     * The number of movies released in each year, which is kept up to date as movies are
+     * written. Movies whose release date isn't a yyyy-MM-dd date have no year, and aren't
+     * counted.
+     */
+    public static final class MovieYearStatsEntry {
+        // Returns one row for every year with at least one movie, in order of the years unless a
+        // sort order is given.
+        public static final Uri CONTENT_URI = MovieEntry.CONTENT_URI.buildUpon()
+                .appendPath(PATH_STATS)
+                .appendPath(PATH_YEAR)
+                .build();
+
+        public static final String CONTENT_TYPE =
+                "vnd.android.cursor.dir/" + CONTENT_URI + "/" + PATH_YEAR;
+
+        public static final String TABLE_NAME = "movieYearStats";
+        public static final String COLUMN_YEAR = "year";
+        public static final String COLUMN_MOVIE_COUNT = "movieCount";
+
+        // Every column a projection may ask for, which are also the ones returned when no
+        // projection is given.
+        public static final String[] COLUMNS = new String[]{COLUMN_YEAR, COLUMN_MOVIE_COUNT};
     }
 
     public static final class GenreEntry implements BaseColumns{
@@ -69,6 +453,16 @@ public class MovieContract {
         public static final String TABLE_NAME = "genreTable";
         public static final String COLUMN_NAME = "genreName";
 
+        // Every column a projection may ask for, which are also the ones returned when no
+        // projection is given.
+        public static final String[] COLUMNS = new String[]{_ID, COLUMN_NAME};
+
+        // What SQLite does with a genre's movies when the genre is deleted: delete them too, or
+        // move them to the default genre, which is created when it is first needed. The default
+        // genre itself can't be deleted while it still has movies.
+        public static final int DELETE_POLICY_CASCADE = 0;
+        public static final int DELETE_POLICY_SET_DEFAULT = 1;
+
         public static Uri buildGenreUri(long id){
             return ContentUris.withAppendedId(CONTENT_URI, id);
         }
@@ -1,31 +1,132 @@
 package androidessence.moviedatabase;
 
 import android.content.Context;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
 import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteDoneException;
 import android.database.sqlite.SQLiteOpenHelper;
+import android.database.sqlite.SQLiteStatement;
+import android.util.Log;
+import android.util.LongSparseArray;
+
+import java.io.File;
 
 /**
  * Creates the Movie database used for this application.
  *
+ * If the app ships a {@link PrebuiltDatabase}, a new install copies it instead of creating an
+ * empty database. When an upgrade reaches the version the prebuilt database was built at, its
+ * catalog is merged into the movies already on the device.
+ *
  * Created by adammcneilly on 9/19/15.
  */
 public class MovieDBHelper extends SQLiteOpenHelper{
+    private static final String LOG_TAG = MovieDBHelper.class.getSimpleName();
+
     /**
      * Defines the database version. This variable must be incremented in order for onUpdate to
      * be called when necessary.
      */
-    private static final int DATABASE_VERSION = 1;
+    private static final int DATABASE_VERSION = 10;
     /**
      * The name of the database on the device.
      */
     private static final String DATABASE_NAME = "movieList.db";
+    /**
+     * The name of the copy of the prebuilt database that an upgrade merges from.
+     */
+    private static final String CATALOG_NAME = "movieCatalog.db";
+
+    /**
+     * The most rows an upgrade changes with a single statement when it fills in a new column.
+     */
+    private static final int UPGRADE_CHUNK_SIZE = 1000;
+
+    /**
+     * The number of the most recent movie changes that are kept, and how often, in changes, the
+     * older ones are removed.
+     */
+    private static final int CHANGE_LOG_SIZE = 10000;
+    private static final int CHANGE_LOG_PRUNE_INTERVAL = 1000;
+
+    /**
+     * The index on the release date alone that versions 2 to 6 sorted movies with, before it was
+     * replaced by the list index.
+     */
+    private static final String OLD_RELEASE_DATE_INDEX = "movieReleaseDateIndex";
+
+    /**
+     * The trigger that carries out the genre delete policy.
+     */
+    private static final String GENRE_DELETE_TRIGGER = "genreDeleteAction";
+
+    /**
+     * What happens to a genre's movies when it is deleted, and the genre they are moved to if
+     * they are kept.
+     */
+    private final int mGenreDeletePolicy;
+    private final String mDefaultGenreName;
+
+    private final Context mContext;
+
+    /**
+     * Whether the prebuilt database has been looked for. It is only ever installed before the
+     * database is first opened.
+     */
+    private boolean mPrebuiltChecked;
+
+    /**
+     * The compiled statements for the currently open database. These belong to a single database
+     * connection, so they are thrown away whenever it is closed, reopened or upgraded.
+     */
+    private MovieStatementCache mStatementCache;
 
     /**
      * Default constructor.
      * @param context The application context using this database.
      */
     public MovieDBHelper(Context context){
-        super(context, DATABASE_NAME, null, DATABASE_VERSION);
+        this(context, null);
+    }
+
+    /**
+     * @param context The application context using this database.
+     * @param factory Creates the cursors for every query, or null for the default cursors.
+     */
+    public MovieDBHelper(Context context, SQLiteDatabase.CursorFactory factory){
+        super(context, DATABASE_NAME, factory, DATABASE_VERSION);
+        mContext = context.getApplicationContext() != null ? context.getApplicationContext() : context;
+        mGenreDeletePolicy = context.getResources().getInteger(R.integer.genre_delete_policy);
+        mDefaultGenreName = context.getResources().getString(R.string.default_genre_name);
+
+        // Write ahead logging lets queries run on their own pool of read only connections while
+        // a write is in progress, instead of waiting for it to be committed.
+        setWriteAheadLoggingEnabled(true);
+    }
+
+    @Override
+    public synchronized SQLiteDatabase getWritableDatabase() {
+        installPrebuiltDatabase();
+        return super.getWritableDatabase();
+    }
+
+    @Override
+    public synchronized SQLiteDatabase getReadableDatabase() {
+        installPrebuiltDatabase();
+        return super.getReadableDatabase();
+    }
+
+    /**
+     * Called whenever a connection to the database is being configured, before it is created,
+     * upgraded or opened.
+     * @param db The database being configured.
+     */
+    @Override
+    public void onConfigure(SQLiteDatabase db) {
+        super.onConfigure(db);
+        // Every movie must belong to a genre that exists, see addGenreDeleteTrigger().
+        db.setForeignKeyConstraintsEnabled(true);
     }
 
     /**
@@ -36,6 +137,13 @@ public class MovieDBHelper extends SQLiteOpenHelper{
     public void onCreate(SQLiteDatabase db) {
         addGenreTable(db);
         addMovieTable(db);
+        addMovieIndexes(db);
+        addMovieSearchTable(db);
+        addReleaseDayIndex(db);
+        addNameReleaseDateIndex(db);
+        addMovieChangeLog(db);
+        addListIndex(db);
+        addMovieStats(db);
     }
 
     /**
@@ -48,7 +156,241 @@ public class MovieDBHelper extends SQLiteOpenHelper{
      */
     @Override
     public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+        // Statements compiled against the old schema must not outlive it.
+        replaceStatementCache(null);
+
+        // Version 2 added the indexes for filtering and sorting movies.
+        if(oldVersion < 2){
+            addMovieIndexes(db);
+        }
+
+        // Version 3 added the full text index of movie names, which has to be filled with the
+        // movies that already exist.
+        if(oldVersion < 3){
+            addMovieSearchTable(db);
+            db.execSQL(
+                    "INSERT INTO " + MovieContract.MovieEntry.SEARCH_TABLE_NAME + " (" +
+                            MovieContract.MovieEntry.SEARCH_TABLE_NAME + ") VALUES ('rebuild');"
+            );
+        }
+
+        // Version 4 added the release date as a number of days, which has to be worked out for
+        // the movies that already exist.
+        if(oldVersion < 4){
+            db.execSQL(
+                    "ALTER TABLE " + MovieContract.MovieEntry.TABLE_NAME + " ADD COLUMN " +
+                            MovieContract.MovieEntry.COLUMN_RELEASE_DAY + " INTEGER;"
+            );
+            fillReleaseDays(db);
+            addReleaseDayIndex(db);
+        }
+
+        // Version 5 added the index used to find an existing movie when upserting.
+        if(oldVersion < 5){
+            addNameReleaseDateIndex(db);
+        }
+
+        // Version 6 added the log of movie changes. Movies that already exist are simply the
+        // state as of version 0.
+        if(oldVersion < 6){
+            addMovieChangeLog(db);
+        }
+
+        // Version 7 replaced the release date index with one that covers the movie list.
+        if(oldVersion < 7){
+            addListIndex(db);
+        }
+
+        // Version 8 added the movie counts by genre and year, which start out counting the movies
+        // that already exist.
+        if(oldVersion < 8){
+            addMovieStats(db);
+        }
 
+        // Version 9 enforces the genre of every movie. Movies whose genre was deleted before then
+        // are treated as if the delete policy had already been in place.
+        if(oldVersion < 9){
+            String orphans = MovieContract.MovieEntry.COLUMN_GENRE + " NOT IN (SELECT " +
+                    MovieContract.GenreEntry._ID + " FROM " + MovieContract.GenreEntry.TABLE_NAME + ")";
+            for(String statement : getGenreDeleteActions(orphans)){
+                db.execSQL(statement);
+            }
+        }
+
+        // Version 10 works out release days the same way MovieEntry.toReleaseDay() does. The
+        // version 4 upgrade got some of them wrong, so only databases upgraded by it are fixed.
+        if(oldVersion >= 4 && oldVersion < 10){
+            fillReleaseDays(db);
+        }
+
+        // A prebuilt database built at this version holds a newer catalog than the one the
+        // device started with.
+        PrebuiltDatabase prebuilt = PrebuiltDatabase.open(mContext.getAssets());
+        if(prebuilt != null && prebuilt.getVersion() == newVersion && oldVersion < newVersion){
+            mergeCatalog(db, prebuilt);
+        }
+    }
+
+    /**
+     * Called once the database has been created or upgraded, and is ready to be used.
+     * @param db The database that has been opened.
+     */
+    @Override
+    public void onOpen(SQLiteDatabase db) {
+        super.onOpen(db);
+        if(!db.isReadOnly()){
+            addGenreDeleteTrigger(db);
+        }
+        replaceStatementCache(new MovieStatementCache(db));
+    }
+
+    @Override
+    public synchronized void close() {
+        replaceStatementCache(null);
+        super.close();
+    }
+
+    /**
+     * Returns the compiled statements for the open database. The database must be opened with
+     * getWritableDatabase() before calling this.
+     */
+    public synchronized MovieStatementCache getStatementCache(){
+        if(mStatementCache == null){
+            throw new IllegalStateException("The database has not been opened.");
+        }
+        return mStatementCache;
+    }
+
+    private synchronized void replaceStatementCache(MovieStatementCache cache){
+        if(mStatementCache != null){
+            mStatementCache.close();
+        }
+        mStatementCache = cache;
+    }
+
+    /**
+     * Copies the prebuilt database into place if the database doesn't exist yet. The copy is
+     * then opened like any other database, and upgraded if it was built at an older version.
+     */
+    private synchronized void installPrebuiltDatabase(){
+        if(mPrebuiltChecked){
+            return;
+        }
+        mPrebuiltChecked = true;
+
+        File path = mContext.getDatabasePath(DATABASE_NAME);
+        if(path.exists()){
+            return;
+        }
+
+        PrebuiltDatabase prebuilt = PrebuiltDatabase.open(mContext.getAssets());
+        if(prebuilt == null){
+            return;
+        }
+        // A database newer than this app can't be downgraded, so an empty one is created instead.
+        if(prebuilt.getVersion() < 1 || prebuilt.getVersion() > DATABASE_VERSION){
+            Log.w(LOG_TAG, "Ignoring prebuilt database at version " + prebuilt.getVersion());
+            return;
+        }
+        prebuilt.copyTo(mContext.getAssets(), path);
+    }
+
+    /**
+     * Adds the genres and movies of the prebuilt database that the device doesn't have yet.
+     * Genres are matched by name, and movies by name and release date, so movies the user has
+     * changed are kept as they are. The catalog has the same schema as the database being
+     * upgraded, since it was built at the version being upgraded to.
+     * @param db The SQLiteDatabase being upgraded.
+     */
+    private void mergeCatalog(SQLiteDatabase db, PrebuiltDatabase prebuilt){
+        File path = mContext.getDatabasePath(CATALOG_NAME);
+        if(!prebuilt.copyTo(mContext.getAssets(), path)){
+            return;
+        }
+
+        SQLiteDatabase catalog = SQLiteDatabase.openDatabase(path.getPath(), null, SQLiteDatabase.OPEN_READONLY);
+        try{
+            LongSparseArray<Long> genreIds = mergeCatalogGenres(db, catalog);
+            mergeCatalogMovies(db, catalog, genreIds);
+        } finally{
+            catalog.close();
+            SQLiteDatabase.deleteDatabase(path);
+        }
+    }
+
+    /**
+     * Adds the catalog's genres that don't exist yet.
+     * @return The identifier each catalog genre has in the database being upgraded.
+     */
+    private LongSparseArray<Long> mergeCatalogGenres(SQLiteDatabase db, SQLiteDatabase catalog){
+        String genre = MovieContract.GenreEntry.TABLE_NAME;
+        String name = MovieContract.GenreEntry.COLUMN_NAME;
+
+        LongSparseArray<Long> genreIds = new LongSparseArray<Long>();
+        SQLiteStatement insert = db.compileStatement("INSERT OR IGNORE INTO " + genre + " (" + name + ") VALUES (?);");
+        SQLiteStatement find = db.compileStatement(
+                "SELECT " + MovieContract.GenreEntry._ID + " FROM " + genre + " WHERE " + name + " = ?;");
+        Cursor cursor = catalog.query(genre, new String[]{MovieContract.GenreEntry._ID, name}, null, null, null, null, null);
+        try{
+            while(cursor.moveToNext()){
+                insert.bindString(1, cursor.getString(1));
+                insert.executeInsert();
+                find.bindString(1, cursor.getString(1));
+                genreIds.put(cursor.getLong(0), find.simpleQueryForLong());
+            }
+        } finally{
+            cursor.close();
+            insert.close();
+            find.close();
+        }
+        return genreIds;
+    }
+
+    /**
+     * Adds the catalog's movies that don't exist yet. Each one is inserted by itself so the
+     * search, change log and count triggers see it like any other new movie.
+     */
+    private void mergeCatalogMovies(SQLiteDatabase db, SQLiteDatabase catalog, LongSparseArray<Long> genreIds){
+        String movie = MovieContract.MovieEntry.TABLE_NAME;
+        String name = MovieContract.MovieEntry.COLUMN_NAME;
+        String releaseDate = MovieContract.MovieEntry.COLUMN_RELEASE_DATE;
+
+        // Found through the name and release date index.
+        SQLiteStatement insert = db.compileStatement(
+                "INSERT INTO " + movie + " (" + name + ", " + releaseDate + ", " +
+                        MovieContract.MovieEntry.COLUMN_RELEASE_DAY + ", " + MovieContract.MovieEntry.COLUMN_GENRE + ")" +
+                        " SELECT ?1, ?2, ?3, ?4 WHERE NOT EXISTS (SELECT 1 FROM " + movie +
+                        " WHERE " + name + " = ?1 AND " + releaseDate + " = ?2);"
+        );
+        Cursor cursor = catalog.query(
+                movie,
+                new String[]{name, releaseDate, MovieContract.MovieEntry.COLUMN_RELEASE_DAY, MovieContract.MovieEntry.COLUMN_GENRE},
+                null,
+                null,
+                null,
+                null,
+                null
+        );
+        try{
+            while(cursor.moveToNext()){
+                Long genreId = genreIds.get(cursor.getLong(3));
+                if(genreId == null){
+                    continue;
+                }
+
+                insert.clearBindings();
+                insert.bindString(1, cursor.getString(0));
+                insert.bindString(2, cursor.getString(1));
+                if(!cursor.isNull(2)){
+                    insert.bindLong(3, cursor.getLong(2));
+                }
+                insert.bindLong(4, genreId);
+                insert.executeInsert();
+            }
+        } finally{
+            cursor.close();
+            insert.close();
+        }
     }
 
     /**
@@ -74,8 +416,356 @@ public class MovieDBHelper extends SQLiteOpenHelper{
                         MovieContract.MovieEntry.COLUMN_NAME + " TEXT NOT NULL, " +
                         MovieContract.MovieEntry.COLUMN_RELEASE_DATE + " TEXT NOT NULL, " +
                         MovieContract.MovieEntry.COLUMN_GENRE + " INTEGER NOT NULL, " +
+                        MovieContract.MovieEntry.COLUMN_RELEASE_DAY + " INTEGER, " +
                         "FOREIGN KEY (" + MovieContract.MovieEntry.COLUMN_GENRE + ") " +
                         "REFERENCES " + MovieContract.GenreEntry.TABLE_NAME + " (" + MovieContract.GenreEntry._ID + "));"
         );
     }
+
+    /**
+     * Inserts the index used to filter movies by genre and sort them by release date. It starts
+     * with the genre, so it also serves lookups by genre alone, including the ones needed to
+     * check the foreign key. Sorting every movie by release date is served by the list index.
+     * @param db The SQLiteDatabase the index is being inserted into.
+     */
+    private void addMovieIndexes(SQLiteDatabase db){
+        db.execSQL(
+                "CREATE INDEX IF NOT EXISTS " + MovieContract.MovieEntry.INDEX_GENRE_RELEASE_DATE + " ON " +
+                        MovieContract.MovieEntry.TABLE_NAME + " (" +
+                        MovieContract.MovieEntry.COLUMN_GENRE + ", " +
+                        MovieContract.MovieEntry.COLUMN_RELEASE_DATE + ");"
+        );
+    }
+
+    /**
+     * Inserts the full text index of movie names, along with the triggers that keep it in sync
+     * with the movie table. The index doesn't keep its own copy of the names, it reads them from
+     * the movie table, and it also indexes the first few letters of every word so that searching
+     * as the user types stays fast.
+     * @param db The SQLiteDatabase the table is being inserted into.
+     */
+    private void addMovieSearchTable(SQLiteDatabase db){
+        String search = MovieContract.MovieEntry.SEARCH_TABLE_NAME;
+        String movie = MovieContract.MovieEntry.TABLE_NAME;
+        String id = MovieContract.MovieEntry._ID;
+        String name = MovieContract.MovieEntry.COLUMN_NAME;
+
+        db.execSQL(
+                "CREATE VIRTUAL TABLE " + search + " USING fts4(" +
+                        "content=\"" + movie + "\", prefix=\"1,2,3\", " + name + ");"
+        );
+
+        // The old name must be removed before it changes in the movie table, and the new one
+        // added afterwards.
+        db.execSQL(
+                "CREATE TRIGGER " + search + "BeforeUpdate BEFORE UPDATE OF " + id + ", " + name +
+                        " ON " + movie + " BEGIN " +
+                        "DELETE FROM " + search + " WHERE docid = old." + id + "; END;"
+        );
+        db.execSQL(
+                "CREATE TRIGGER " + search + "BeforeDelete BEFORE DELETE ON " + movie + " BEGIN " +
+                        "DELETE FROM " + search + " WHERE docid = old." + id + "; END;"
+        );
+        db.execSQL(
+                "CREATE TRIGGER " + search + "AfterUpdate AFTER UPDATE OF " + id + ", " + name +
+                        " ON " + movie + " BEGIN " +
+                        "INSERT INTO " + search + " (docid, " + name + ") VALUES (new." + id + ", new." + name + "); END;"
+        );
+        db.execSQL(
+                "CREATE TRIGGER " + search + "AfterInsert AFTER INSERT ON " + movie + " BEGIN " +
+                        "INSERT INTO " + search + " (docid, " + name + ") VALUES (new." + id + ", new." + name + "); END;"
+        );
+    }
+
+    /**
+     * Inserts the index used to find movies released within a range of dates.
+     * @param db The SQLiteDatabase the index is being inserted into.
+     */
+    private void addReleaseDayIndex(SQLiteDatabase db){
+        db.execSQL(
+                "CREATE INDEX IF NOT EXISTS " + MovieContract.MovieEntry.INDEX_RELEASE_DAY + " ON " +
+                        MovieContract.MovieEntry.TABLE_NAME + " (" +
+                        MovieContract.MovieEntry.COLUMN_RELEASE_DAY + ");"
+        );
+    }
+
+    /**
+     * Inserts the index used to find a movie by its name and release date, which is how upserts
+     * tell whether a movie already exists. It isn't unique, since movies inserted before upserts
+     * existed may share both.
+     * @param db The SQLiteDatabase the index is being inserted into.
+     */
+    private void addNameReleaseDateIndex(SQLiteDatabase db){
+        db.execSQL(
+                "CREATE INDEX IF NOT EXISTS " + MovieContract.MovieEntry.INDEX_NAME_RELEASE_DATE + " ON " +
+                        MovieContract.MovieEntry.TABLE_NAME + " (" +
+                        MovieContract.MovieEntry.COLUMN_NAME + ", " +
+                        MovieContract.MovieEntry.COLUMN_RELEASE_DATE + ");"
+        );
+    }
+
+    /**
+     * Inserts the index that covers a list of movies in order of their release date. It holds
+     * the identifier right after the release date, so movies released on the same day are in
+     * order of their identifiers, which is the order pages by release date are read in. The
+     * name and genre come last, so a list of movies with their genre is read from the index
+     * alone, and only the genre table has to be looked up.
+     *
+     * It replaces the index on the release date alone, which every query it served can be
+     * answered from just as well.
+     * @param db The SQLiteDatabase the index is being inserted into.
+     */
+    private void addListIndex(SQLiteDatabase db){
+        db.execSQL("DROP INDEX IF EXISTS " + OLD_RELEASE_DATE_INDEX + ";");
+        db.execSQL(
+                "CREATE INDEX IF NOT EXISTS " + MovieContract.MovieEntry.INDEX_LIST + " ON " +
+                        MovieContract.MovieEntry.TABLE_NAME + " (" +
+                        MovieContract.MovieEntry.COLUMN_RELEASE_DATE + ", " +
+                        MovieContract.MovieEntry._ID + ", " +
+                        MovieContract.MovieEntry.COLUMN_NAME + ", " +
+                        MovieContract.MovieEntry.COLUMN_GENRE + ");"
+        );
+    }
+
+    /**
+     * Inserts the log of movie changes, along with the triggers that write to it. The log keeps
+     * its versions increasing even once every change has been removed from it, and removes the
+     * older changes itself as new ones are added, so it never grows past a fixed size.
+     * @param db The SQLiteDatabase the table is being inserted into.
+     */
+    private void addMovieChangeLog(SQLiteDatabase db){
+        String changes = MovieContract.MovieChangeEntry.TABLE_NAME;
+        String version = MovieContract.MovieChangeEntry.COLUMN_VERSION;
+        String movie = MovieContract.MovieEntry.TABLE_NAME;
+        String id = MovieContract.MovieEntry._ID;
+
+        db.execSQL(
+                "CREATE TABLE " + changes + " (" +
+                        version + " INTEGER PRIMARY KEY AUTOINCREMENT, " +
+                        MovieContract.MovieChangeEntry.COLUMN_MOVIE_ID + " INTEGER NOT NULL, " +
+                        MovieContract.MovieChangeEntry.COLUMN_OPERATION + " INTEGER NOT NULL);"
+        );
+
+        String insert = "INSERT INTO " + changes + " (" +
+                MovieContract.MovieChangeEntry.COLUMN_MOVIE_ID + ", " +
+                MovieContract.MovieChangeEntry.COLUMN_OPERATION + ") VALUES (";
+        db.execSQL(
+                "CREATE TRIGGER " + changes + "AfterInsert AFTER INSERT ON " + movie + " BEGIN " +
+                        insert + "new." + id + ", " + MovieContract.MovieChangeEntry.OPERATION_INSERT + "); END;"
+        );
+        db.execSQL(
+                "CREATE TRIGGER " + changes + "AfterUpdate AFTER UPDATE ON " + movie + " BEGIN " +
+                        insert + "new." + id + ", " + MovieContract.MovieChangeEntry.OPERATION_UPDATE + "); END;"
+        );
+        db.execSQL(
+                "CREATE TRIGGER " + changes + "AfterDelete AFTER DELETE ON " + movie + " BEGIN " +
+                        insert + "old." + id + ", " + MovieContract.MovieChangeEntry.OPERATION_DELETE + "); END;"
+        );
+        db.execSQL(
+                "CREATE TRIGGER " + changes + "Prune AFTER INSERT ON " + changes +
+                        " WHEN new." + version + " % " + CHANGE_LOG_PRUNE_INTERVAL + " = 0 BEGIN " +
+                        "DELETE FROM " + changes + " WHERE " + version + " <= new." + version + " - " + CHANGE_LOG_SIZE + "; END;"
+        );
+    }
+
+    /**
+     * Makes sure the trigger that carries out the genre delete policy matches the configured one,
+     * replacing it if the policy or the default genre has changed. The foreign key only stops a
+     * genre being deleted while movies still belong to it, so the trigger deals with those
+     * movies first, with a single statement that finds them through the genre index.
+     *
+     * An ON DELETE action on the foreign key would do the same, but it is part of the movie
+     * table's definition, which would have to be rebuilt along with its indexes and triggers
+     * every time the policy changed.
+     * @param db The SQLiteDatabase that has been opened.
+     */
+    private void addGenreDeleteTrigger(SQLiteDatabase db){
+        String genre = MovieContract.GenreEntry.TABLE_NAME;
+        String condition = mGenreDeletePolicy == MovieContract.GenreEntry.DELETE_POLICY_SET_DEFAULT
+                ? " WHEN old." + MovieContract.GenreEntry.COLUMN_NAME + " IS NOT " + DatabaseUtils.sqlEscapeString(mDefaultGenreName)
+                : "";
+        // SQLite keeps the statement as it was written, without the closing semicolon, so it can
+        // be compared with the one that is already there.
+        StringBuilder sql = new StringBuilder("CREATE TRIGGER ").append(GENRE_DELETE_TRIGGER)
+                .append(" BEFORE DELETE ON ").append(genre).append(condition).append(" BEGIN ");
+        for(String statement : getGenreDeleteActions(MovieContract.MovieEntry.COLUMN_GENRE + " = old." + MovieContract.GenreEntry._ID)){
+            sql.append(statement).append("; ");
+        }
+        sql.append("END");
+
+        String existing;
+        try{
+            existing = DatabaseUtils.stringForQuery(db,
+                    "SELECT sql FROM sqlite_master WHERE type = 'trigger' AND name = ?",
+                    new String[]{GENRE_DELETE_TRIGGER});
+        } catch(SQLiteDoneException e){
+            existing = null;
+        }
+        if(sql.toString().equals(existing)){
+            return;
+        }
+
+        db.beginTransaction();
+        try{
+            db.execSQL("DROP TRIGGER IF EXISTS " + GENRE_DELETE_TRIGGER);
+            db.execSQL(sql.toString());
+            db.setTransactionSuccessful();
+        } finally{
+            db.endTransaction();
+        }
+    }
+
+    /**
+     * Returns the statements that carry out the genre delete policy on the movies matching the
+     * selection.
+     */
+    private String[] getGenreDeleteActions(String movieSelection){
+        String movie = MovieContract.MovieEntry.TABLE_NAME;
+        if(mGenreDeletePolicy != MovieContract.GenreEntry.DELETE_POLICY_SET_DEFAULT){
+            return new String[]{"DELETE FROM " + movie + " WHERE " + movieSelection};
+        }
+
+        String genre = MovieContract.GenreEntry.TABLE_NAME;
+        String name = MovieContract.GenreEntry.COLUMN_NAME;
+        String defaultName = DatabaseUtils.sqlEscapeString(mDefaultGenreName);
+        return new String[]{
+                // The default genre is only created once there are movies to move to it.
+                "INSERT OR IGNORE INTO " + genre + " (" + name + ") SELECT " + defaultName +
+                        " WHERE EXISTS (SELECT 1 FROM " + movie + " WHERE " + movieSelection + ")",
+                "UPDATE " + movie + " SET " + MovieContract.MovieEntry.COLUMN_GENRE + " = (SELECT " +
+                        MovieContract.GenreEntry._ID + " FROM " + genre + " WHERE " + name + " = " + defaultName + ")" +
+                        " WHERE " + movieSelection
+        };
+    }
+
+    /**
+     * Inserts the tables that count the movies in each genre and released in each year, along
+     * with the triggers that keep them up to date, and counts the movies that already exist.
+     * Each write to a movie only changes the counts of the genre and year it leaves and the ones
+     * it joins, so reading the counts never has to read the movies. A count is removed when it
+     * reaches zero.
+     * @param db The SQLiteDatabase the tables are being inserted into.
+     */
+    private void addMovieStats(SQLiteDatabase db){
+        String genreStats = MovieContract.GenreStatsEntry.TABLE_NAME;
+        String genreId = MovieContract.GenreStatsEntry.COLUMN_GENRE_ID;
+        String yearStats = MovieContract.MovieYearStatsEntry.TABLE_NAME;
+        String year = MovieContract.MovieYearStatsEntry.COLUMN_YEAR;
+        String movie = MovieContract.MovieEntry.TABLE_NAME;
+        String genre = MovieContract.MovieEntry.COLUMN_GENRE;
+
+        db.execSQL(
+                "CREATE TABLE " + genreStats + " (" +
+                        genreId + " INTEGER PRIMARY KEY, " +
+                        MovieContract.GenreStatsEntry.COLUMN_MOVIE_COUNT + " INTEGER NOT NULL);"
+        );
+        db.execSQL(
+                "CREATE TABLE " + yearStats + " (" +
+                        year + " INTEGER PRIMARY KEY, " +
+                        MovieContract.MovieYearStatsEntry.COLUMN_MOVIE_COUNT + " INTEGER NOT NULL);"
+        );
+
+        db.execSQL(
+                "CREATE TRIGGER movieStatsAfterInsert AFTER INSERT ON " + movie + " BEGIN " +
+                        addToCount(genreStats, genreId, "new." + genre) +
+                        addToCount(yearStats, year, getReleaseYear("new")) + "END;"
+        );
+        db.execSQL(
+                "CREATE TRIGGER movieStatsAfterDelete AFTER DELETE ON " + movie + " BEGIN " +
+                        removeFromCount(genreStats, genreId, "old." + genre) +
+                        removeFromCount(yearStats, year, getReleaseYear("old")) + "END;"
+        );
+        db.execSQL(
+                "CREATE TRIGGER " + genreStats + "AfterUpdate AFTER UPDATE OF " + genre + " ON " + movie +
+                        " WHEN old." + genre + " IS NOT new." + genre + " BEGIN " +
+                        removeFromCount(genreStats, genreId, "old." + genre) +
+                        addToCount(genreStats, genreId, "new." + genre) + "END;"
+        );
+        db.execSQL(
+                "CREATE TRIGGER " + yearStats + "AfterUpdate AFTER UPDATE OF " +
+                        MovieContract.MovieEntry.COLUMN_RELEASE_DATE + ", " + MovieContract.MovieEntry.COLUMN_RELEASE_DAY +
+                        " ON " + movie + " WHEN " + getReleaseYear("old") + " IS NOT " + getReleaseYear("new") + " BEGIN " +
+                        removeFromCount(yearStats, year, getReleaseYear("old")) +
+                        addToCount(yearStats, year, getReleaseYear("new")) + "END;"
+        );
+
+        db.execSQL(
+                "INSERT INTO " + genreStats + " SELECT " + genre + ", COUNT(*) FROM " + movie +
+                        " GROUP BY " + genre + ";"
+        );
+        db.execSQL(
+                "INSERT INTO " + yearStats + " SELECT " + getReleaseYear(movie) + ", COUNT(*) FROM " + movie +
+                        " WHERE " + MovieContract.MovieEntry.COLUMN_RELEASE_DAY + " IS NOT NULL GROUP BY 1;"
+        );
+    }
+
+    /**
+     * Returns the year a row of the movie table was released in, which is null if its release
+     * date isn't a date.
+     * @param row The table, or the old or new row of a trigger.
+     */
+    private static String getReleaseYear(String row){
+        return "(CASE WHEN " + row + "." + MovieContract.MovieEntry.COLUMN_RELEASE_DAY + " IS NULL THEN NULL" +
+                " ELSE CAST(substr(" + row + "." + MovieContract.MovieEntry.COLUMN_RELEASE_DATE + ", 1, 4) AS INTEGER) END)";
+    }
+
+    /**
+     * Returns the trigger statements that add one to the count for a key, starting the count if
+     * there isn't one yet. Nothing is counted for a null key.
+     */
+    private static String addToCount(String table, String keyColumn, String key){
+        String count = MovieContract.GenreStatsEntry.COLUMN_MOVIE_COUNT;
+        return "INSERT OR IGNORE INTO " + table + " (" + keyColumn + ", " + count + ") " +
+                "SELECT " + key + ", 0 WHERE " + key + " IS NOT NULL; " +
+                "UPDATE " + table + " SET " + count + " = " + count + " + 1 WHERE " + keyColumn + " = " + key + "; ";
+    }
+
+    /**
+     * Returns the trigger statements that take one from the count for a key, removing the count
+     * once it reaches zero.
+     */
+    private static String removeFromCount(String table, String keyColumn, String key){
+        String count = MovieContract.GenreStatsEntry.COLUMN_MOVIE_COUNT;
+        return "UPDATE " + table + " SET " + count + " = " + count + " - 1 WHERE " + keyColumn + " = " + key + "; " +
+                "DELETE FROM " + table + " WHERE " + keyColumn + " = " + key + " AND " + count + " = 0; ";
+    }
+
+    /**
+     * Works out the release day of every movie from its release date, one range of identifiers
+     * at a time so that no single statement has to hold every changed row. Only rows whose
+     * release day is different are written. When this first runs, the release day index doesn't
+     * exist yet, so it is built once at the end instead of being updated for every row.
+     *
+     * The date is worked out the same way as MovieEntry.toReleaseDay(): only yyyy-MM-dd, followed
+     * by nothing, a space or a T, is a date, and any time after it is ignored. Passing the whole
+     * value to julianday() would count the time, and its time zone, as part of the day, and the
+     * cast would then round days before 1970 towards zero.
+     * @param db The SQLiteDatabase being upgraded.
+     */
+    private void fillReleaseDays(SQLiteDatabase db){
+        String id = MovieContract.MovieEntry._ID;
+        long maxId = DatabaseUtils.longForQuery(db,
+                "SELECT IFNULL(MAX(" + id + "), 0) FROM " + MovieContract.MovieEntry.TABLE_NAME, null);
+
+        // The release day is null for anything that isn't a date. julianday() of a date alone is
+        // always at midnight, so the cast never has to round.
+        String date = MovieContract.MovieEntry.COLUMN_RELEASE_DATE;
+        String day = MovieContract.MovieEntry.COLUMN_RELEASE_DAY;
+        String releaseDay = "CASE WHEN " + date + " GLOB '[0-9][0-9][0-9][0-9]-[0-9][0-9]-[0-9][0-9]*'" +
+                " AND (length(" + date + ") = 10 OR substr(" + date + ", 11, 1) IN (' ', 'T'))" +
+                " THEN CAST(julianday(substr(" + date + ", 1, 10)) - 2440587.5 AS INTEGER) END";
+        SQLiteStatement statement = db.compileStatement(
+                "UPDATE " + MovieContract.MovieEntry.TABLE_NAME + " SET " + day + " = " + releaseDay +
+                        " WHERE " + id + " > ? AND " + id + " <= ? AND " + day + " IS NOT " + releaseDay + ";"
+        );
+        try{
+            for(long start = 0; start < maxId; start += UPGRADE_CHUNK_SIZE){
+                statement.bindLong(1, start);
+                statement.bindLong(2, start + UPGRADE_CHUNK_SIZE);
+                statement.executeUpdateDelete();
+            }
+        } finally{
+            statement.close();
+        }
+    }
 }
@@ -0,0 +1,318 @@
+package androidessence.moviedatabase;
+
+import android.content.ContentResolver;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+
+/**
+ * Streams every movie in a compact binary format, for other processes that read the whole
+ * catalog. A cursor sent across processes is copied one window at a time, with a type for every
+ * cell, and each row is read back as separate values. Frames send only the columns below, a
+ * block of rows at a time, with each column of the block stored together.
+ *
+ * Frames are written by MovieProvider through {@link MovieContract.MovieEntry#FRAME_URI}, and
+ * read with {@link #open(ContentResolver)}. The stream is big endian:
+ *
+ * <pre>
+ * int magic, int version
+ * then for every block:
+ *   int rowCount
+ *   long[rowCount] movie identifiers, in ascending order
+ *   long[rowCount] genre identifiers
+ *   int[rowCount]  release days since 1970-01-01, or NO_RELEASE_DAY
+ *   int[rowCount]  name lengths in bytes
+ *   byte[]         the UTF-8 names, one after the other
+ * and a last block with a rowCount of 0.
+ * </pre>
+ *
+ * Like a backup, each block is read by itself in order of identifier after the last one, so
+ * only movies that existed when the stream started are written.
+ */
+public class MovieFrame {
+    public static final String MIME_TYPE = "application/x-movie-frame";
+
+    /**
+     * The version of the format written by this class. Other versions can't be read.
+     */
+    public static final int VERSION = 1;
+
+    /**
+     * The release day of a movie whose release date isn't a date.
+     */
+    public static final int NO_RELEASE_DAY = Integer.MIN_VALUE;
+
+    // "MVFR", so a stream that isn't a frame at all is told apart from an unsupported version.
+    private static final int MAGIC = 0x4d564652;
+
+    // The most movies in each block.
+    private static final int BLOCK_SIZE = 1000;
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    // The name is read as a blob, which SQLite returns as its UTF-8 bytes without decoding it.
+    private static final String[] COLUMNS = new String[]{
+            MovieContract.MovieEntry._ID,
+            MovieContract.MovieEntry.COLUMN_GENRE,
+            MovieContract.MovieEntry.COLUMN_RELEASE_DAY,
+            "CAST(" + MovieContract.MovieEntry.COLUMN_NAME + " AS BLOB)"
+    };
+
+    /**
+     * Opens a stream of every movie for reading. The reader must be closed once it's done with.
+     */
+    public static Reader open(ContentResolver resolver) throws IOException{
+        InputStream input = resolver.openInputStream(MovieContract.MovieEntry.FRAME_URI);
+        if(input == null){
+            throw new IOException("Unable to open " + MovieContract.MovieEntry.FRAME_URI);
+        }
+
+        try{
+            return new Reader(input);
+        } catch(IOException e){
+            input.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Writes every movie to the output stream, which is left open.
+     */
+    static void write(SQLiteDatabase db, OutputStream output) throws IOException{
+        long maxMovieId = DatabaseUtils.longForQuery(db,
+                "SELECT IFNULL(MAX(" + MovieContract.MovieEntry._ID + "), 0) FROM " +
+                        MovieContract.MovieEntry.TABLE_NAME, null);
+
+        DataOutputStream data = new DataOutputStream(output);
+        data.writeInt(MAGIC);
+        data.writeInt(VERSION);
+
+        // The same arrays hold every block in turn.
+        Block block = new Block();
+        String[] blockArgs = new String[]{"0", String.valueOf(maxMovieId)};
+        String blockSelection = MovieContract.MovieEntry._ID + " > ? AND " + MovieContract.MovieEntry._ID + " <= ?";
+        do{
+            Cursor cursor = db.query(MovieContract.MovieEntry.TABLE_NAME, COLUMNS, blockSelection, blockArgs,
+                    null, null, MovieContract.MovieEntry._ID, String.valueOf(BLOCK_SIZE));
+            try{
+                block.read(cursor);
+            } finally{
+                cursor.close();
+            }
+
+            block.write(data);
+            if(block.mRowCount > 0){
+                blockArgs[0] = String.valueOf(block.mIds[block.mRowCount - 1]);
+            }
+        } while(block.mRowCount == BLOCK_SIZE);
+
+        // The stream always ends with an empty block, which was only written above if the
+        // movies filled the last block exactly.
+        if(block.mRowCount > 0){
+            data.writeInt(0);
+        }
+        data.flush();
+    }
+
+    /**
+     * The columns of a block of movies. The arrays are reused from one block to the next, and
+     * only grow if a block needs more room.
+     */
+    private static class Block {
+        int mRowCount;
+        long[] mIds = new long[0];
+        long[] mGenreIds = new long[0];
+        int[] mReleaseDays = new int[0];
+        int[] mNameLengths = new int[0];
+        byte[] mNames = new byte[0];
+        int mNamesLength;
+
+        private void ensureCapacity(int rowCount){
+            if(mIds.length < rowCount){
+                mIds = new long[rowCount];
+                mGenreIds = new long[rowCount];
+                mReleaseDays = new int[rowCount];
+                mNameLengths = new int[rowCount];
+            }
+        }
+
+        private void ensureNamesCapacity(int length){
+            if(mNames.length < length){
+                byte[] names = new byte[Math.max(length, mNames.length * 2)];
+                System.arraycopy(mNames, 0, names, 0, mNamesLength);
+                mNames = names;
+            }
+        }
+
+        private void read(Cursor cursor){
+            mRowCount = cursor.getCount();
+            mNamesLength = 0;
+            ensureCapacity(mRowCount);
+
+            for(int row = 0; cursor.moveToNext(); row++){
+                mIds[row] = cursor.getLong(0);
+                mGenreIds[row] = cursor.getLong(1);
+                mReleaseDays[row] = cursor.isNull(2) ? NO_RELEASE_DAY : cursor.getInt(2);
+
+                byte[] name = cursor.getBlob(3);
+                ensureNamesCapacity(mNamesLength + name.length);
+                System.arraycopy(name, 0, mNames, mNamesLength, name.length);
+                mNameLengths[row] = name.length;
+                mNamesLength += name.length;
+            }
+        }
+
+        private void write(DataOutputStream data) throws IOException{
+            data.writeInt(mRowCount);
+            for(int row = 0; row < mRowCount; row++){
+                data.writeLong(mIds[row]);
+            }
+            for(int row = 0; row < mRowCount; row++){
+                data.writeLong(mGenreIds[row]);
+            }
+            for(int row = 0; row < mRowCount; row++){
+                data.writeInt(mReleaseDays[row]);
+            }
+            for(int row = 0; row < mRowCount; row++){
+                data.writeInt(mNameLengths[row]);
+            }
+            data.write(mNames, 0, mNamesLength);
+        }
+
+        private void read(DataInputStream data) throws IOException{
+            mRowCount = data.readInt();
+            if(mRowCount < 0){
+                throw new IOException("Invalid block of " + mRowCount + " movies");
+            }
+            ensureCapacity(mRowCount);
+
+            for(int row = 0; row < mRowCount; row++){
+                mIds[row] = data.readLong();
+            }
+            for(int row = 0; row < mRowCount; row++){
+                mGenreIds[row] = data.readLong();
+            }
+            for(int row = 0; row < mRowCount; row++){
+                mReleaseDays[row] = data.readInt();
+            }
+            mNamesLength = 0;
+            for(int row = 0; row < mRowCount; row++){
+                mNameLengths[row] = data.readInt();
+                if(mNameLengths[row] < 0){
+                    throw new IOException("Invalid name length " + mNameLengths[row]);
+                }
+                mNamesLength += mNameLengths[row];
+            }
+            mNames = mNames.length < mNamesLength ? new byte[mNamesLength] : mNames;
+            data.readFully(mNames, 0, mNamesLength);
+        }
+    }
+
+    /**
+     * Reads the movies a block at a time. The arrays it returns belong to the reader, and are
+     * overwritten by the next block, so copy anything that has to outlive it.
+     */
+    public static class Reader implements Closeable {
+        private final DataInputStream mInput;
+        private final Block mBlock = new Block();
+        private int[] mNameOffsets = new int[0];
+        private boolean mDone;
+
+        private Reader(InputStream input) throws IOException{
+            mInput = new DataInputStream(new BufferedInputStream(input));
+            if(mInput.readInt() != MAGIC){
+                throw new IOException("Not a movie frame");
+            }
+            int version = mInput.readInt();
+            if(version != VERSION){
+                throw new IOException("Unsupported movie frame version " + version);
+            }
+        }
+
+        /**
+         * Reads the next block of movies.
+         * @return Whether there was another block, false once every movie has been read.
+         */
+        public boolean next() throws IOException{
+            if(mDone){
+                return false;
+            }
+
+            try{
+                mBlock.read(mInput);
+            } catch(EOFException e){
+                throw new IOException("The movie frame ended early", e);
+            }
+            if(mBlock.mRowCount == 0){
+                mDone = true;
+                return false;
+            }
+
+            if(mNameOffsets.length < mBlock.mRowCount){
+                mNameOffsets = new int[mBlock.mIds.length];
+            }
+            int offset = 0;
+            for(int row = 0; row < mBlock.mRowCount; row++){
+                mNameOffsets[row] = offset;
+                offset += mBlock.mNameLengths[row];
+            }
+            return true;
+        }
+
+        /**
+         * Returns the number of movies in the current block.
+         */
+        public int getRowCount(){
+            return mBlock.mRowCount;
+        }
+
+        /**
+         * Returns the identifiers of the movies in the current block, in its first
+         * {@link #getRowCount()} elements.
+         */
+        public long[] getIds(){
+            return mBlock.mIds;
+        }
+
+        /**
+         * Returns the genre identifiers of the movies in the current block, in its first
+         * {@link #getRowCount()} elements.
+         */
+        public long[] getGenreIds(){
+            return mBlock.mGenreIds;
+        }
+
+        /**
+         * Returns the release days of the movies in the current block, in its first
+         * {@link #getRowCount()} elements.
+         */
+        public int[] getReleaseDays(){
+            return mBlock.mReleaseDays;
+        }
+
+        /**
+         * Decodes the name of a movie in the current block.
+         */
+        public String getName(int row){
+            if(row < 0 || row >= mBlock.mRowCount){
+                throw new IndexOutOfBoundsException("Row " + row + " of " + mBlock.mRowCount);
+            }
+            return new String(mBlock.mNames, mNameOffsets[row], mBlock.mNameLengths[row], UTF_8);
+        }
+
+        @Override
+        public void close() throws IOException{
+            mInput.close();
+        }
+    }
+}
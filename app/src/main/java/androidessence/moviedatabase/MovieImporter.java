@@ -0,0 +1,629 @@
+package androidessence.moviedatabase;
+
+import android.content.ContentResolver;
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.database.Cursor;
+import android.net.Uri;
+import android.util.JsonReader;
+import android.util.JsonToken;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Imports movies from a CSV or JSON file through MovieProvider. The file is streamed, so only
+ * one chunk of movies is held in memory at a time, and each chunk is written in a single
+ * transaction. Genres are looked up by name, and created if they don't exist yet.
+ *
+ * Movies are upserted, so a movie that already has the same name and release date is updated
+ * instead of added a second time. Importing a file again never duplicates its movies.
+ *
+ * After every chunk the position in the file right after the last movie imported is saved as a
+ * checkpoint. Importing the same, unchanged file again carries on from that position, without
+ * reading anything before it.
+ *
+ * Both formats use the movie column names as keys: {@link MovieContract.MovieEntry#COLUMN_NAME},
+ * {@link MovieContract.MovieEntry#COLUMN_RELEASE_DATE} and
+ * {@link MovieContract.MovieEntry#COLUMN_GENRE_NAME}. A CSV file starts with a header row of
+ * those names, and a JSON file is an array of objects with them. Anything else is ignored.
+ *
+ * Imports read and write a lot of data, so they must not be run on the main thread.
+ */
+public class MovieImporter {
+    /**
+     * Receives the progress of an import after every chunk.
+     */
+    public interface ProgressListener {
+        /**
+         * @param moviesImported The number of movies imported so far, including any that were
+         *                       imported before resuming from a checkpoint.
+         * @param bytesRead The number of bytes of the file read so far.
+         * @param totalBytes The size of the file.
+         */
+        void onProgress(long moviesImported, long bytesRead, long totalBytes);
+    }
+
+    public static final int DEFAULT_CHUNK_SIZE = 1000;
+
+    private static final String PREFERENCES_NAME = "movieImportCheckpoints";
+    private static final String KEY_SIGNATURE = ".signature";
+    private static final String KEY_MOVIES = ".movies";
+    private static final String KEY_POSITION = ".position";
+
+    // How much of the file is read at a time.
+    private static final int BUFFER_SIZE = 8192;
+
+    // The position of each value in a record.
+    private static final int NAME = 0;
+    private static final int RELEASE_DATE = 1;
+    private static final int GENRE_NAME = 2;
+    private static final String[] RECORD_KEYS = new String[]{
+            MovieContract.MovieEntry.COLUMN_NAME,
+            MovieContract.MovieEntry.COLUMN_RELEASE_DATE,
+            MovieContract.MovieEntry.COLUMN_GENRE_NAME
+    };
+
+    private static final Uri MOVIE_UPSERT_URI = MovieContract.buildUpsertUri(MovieContract.MovieEntry.CONTENT_URI);
+    private static final Uri GENRE_UPSERT_URI = MovieContract.buildUpsertUri(MovieContract.GenreEntry.CONTENT_URI);
+
+    private final ContentResolver mResolver;
+    private final SharedPreferences mCheckpoints;
+    private final int mChunkSize;
+
+    // The identifier of every genre by name, so each genre is only looked up once per import.
+    private Map<String, Long> mGenreIds;
+
+    public MovieImporter(Context context){
+        this(context, DEFAULT_CHUNK_SIZE);
+    }
+
+    /**
+     * @param chunkSize The number of movies written in each transaction.
+     */
+    public MovieImporter(Context context, int chunkSize){
+        mResolver = context.getContentResolver();
+        mCheckpoints = context.getSharedPreferences(PREFERENCES_NAME, Context.MODE_PRIVATE);
+        mChunkSize = chunkSize;
+    }
+
+    /**
+     * Imports the movies in a CSV file, resuming from its checkpoint if there is one.
+     * @param listener Receives the progress of the import, or null.
+     * @return The number of movies in the file that have been imported.
+     */
+    public long importCsv(File file, ProgressListener listener) throws IOException{
+        return importMovies(file, false, listener);
+    }
+
+    /**
+     * Imports the movies in a JSON file, resuming from its checkpoint if there is one.
+     * @param listener Receives the progress of the import, or null.
+     * @return The number of movies in the file that have been imported.
+     */
+    public long importJson(File file, ProgressListener listener) throws IOException{
+        return importMovies(file, true, listener);
+    }
+
+    /**
+     * Forgets the checkpoint of the file, so the next import of it starts from the beginning.
+     */
+    public void clearCheckpoint(File file){
+        String key = file.getAbsolutePath();
+        mCheckpoints.edit()
+                .remove(key + KEY_SIGNATURE)
+                .remove(key + KEY_MOVIES)
+                .remove(key + KEY_POSITION)
+                .commit();
+    }
+
+    private long importMovies(File file, boolean json, ProgressListener listener) throws IOException{
+        String key = file.getAbsolutePath();
+        String signature = file.length() + ":" + file.lastModified();
+
+        // A checkpoint only applies if the file hasn't changed since it was saved. Checkpoints
+        // saved before positions were kept can't be resumed from, so those start over.
+        long movies = 0;
+        long position = 0;
+        if(signature.equals(mCheckpoints.getString(key + KEY_SIGNATURE, null))
+                && mCheckpoints.contains(key + KEY_POSITION)){
+            movies = mCheckpoints.getLong(key + KEY_MOVIES, 0);
+            position = mCheckpoints.getLong(key + KEY_POSITION, 0);
+        }
+
+        // Genres may have been deleted since the last import, so they are read again.
+        mGenreIds = null;
+
+        Utf8FileReader input = new Utf8FileReader(new FileInputStream(file));
+        try{
+            RecordReader reader = json ? new JsonRecordReader(input, position) : new CsvRecordReader(input, position);
+            return importMovies(file, key, signature, reader, input, movies, listener);
+        } finally{
+            input.close();
+        }
+    }
+
+    /**
+     * Imports the movies left in the file.
+     * @param movies The number of movies in the file before the reader's position.
+     */
+    private long importMovies(File file, String key, String signature, RecordReader reader, Utf8FileReader input,
+                              long movies, ProgressListener listener) throws IOException{
+        String[] record = new String[RECORD_KEYS.length];
+        ContentValues[] chunk = new ContentValues[mChunkSize];
+        int chunkRows = 0;
+        boolean more = true;
+        while(more){
+            more = reader.read(record);
+            if(more){
+                chunk[chunkRows] = toMovieValues(record, movies + chunkRows + 1);
+                chunkRows++;
+            }
+
+            if(chunkRows == mChunkSize || (!more && chunkRows > 0)){
+                ContentValues[] rows = chunkRows == mChunkSize ? chunk : copyOf(chunk, chunkRows);
+                mResolver.bulkInsert(MOVIE_UPSERT_URI, rows);
+                movies += chunkRows;
+                chunkRows = 0;
+
+                // The reader stops right after the last movie it read, so this is where the next
+                // import starts.
+                mCheckpoints.edit()
+                        .putString(key + KEY_SIGNATURE, signature)
+                        .putLong(key + KEY_MOVIES, movies)
+                        .putLong(key + KEY_POSITION, input.getPosition())
+                        .commit();
+
+                if(listener != null){
+                    listener.onProgress(movies, input.getPosition(), file.length());
+                }
+            }
+        }
+
+        return movies;
+    }
+
+    private ContentValues toMovieValues(String[] record, long number) throws IOException{
+        for(int i = 0; i < record.length; i++){
+            if(record[i] == null){
+                throw new IOException("Movie " + number + " has no " + RECORD_KEYS[i]);
+            }
+        }
+
+        ContentValues values = new ContentValues();
+        values.put(MovieContract.MovieEntry.COLUMN_NAME, record[NAME]);
+        values.put(MovieContract.MovieEntry.COLUMN_RELEASE_DATE, record[RELEASE_DATE]);
+        values.put(MovieContract.MovieEntry.COLUMN_GENRE, getGenreId(record[GENRE_NAME]));
+        return values;
+    }
+
+    /**
+     * Returns the identifier of the genre with this name, creating the genre if there isn't one.
+     */
+    private long getGenreId(String name){
+        if(mGenreIds == null){
+            mGenreIds = queryGenreIds();
+        }
+
+        Long id = mGenreIds.get(name);
+        if(id == null){
+            ContentValues values = new ContentValues();
+            values.put(MovieContract.GenreEntry.COLUMN_NAME, name);
+            // Upserting returns the existing genre if someone else created it since the genres
+            // were read.
+            id = ContentUris.parseId(mResolver.insert(GENRE_UPSERT_URI, values));
+            mGenreIds.put(name, id);
+        }
+        return id;
+    }
+
+    private Map<String, Long> queryGenreIds(){
+        Cursor cursor = mResolver.query(
+                MovieContract.GenreEntry.CONTENT_URI,
+                new String[]{MovieContract.GenreEntry._ID, MovieContract.GenreEntry.COLUMN_NAME},
+                null,
+                null,
+                null
+        );
+
+        Map<String, Long> ids = new HashMap<String, Long>();
+        try{
+            while(cursor.moveToNext()){
+                ids.put(cursor.getString(1), cursor.getLong(0));
+            }
+        } finally{
+            cursor.close();
+        }
+        return ids;
+    }
+
+    private static ContentValues[] copyOf(ContentValues[] values, int length){
+        ContentValues[] copy = new ContentValues[length];
+        System.arraycopy(values, 0, copy, 0, length);
+        return copy;
+    }
+
+    /**
+     * Reads one movie at a time from a file.
+     */
+    private interface RecordReader {
+        /**
+         * Reads the next movie into the record, leaving anything the file doesn't have null.
+         * @return False if there are no more movies.
+         */
+        boolean read(String[] record) throws IOException;
+    }
+
+    /**
+     * Reads movies from CSV, as described by RFC 4180: fields that contain commas, quotes or
+     * line breaks are quoted, and quotes inside of them are doubled.
+     */
+    private static final class CsvRecordReader implements RecordReader {
+        private final Utf8FileReader mReader;
+        private final StringBuilder mField = new StringBuilder();
+        private final List<String> mFields = new ArrayList<String>();
+
+        // Where the first movie to read starts, or 0 to start right after the header.
+        private final long mStart;
+
+        // The position in a record of each column, or -1 if the column isn't needed.
+        private int[] mColumns;
+
+        private CsvRecordReader(Utf8FileReader reader, long start){
+            mReader = reader;
+            mStart = start;
+        }
+
+        @Override
+        public boolean read(String[] record) throws IOException {
+            if(mColumns == null){
+                if(!readRow()){
+                    return false;
+                }
+                mColumns = new int[mFields.size()];
+                for(int i = 0; i < mColumns.length; i++){
+                    mColumns[i] = indexOfKey(mFields.get(i).trim());
+                }
+                // The header is always read, to know the columns, and then the movies that have
+                // already been imported are skipped.
+                if(mStart > 0){
+                    mReader.seek(mStart);
+                }
+            }
+
+            // Skip blank lines.
+            do{
+                if(!readRow()){
+                    return false;
+                }
+            } while(mFields.size() == 1 && mFields.get(0).isEmpty());
+
+            for(int i = 0; i < record.length; i++){
+                record[i] = null;
+            }
+            for(int i = 0; i < mFields.size() && i < mColumns.length; i++){
+                if(mColumns[i] != -1){
+                    record[mColumns[i]] = mFields.get(i);
+                }
+            }
+            return true;
+        }
+
+        /**
+         * Reads the fields of the next row into mFields.
+         * @return False if the end of the file was reached before the row started.
+         */
+        private boolean readRow() throws IOException {
+            mFields.clear();
+            mField.setLength(0);
+
+            int c = mReader.read();
+            if(c == -1){
+                return false;
+            }
+
+            boolean quoted = false;
+            while(true){
+                if(quoted){
+                    if(c == -1){
+                        throw new IOException("Unterminated quoted field");
+                    } else if(c == '"'){
+                        c = mReader.read();
+                        if(c != '"'){
+                            // That was the closing quote, handle whatever follows it normally.
+                            quoted = false;
+                            continue;
+                        }
+                    }
+                    mField.append((char) c);
+                } else if(c == '"' && mField.length() == 0){
+                    quoted = true;
+                } else if(c == ','){
+                    mFields.add(mField.toString());
+                    mField.setLength(0);
+                } else if(c == '\n' || c == -1){
+                    break;
+                } else if(c != '\r'){
+                    mField.append((char) c);
+                }
+                c = mReader.read();
+            }
+
+            mFields.add(mField.toString());
+            return true;
+        }
+    }
+
+    /**
+     * Reads movies from a JSON array of objects.
+     */
+    private static final class JsonRecordReader implements RecordReader {
+        private final JsonReader mReader;
+        private boolean mStarted;
+
+        /**
+         * @param start Where the array element after the last movie imported starts, or 0 to
+         *              read the whole array.
+         */
+        private JsonRecordReader(Utf8FileReader reader, long start) throws IOException{
+            if(start > 0){
+                reader.seek(start);
+            }
+            mReader = new JsonReader(new ElementReader(reader, start > 0));
+        }
+
+        @Override
+        public boolean read(String[] record) throws IOException {
+            if(!mStarted){
+                mReader.beginArray();
+                mStarted = true;
+            }
+
+            if(!mReader.hasNext()){
+                mReader.endArray();
+                return false;
+            }
+
+            for(int i = 0; i < record.length; i++){
+                record[i] = null;
+            }
+
+            mReader.beginObject();
+            while(mReader.hasNext()){
+                int index = indexOfKey(mReader.nextName());
+                if(index == -1 || mReader.peek() == JsonToken.NULL){
+                    mReader.skipValue();
+                } else{
+                    record[index] = mReader.nextString();
+                }
+            }
+            mReader.endObject();
+            return true;
+        }
+    }
+
+    private static int indexOfKey(String key){
+        for(int i = 0; i < RECORD_KEYS.length; i++){
+            if(RECORD_KEYS[i].equals(key)){
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Passes the characters of a JSON array on to a JsonReader, but never past the end of one of
+     * its elements in a single read. JsonReader reads ahead as far as it can, so without this the
+     * position of the file would be somewhere after the movie it has just read.
+     *
+     * When resuming, the rest of the array after an element is made to look like a whole array
+     * again, by adding the opening bracket and dropping the comma after the element.
+     */
+    private static final class ElementReader extends Reader {
+        private final Utf8FileReader mInput;
+        private boolean mResume;
+        private boolean mSkipSeparator;
+        private int mDepth;
+        private boolean mInString;
+        private boolean mEscaped;
+
+        private ElementReader(Utf8FileReader input, boolean resume){
+            mInput = input;
+            mResume = resume;
+            mSkipSeparator = resume;
+            // Resuming starts inside the array.
+        }
+
+        @Override
+        public int read(char[] buffer, int offset, int count) throws IOException {
+            int read = 0;
+            if(mResume && count > 0){
+                buffer[offset] = '[';
+                mDepth = 1;
+                mResume = false;
+                read++;
+            }
+
+            while(read < count){
+                int c = mInput.read();
+                if(c == -1){
+                    break;
+                }
+                if(mSkipSeparator){
+                    if(Character.isWhitespace(c)){
+                        continue;
+                    }
+                    mSkipSeparator = false;
+                    if(c == ','){
+                        continue;
+                    }
+                }
+
+                buffer[offset + read++] = (char) c;
+                if(mInString){
+                    if(mEscaped){
+                        mEscaped = false;
+                    } else if(c == '\\'){
+                        mEscaped = true;
+                    } else if(c == '"'){
+                        mInString = false;
+                    }
+                } else if(c == '"'){
+                    mInString = true;
+                } else if(c == '{' || c == '['){
+                    mDepth++;
+                } else if(c == '}' || c == ']'){
+                    mDepth--;
+                    if(mDepth == 1){
+                        // An element of the array has just ended.
+                        break;
+                    }
+                }
+            }
+            return read == 0 && count > 0 ? -1 : read;
+        }
+
+        @Override
+        public void close() throws IOException {
+            mInput.close();
+        }
+    }
+
+    /**
+     * Reads a UTF-8 file one character at a time, keeping track of the position in the file
+     * right after the last character read. Invalid bytes are read as U+FFFD.
+     */
+    private static final class Utf8FileReader extends Reader {
+        private static final char REPLACEMENT = '\uFFFD';
+
+        private final FileInputStream mInput;
+        private final FileChannel mChannel;
+        private final ByteBuffer mBuffer = ByteBuffer.allocate(BUFFER_SIZE);
+
+        // The position in the file of the first byte in the buffer.
+        private long mBufferStart;
+
+        // The second half of a character outside of the basic plane, or 0 if there isn't one.
+        private char mLowSurrogate;
+
+        private Utf8FileReader(FileInputStream input){
+            mInput = input;
+            mChannel = input.getChannel();
+            mBuffer.limit(0);
+        }
+
+        /**
+         * Returns the position in the file right after the last character read. A character
+         * outside of the basic plane is read as two, and both of them end after all its bytes.
+         */
+        long getPosition(){
+            return mBufferStart + mBuffer.position();
+        }
+
+        /**
+         * Continues reading from a position in the file, which has to be at the start of a
+         * character.
+         */
+        void seek(long position) throws IOException{
+            mChannel.position(position);
+            mBufferStart = position;
+            mBuffer.clear();
+            mBuffer.limit(0);
+            mLowSurrogate = 0;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if(mLowSurrogate != 0){
+                char low = mLowSurrogate;
+                mLowSurrogate = 0;
+                return low;
+            }
+            if(!fill(1)){
+                return -1;
+            }
+
+            int b = mBuffer.get() & 0xff;
+            if(b < 0x80){
+                return b;
+            }
+
+            int extra;
+            int codePoint;
+            if(b >= 0xf8 || b < 0xc0){
+                return REPLACEMENT;
+            } else if(b >= 0xf0){
+                extra = 3;
+                codePoint = b & 0x07;
+            } else if(b >= 0xe0){
+                extra = 2;
+                codePoint = b & 0x0f;
+            } else{
+                extra = 1;
+                codePoint = b & 0x1f;
+            }
+
+            fill(extra);
+            for(int i = 0; i < extra; i++){
+                // A sequence that is cut short leaves the next byte to be read by itself.
+                if(!mBuffer.hasRemaining() || (mBuffer.get(mBuffer.position()) & 0xc0) != 0x80){
+                    return REPLACEMENT;
+                }
+                codePoint = (codePoint << 6) | (mBuffer.get() & 0x3f);
+            }
+
+            if(codePoint >= 0x10000){
+                codePoint -= 0x10000;
+                mLowSurrogate = (char) (0xdc00 + (codePoint & 0x3ff));
+                return 0xd800 + (codePoint >> 10);
+            }
+            return codePoint;
+        }
+
+        @Override
+        public int read(char[] buffer, int offset, int count) throws IOException {
+            int read = 0;
+            while(read < count){
+                int c = read();
+                if(c == -1){
+                    break;
+                }
+                buffer[offset + read++] = (char) c;
+            }
+            return read == 0 && count > 0 ? -1 : read;
+        }
+
+        /**
+         * Reads more of the file into the buffer, unless it already holds enough.
+         * @return Whether the buffer holds at least that many bytes.
+         */
+        private boolean fill(int count) throws IOException {
+            if(mBuffer.remaining() >= count){
+                return true;
+            }
+
+            mBufferStart += mBuffer.position();
+            mBuffer.compact();
+            while(mBuffer.position() < count && mChannel.read(mBuffer) != -1){
+                // Keep reading until there is enough, or the file ends.
+            }
+            mBuffer.flip();
+            return mBuffer.remaining() >= count;
+        }
+
+        @Override
+        public void close() throws IOException {
+            mInput.close();
+        }
+    }
+}
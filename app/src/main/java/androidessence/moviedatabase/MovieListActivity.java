@@ -1,16 +1,149 @@
 package androidessence.moviedatabase;
 
+import android.support.v4.app.LoaderManager;
+import android.support.v4.content.Loader;
 import android.support.v7.app.AppCompatActivity;
+import android.content.ContentResolver;
+import android.database.ContentObserver;
+import android.database.Cursor;
+import android.os.AsyncTask;
+import android.os.Build;
 import android.os.Bundle;
+import android.os.Handler;
+import android.os.SystemClock;
+import android.util.Log;
+import android.view.ActionMode;
 import android.view.Menu;
 import android.view.MenuItem;
+import android.view.View;
+import android.view.ViewTreeObserver;
+import android.widget.AbsListView;
+import android.widget.ListView;
 
-public class MovieListActivity extends AppCompatActivity {
+/**
+ * Lists every movie along with its genre, newest first.
+ *
+ * The movies are loaded a page at a time, on a background thread, by paging through the
+ * movies in order of release date. Only the first page is loaded up front, and the next one is
+ * loaded as the user scrolls close to the end of the ones loaded so far. The list only keeps a
+ * few pages around the ones on screen, so memory stays flat however far it is scrolled: pages
+ * scrolled far past are dropped, and loaded again if the user scrolls back up to them. Nothing
+ * is read from the database on the main thread, and the list recycles its rows.
+ *
+ * When the movies change only the changes since the last load are read, and applied to the
+ * loaded pages: inserted and updated movies are put where they belong, and deleted ones are
+ * removed. The whole list is only loaded again when a genre changed, or the changes are no
+ * longer kept.
+ *
+ * Movies are selected with a long press, and every selected movie is deleted with a single call
+ * to the provider.
+ *
+ * The time from onCreate until the first frame showing the loaded list is logged, to measure
+ * how long a cold start takes to show the movies.
+ */
+public class MovieListActivity extends AppCompatActivity implements LoaderManager.LoaderCallbacks<Cursor> {
+    private static final String LOG_TAG = MovieListActivity.class.getSimpleName();
+
+    private static final int MOVIE_LOADER = 0;
+    private static final int CHANGES_LOADER = 1;
+    private static final int PAGE_LOADER = 2;
+
+    private static final int PAGE_SIZE = MovieContract.MovieEntry.DEFAULT_PAGE_SIZE;
+
+    // How close to either end of the loaded movies the list is scrolled before the page past it
+    // is loaded, so it is usually there before it is needed.
+    private static final int PAGE_PREFETCH = PAGE_SIZE / 2;
+
+    private static final String ARG_AFTER_RELEASE_DATE = "afterReleaseDate";
+    private static final String ARG_AFTER_ID = "afterId";
+    private static final String ARG_PREVIOUS = "previous";
+
+    private static final String[] CHANGES_PROJECTION = new String[]{
+            MovieContract.MovieChangeEntry.COLUMN_VERSION,
+            MovieContract.MovieChangeEntry.COLUMN_OPERATION,
+            MovieContract.MovieChangeEntry.COLUMN_MOVIE_ID,
+            MovieContract.MovieEntry.COLUMN_NAME,
+            MovieContract.MovieEntry.COLUMN_RELEASE_DATE,
+            MovieContract.MovieEntry.COLUMN_GENRE_NAME
+    };
+
+    // The position of each column in the changes projection.
+    private static final int CHANGE_VERSION = 0;
+    private static final int CHANGE_OPERATION = 1;
+    private static final int CHANGE_MOVIE_ID = 2;
+    private static final int CHANGE_NAME = 3;
+    private static final int CHANGE_RELEASE_DATE = 4;
+    private static final int CHANGE_GENRE_NAME = 5;
+
+    private MovieAdapter mAdapter;
+    private ListView mListView;
+
+    // When onCreate was called, or 0 once the first frame of the list has been drawn.
+    private long mCreateTime;
+
+    // The version of the movies the list shows, or -1 while the whole list is being loaded.
+    private long mVersion = -1;
+
+    // The last pages shown, since a loader delivers its page again when the activity restarts.
+    private MoviePageLoader.Page mFirstPage;
+    private MoviePageLoader.Page mNextPage;
+
+    // Whether a page before or after the loaded ones is being loaded.
+    private boolean mLoadingPage;
+
+    private final PageCallbacks mPageCallbacks = new PageCallbacks();
+
+    private final ContentObserver mMovieObserver = new ContentObserver(new Handler()) {
+        @Override
+        public void onChange(boolean selfChange) {
+            loadChanges();
+        }
+    };
+
+    private final ContentObserver mGenreObserver = new ContentObserver(new Handler()) {
+        @Override
+        public void onChange(boolean selfChange) {
+            // Every movie shows the name of its genre, so any of them could have changed.
+            reloadMovies();
+        }
+    };
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
+        mCreateTime = SystemClock.uptimeMillis();
         setContentView(R.layout.activity_movie_list);
+
+        mAdapter = new MovieAdapter(this, PAGE_SIZE);
+        mListView = (ListView) findViewById(R.id.movie_list);
+        mListView.setEmptyView(findViewById(R.id.movie_list_empty));
+        mListView.setAdapter(mAdapter);
+        mListView.setMultiChoiceModeListener(new SelectionListener(mListView));
+        mListView.setOnScrollListener(new AbsListView.OnScrollListener() {
+            @Override
+            public void onScrollStateChanged(AbsListView view, int scrollState) {
+            }
+
+            @Override
+            public void onScroll(AbsListView view, int firstVisibleItem, int visibleItemCount, int totalItemCount) {
+                if(firstVisibleItem + visibleItemCount >= totalItemCount - PAGE_PREFETCH){
+                    loadNextPage();
+                } else if(firstVisibleItem <= PAGE_PREFETCH){
+                    loadPreviousPage();
+                }
+            }
+        });
+
+        getContentResolver().registerContentObserver(MovieContract.MovieEntry.CONTENT_URI, true, mMovieObserver);
+        getContentResolver().registerContentObserver(MovieContract.GenreEntry.CONTENT_URI, true, mGenreObserver);
+        getSupportLoaderManager().initLoader(MOVIE_LOADER, null, mPageCallbacks);
+    }
+
+    @Override
+    protected void onDestroy() {
+        getContentResolver().unregisterContentObserver(mMovieObserver);
+        getContentResolver().unregisterContentObserver(mGenreObserver);
+        super.onDestroy();
     }
 
     @Override
@@ -34,4 +167,304 @@ public class MovieListActivity extends AppCompatActivity {
 
         return super.onOptionsItemSelected(item);
     }
+
+    @Override
+    public Loader<Cursor> onCreateLoader(int id, Bundle args) {
+        return new MovieListLoader(
+                this,
+                MovieContract.MovieChangeEntry.buildChangesUri(mVersion),
+                CHANGES_PROJECTION,
+                null,
+                null,
+                null
+        );
+    }
+
+    @Override
+    public void onLoadFinished(Loader<Cursor> loader, Cursor data) {
+        applyChanges(data, ((MovieListLoader) loader).getVersion());
+    }
+
+    @Override
+    public void onLoaderReset(Loader<Cursor> loader) {
+    }
+
+    /**
+     * Shows the first page of the list, in place of every movie shown before.
+     */
+    private void onFirstPageLoaded(MoviePageLoader.Page page){
+        mFirstPage = page;
+        mNextPage = null;
+        mLoadingPage = false;
+        mAdapter.setFirstPage(page);
+        mVersion = page.mVersion;
+        if(mCreateTime > 0){
+            logFirstFrame();
+        }
+        // Anything that changed while the page was loading, or since the page this loader kept
+        // across a configuration change was loaded, is read now.
+        loadChanges();
+    }
+
+    /**
+     * Adds a page before or after the loaded ones to the list, keeping the movies on screen where
+     * they are.
+     */
+    private void onNextPageLoaded(MoviePageLoader.Page page){
+        mNextPage = page;
+        mLoadingPage = false;
+        if(mVersion < 0){
+            // The page was read for a list that has been replaced since.
+            return;
+        }
+
+        // Adding a page drops the one furthest from it, so the positions of the movies on screen
+        // move by however many were added or dropped before them.
+        int first = mListView.getFirstVisiblePosition();
+        View firstView = mListView.getChildAt(0);
+        int top = firstView != null ? firstView.getTop() : 0;
+        int moved = page.mPrevious ? mAdapter.addPreviousPage(page) : mAdapter.addNextPage(page);
+        if(moved < 0){
+            // The page doesn't fit onto the loaded ones any more.
+            return;
+        }
+        if(!page.mPrevious){
+            // Movies dropped from the start move the rest up.
+            moved = -moved;
+        }
+        if(moved != 0){
+            mListView.setSelectionFromTop(Math.max(first + moved, 0), top);
+        }
+
+        // The page may have been read before some of the changes already applied to the list,
+        // so they are read again from its version. Applying a change twice is harmless.
+        if(page.mVersion < mVersion){
+            mVersion = page.mVersion;
+            loadChanges();
+        }
+
+        // Keep loading if the list still doesn't reach past the bottom of the screen. Only while
+        // nothing moved, since the visible positions are out of date until the next layout.
+        if(moved == 0 && !page.mPrevious
+                && mListView.getLastVisiblePosition() >= mAdapter.getCount() - 1 - PAGE_PREFETCH){
+            loadNextPage();
+        }
+    }
+
+    /**
+     * Loads the page after the last movie loaded, unless a page is already being loaded or the
+     * rest of the list has been.
+     */
+    private void loadNextPage(){
+        if(mVersion < 0 || mLoadingPage || mAdapter.isComplete() || mAdapter.getEndReleaseDate() == null){
+            return;
+        }
+        loadPage(mAdapter.getEndReleaseDate(), mAdapter.getEndId(), false);
+    }
+
+    /**
+     * Loads the page before the first movie loaded, unless a page is already being loaded or the
+     * list starts at the top.
+     */
+    private void loadPreviousPage(){
+        if(mVersion < 0 || mLoadingPage || mAdapter.isAtStart()){
+            return;
+        }
+        loadPage(mAdapter.getStartReleaseDate(), mAdapter.getStartId(), true);
+    }
+
+    private void loadPage(String afterReleaseDate, long afterId, boolean previous){
+        mLoadingPage = true;
+        Bundle args = new Bundle();
+        args.putString(ARG_AFTER_RELEASE_DATE, afterReleaseDate);
+        args.putLong(ARG_AFTER_ID, afterId);
+        args.putBoolean(ARG_PREVIOUS, previous);
+        getSupportLoaderManager().restartLoader(PAGE_LOADER, args, mPageCallbacks);
+    }
+
+    /**
+     * Logs how long after onCreate the first frame with the loaded list is drawn.
+     */
+    private void logFirstFrame(){
+        final ViewTreeObserver observer = mListView.getViewTreeObserver();
+        observer.addOnPreDrawListener(new ViewTreeObserver.OnPreDrawListener() {
+            @Override
+            public boolean onPreDraw() {
+                if(observer.isAlive()){
+                    observer.removeOnPreDrawListener(this);
+                } else{
+                    mListView.getViewTreeObserver().removeOnPreDrawListener(this);
+                }
+
+                if(mCreateTime > 0){
+                    Log.i(LOG_TAG, "First list frame drawn " + (SystemClock.uptimeMillis() - mCreateTime)
+                            + " ms after onCreate, showing " + mAdapter.getCount() + " movies");
+                    mCreateTime = 0;
+                    // Also shows up as "Fully drawn" in the activity manager's log, timed from
+                    // when the activity was launched.
+                    if(Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT){
+                        reportFullyDrawn();
+                    }
+                }
+                return true;
+            }
+        });
+    }
+
+    /**
+     * Reads the changes to the movies since the version the list shows.
+     */
+    private void loadChanges(){
+        // Changes made while the whole list loads are read once it has been loaded.
+        if(mVersion >= 0){
+            getSupportLoaderManager().restartLoader(CHANGES_LOADER, null, this);
+        }
+    }
+
+    /**
+     * Loads the whole list again.
+     */
+    private void reloadMovies(){
+        if(mVersion >= 0){
+            mVersion = -1;
+            mLoadingPage = false;
+            getSupportLoaderManager().destroyLoader(CHANGES_LOADER);
+            getSupportLoaderManager().destroyLoader(PAGE_LOADER);
+            getSupportLoaderManager().restartLoader(MOVIE_LOADER, null, mPageCallbacks);
+        }
+    }
+
+    /**
+     * Applies the changes to the loaded pages, using the current values of every changed movie,
+     * or loads the whole list again if the changes are no longer kept.
+     * @param version The version of the movies as of when the changes were read.
+     */
+    private void applyChanges(Cursor changes, long version){
+        // The changes were read for a list that is being replaced.
+        if(mVersion < 0){
+            return;
+        }
+
+        changes.moveToPosition(-1);
+        while(changes.moveToNext()){
+            // A reset row has no movie, so the operation is checked before anything else.
+            switch(changes.getInt(CHANGE_OPERATION)){
+                case MovieContract.MovieChangeEntry.OPERATION_INSERT:
+                case MovieContract.MovieChangeEntry.OPERATION_UPDATE:
+                    mAdapter.putMovie(
+                            changes.getLong(CHANGE_MOVIE_ID),
+                            changes.getString(CHANGE_NAME),
+                            changes.getString(CHANGE_RELEASE_DATE),
+                            changes.getString(CHANGE_GENRE_NAME)
+                    );
+                    break;
+                case MovieContract.MovieChangeEntry.OPERATION_DELETE:
+                    mAdapter.removeMovie(changes.getLong(CHANGE_MOVIE_ID));
+                    break;
+                default:
+                    reloadMovies();
+                    return;
+            }
+            version = Math.max(version, changes.getLong(CHANGE_VERSION));
+        }
+        if(changes.getCount() > 0){
+            mAdapter.notifyDataSetChanged();
+        }
+        mVersion = Math.max(mVersion, version);
+    }
+
+    /**
+     * Loads the first page of the list, and the pages before and after the loaded ones.
+     */
+    private final class PageCallbacks implements LoaderManager.LoaderCallbacks<MoviePageLoader.Page> {
+        @Override
+        public Loader<MoviePageLoader.Page> onCreateLoader(int id, Bundle args) {
+            if(id == PAGE_LOADER){
+                return new MoviePageLoader(MovieListActivity.this, args.getString(ARG_AFTER_RELEASE_DATE),
+                        args.getLong(ARG_AFTER_ID), args.getBoolean(ARG_PREVIOUS), PAGE_SIZE);
+            }
+            return new MoviePageLoader(MovieListActivity.this, null, -1, false, PAGE_SIZE);
+        }
+
+        @Override
+        public void onLoadFinished(Loader<MoviePageLoader.Page> loader, MoviePageLoader.Page data) {
+            if(loader.getId() == PAGE_LOADER){
+                if(data != mNextPage){
+                    onNextPageLoaded(data);
+                }
+            } else if(data != mFirstPage){
+                onFirstPageLoaded(data);
+            }
+        }
+
+        @Override
+        public void onLoaderReset(Loader<MoviePageLoader.Page> loader) {
+        }
+    }
+
+    /**
+     * Shows how many movies are selected, and deletes them.
+     */
+    private final class SelectionListener implements AbsListView.MultiChoiceModeListener {
+        private final ListView mListView;
+
+        private SelectionListener(ListView listView){
+            mListView = listView;
+        }
+
+        @Override
+        public boolean onCreateActionMode(ActionMode mode, Menu menu) {
+            mode.getMenuInflater().inflate(R.menu.menu_movie_list_selection, menu);
+            return true;
+        }
+
+        @Override
+        public boolean onPrepareActionMode(ActionMode mode, Menu menu) {
+            return false;
+        }
+
+        @Override
+        public boolean onActionItemClicked(ActionMode mode, MenuItem item) {
+            if(item.getItemId() == R.id.action_delete){
+                new DeleteMoviesTask(getContentResolver()).execute(mListView.getCheckedItemIds());
+                mode.finish();
+                return true;
+            }
+            return false;
+        }
+
+        @Override
+        public void onItemCheckedStateChanged(ActionMode mode, int position, long id, boolean checked) {
+            mode.setTitle(getString(R.string.movies_selected, mListView.getCheckedItemCount()));
+        }
+
+        @Override
+        public void onDestroyActionMode(ActionMode mode) {
+        }
+    }
+
+    /**
+     * Deletes movies by their identifiers off the main thread. The list finds out they are gone
+     * from the change log, like any other change.
+     */
+    private static final class DeleteMoviesTask extends AsyncTask<long[], Void, Void> {
+        private final ContentResolver mResolver;
+
+        private DeleteMoviesTask(ContentResolver resolver){
+            mResolver = resolver;
+        }
+
+        @Override
+        protected Void doInBackground(long[]... ids) {
+            Bundle extras = new Bundle();
+            extras.putLongArray(MovieContract.EXTRA_IDS, ids[0]);
+            mResolver.call(
+                    MovieContract.MovieEntry.CONTENT_URI,
+                    MovieContract.METHOD_DELETE_IDS,
+                    MovieContract.MovieEntry.CONTENT_URI.toString(),
+                    extras
+            );
+            return null;
+        }
+    }
 }
@@ -0,0 +1,49 @@
+package androidessence.moviedatabase;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.net.Uri;
+import android.support.v4.content.CursorLoader;
+
+/**
+ * Loads a movie cursor along with the version of the movies it was read at. Unlike a plain
+ * CursorLoader it doesn't query again by itself when the movies change. MovieListActivity asks
+ * for the changes since the version instead, and only reloads when it has to.
+ */
+class MovieListLoader extends CursorLoader {
+    private volatile long mVersion;
+
+    MovieListLoader(Context context, Uri uri, String[] projection, String selection, String[] selectionArgs, String sortOrder){
+        super(context, uri, projection, selection, selectionArgs, sortOrder);
+    }
+
+    /**
+     * Returns the version of the movies as of the last load. Every change after it is visible in
+     * the loaded cursor or can be read from the change log, and some changes up to it may be
+     * visible as well, so changes since it must be safe to apply twice.
+     */
+    long getVersion(){
+        return mVersion;
+    }
+
+    @Override
+    public Cursor loadInBackground() {
+        // The version is read before the cursor, so nothing can change between the two without
+        // being logged after the version.
+        long version = getContext().getContentResolver().call(
+                MovieContract.MovieEntry.CONTENT_URI,
+                MovieContract.METHOD_GET_MOVIE_VERSION,
+                null,
+                null
+        ).getLong(MovieContract.EXTRA_VERSION);
+
+        Cursor cursor = super.loadInBackground();
+        mVersion = version;
+        return cursor;
+    }
+
+    @Override
+    public void onContentChanged() {
+        // The activity decides what to load again when the movies change.
+    }
+}
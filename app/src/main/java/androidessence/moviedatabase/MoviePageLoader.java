@@ -0,0 +1,173 @@
+package androidessence.moviedatabase;
+
+import android.content.ContentResolver;
+import android.content.Context;
+import android.database.Cursor;
+import android.support.v4.content.AsyncTaskLoader;
+import android.util.LongSparseArray;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Loads one page of the movie list, newest first, on a background thread. Each movie is read
+ * along with the name of its genre, and copied out of the cursor, so nothing is left to read on
+ * the main thread. A page either follows a movie, or comes before it when the list scrolls back
+ * up to movies it has dropped.
+ *
+ * Like MovieListLoader, every page comes with the version of the movies it was read at, so the
+ * list knows which changes it may be missing. A page doesn't load again by itself when the
+ * movies change.
+ */
+class MoviePageLoader extends AsyncTaskLoader<MoviePageLoader.Page> {
+    // The columns of the list, which are all in the list index.
+    private static final String[] PROJECTION = new String[]{
+            MovieContract.MovieEntry._ID,
+            MovieContract.MovieEntry.COLUMN_NAME,
+            MovieContract.MovieEntry.COLUMN_RELEASE_DATE,
+            MovieContract.MovieEntry.COLUMN_GENRE
+    };
+
+    private static final String[] GENRE_PROJECTION = new String[]{
+            MovieContract.GenreEntry._ID,
+            MovieContract.GenreEntry.COLUMN_NAME
+    };
+
+    private final String mAfterReleaseDate;
+    private final long mAfterId;
+    private final boolean mPrevious;
+    private final int mLimit;
+    private Page mPage;
+
+    /**
+     * @param afterReleaseDate The release date of the movie the page is next to, or null for the
+     *                         first page.
+     * @param afterId The identifier of the movie the page is next to.
+     * @param previous Whether to load the movies before that movie, instead of after it.
+     * @param limit The most movies to load.
+     */
+    MoviePageLoader(Context context, String afterReleaseDate, long afterId, boolean previous, int limit){
+        super(context);
+        mAfterReleaseDate = afterReleaseDate;
+        mAfterId = afterId;
+        mPrevious = previous;
+        mLimit = limit;
+    }
+
+    @Override
+    public Page loadInBackground() {
+        ContentResolver resolver = getContext().getContentResolver();
+
+        // The version is read before the movies, so nothing can change between the two without
+        // being logged after the version.
+        long version = resolver.call(
+                MovieContract.MovieEntry.CONTENT_URI,
+                MovieContract.METHOD_GET_MOVIE_VERSION,
+                null,
+                null
+        ).getLong(MovieContract.EXTRA_VERSION);
+
+        // There are only a few genres, and the provider keeps them in memory.
+        LongSparseArray<String> genreNames = new LongSparseArray<String>();
+        Cursor cursor = resolver.query(MovieContract.GenreEntry.CONTENT_URI, GENRE_PROJECTION, null, null, null);
+        try{
+            while(cursor.moveToNext()){
+                genreNames.put(cursor.getLong(0), cursor.getString(1));
+            }
+        } finally{
+            cursor.close();
+        }
+
+        // The movies before one in the list are the ones after it in the opposite order, nearest
+        // first, so they are read that way and then turned around.
+        List<MovieAdapter.Movie> movies = new ArrayList<MovieAdapter.Movie>(mLimit);
+        cursor = resolver.query(
+                mPrevious
+                        ? MovieContract.MovieEntry.buildMoviePageByReleaseDateUri(mAfterReleaseDate, mAfterId, mLimit)
+                        : MovieContract.MovieEntry.buildMoviePageByReleaseDateDescendingUri(mAfterReleaseDate, mAfterId, mLimit),
+                PROJECTION,
+                null,
+                null,
+                null
+        );
+        try{
+            while(cursor.moveToNext()){
+                movies.add(new MovieAdapter.Movie(
+                        cursor.getLong(0),
+                        cursor.getString(1),
+                        cursor.getString(2),
+                        genreNames.get(cursor.getLong(3))
+                ));
+            }
+        } finally{
+            cursor.close();
+        }
+
+        boolean last = movies.size() < mLimit;
+        if(mPrevious){
+            Collections.reverse(movies);
+        }
+        return new Page(mAfterReleaseDate, mAfterId, mPrevious, movies, last, version);
+    }
+
+    @Override
+    public void deliverResult(Page page) {
+        mPage = page;
+        if(isStarted()){
+            super.deliverResult(page);
+        }
+    }
+
+    @Override
+    protected void onStartLoading() {
+        if(mPage != null){
+            deliverResult(mPage);
+        } else{
+            forceLoad();
+        }
+    }
+
+    @Override
+    protected void onStopLoading() {
+        cancelLoad();
+    }
+
+    @Override
+    protected void onReset() {
+        onStopLoading();
+        mPage = null;
+    }
+
+    /**
+     * A page of movies, and where in the list it goes.
+     */
+    static final class Page {
+        // The movie the page is next to, or null for the first page.
+        final String mAfterReleaseDate;
+        final long mAfterId;
+
+        // Whether the page comes before that movie instead of after it.
+        final boolean mPrevious;
+
+        // The movies in the order of the list.
+        final List<MovieAdapter.Movie> mMovies;
+
+        // Whether there are no more movies past this page, in the direction it was loaded.
+        final boolean mLast;
+
+        // The version of the movies the page was read at. Every change after it can be read
+        // from the change log.
+        final long mVersion;
+
+        private Page(String afterReleaseDate, long afterId, boolean previous, List<MovieAdapter.Movie> movies,
+                     boolean last, long version){
+            mAfterReleaseDate = afterReleaseDate;
+            mAfterId = afterId;
+            mPrevious = previous;
+            mMovies = movies;
+            mLast = last;
+            mVersion = version;
+        }
+    }
+}
@@ -1,49 +1,252 @@
 package androidessence.moviedatabase;
 
 import android.content.ContentProvider;
-import android.content.ContentUris;
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
 import android.content.ContentValues;
+import android.content.OperationApplicationException;
 import android.content.UriMatcher;
 import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.MatrixCursor;
+import android.database.SQLException;
 import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteQueryBuilder;
 import android.net.Uri;
+import android.os.Bundle;
+import android.os.ParcelFileDescriptor;
+import android.os.Parcelable;
+import android.provider.BaseColumns;
+import android.text.TextUtils;
+import android.util.Log;
+import android.util.SparseArray;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 /**
  * Created by adammcneilly on 9/19/15.
  */
 public class MovieProvider extends ContentProvider {
+    private static final String LOG_TAG = MovieProvider.class.getSimpleName();
+
     // Use an int for each URI we will run, this represents the different queries
     private static final int GENRE = 100;
     private static final int GENRE_ID = 101;
+    private static final int GENRE_STATS = 102;
     private static final int MOVIE = 200;
     private static final int MOVIE_ID = 201;
+    private static final int MOVIE_PAGE = 202;
+    private static final int MOVIE_SEARCH = 203;
+    private static final int MOVIE_WITH_GENRE = 204;
+    private static final int MOVIE_CHANGES = 205;
+    private static final int MOVIE_YEAR_STATS = 206;
+    private static final int MOVIE_FRAME = 207;
+    private static final int BACKUP = 300;
+
+    // The columns that identify an existing genre or movie when upserting.
+    private static final String[] GENRE_KEY = new String[]{
+            MovieContract.GenreEntry.COLUMN_NAME
+    };
+    private static final String[] MOVIE_KEY = new String[]{
+            MovieContract.MovieEntry.COLUMN_NAME,
+            MovieContract.MovieEntry.COLUMN_RELEASE_DATE
+    };
+
+    // The selection used to find a single row by its identifier.
+    private static final String BY_ID_SELECTION = BaseColumns._ID + " = ?";
+
+    // The most identifiers bound to a single statement when writing rows by their identifiers,
+    // which keeps well within SQLite's limit of 999 parameters.
+    private static final int MAX_IDS_PER_STATEMENT = 500;
+
+    // How many candidates of each kind a search ranks for every movie it returns.
+    private static final int SEARCH_CANDIDATES_PER_RESULT = 10;
+
+    // Movie frames are written to their pipe in chunks of this many bytes.
+    private static final int FRAME_BUFFER_SIZE = 64 * 1024;
+
+    // Maps every movie column to the same column of the movie table, for queries that join it
+    // to another table with columns of the same name.
+    private static final Map<String, String> sMovieColumns = buildColumnMap(
+            MovieContract.MovieEntry.TABLE_NAME,
+            MovieContract.MovieEntry.COLUMNS
+    );
+
+    // Maps every column of a movie joined to its genre, with the genre's _ID left out so it
+    // can't clash with the movie's.
+    private static final Map<String, String> sMovieWithGenreColumns = buildMovieWithGenreColumns();
+
+    // Maps every column of the genre stats, which are the genres joined to their movie counts.
+    private static final Map<String, String> sGenreStatsColumns = buildGenreStatsColumns();
+
+    // The counts of movies in each genre, and the movies with the names of their genres, change
+    // along with both the genres and the movies, so their cursors are told about changes to
+    // every URI of the provider.
+    private static final Uri GENRE_AND_MOVIE_NOTIFICATION_URI = Uri.parse("content://" + MovieContract.CONTENT_AUTHORITY);
+
+    // The path of every URI the matcher knows, by its code, which names it in the metrics.
+    private static final SparseArray<String> sUriPaths = new SparseArray<String>();
+
+    // Maps every column of a movie change: the change itself, the movie's current columns and
+    // the name of its genre.
+    private static final Map<String, String> sMovieChangeColumns = buildMovieChangeColumns();
 
     private static final UriMatcher sUriMatcher = buildUriMatcher();
     private MovieDBHelper mOpenHelper;
 
+    // How long each operation takes, along with the slow query log.
+    private ProviderMetrics mMetrics;
+
+    // Recently read movies, or null if the cache has been turned off.
+    private MovieRowCache mMovieRows;
+
+    // Sends the change notifications once the changes have been coalesced.
+    private ChangeNotifier mChangeNotifier;
+
+    // Opens the database in the background, every use of it waits for this first. Null if the
+    // warm up has been turned off, and the database is opened by the first use of it instead.
+    private DatabaseWarmUp mWarmUp;
+
+    // Holds the URIs changed by a batch running on the current thread. Observers are only told
+    // about them once the batch has been committed, instead of once for every row.
+    private final ThreadLocal<Set<Uri>> mPendingNotifications = new ThreadLocal<Set<Uri>>();
+
     @Override
     public boolean onCreate() {
-        mOpenHelper = new MovieDBHelper(getContext());
+        mMetrics = new ProviderMetrics(getContext().getResources().getInteger(R.integer.slow_query_threshold_ms));
+        mOpenHelper = new MovieDBHelper(getContext(), mMetrics.getCursorFactory());
+        // onCreate runs on the main thread while the process starts, so the database is opened
+        // on another thread instead of here.
+        int warmUpMovieCount = getContext().getResources().getInteger(R.integer.warm_up_movie_count);
+        if(warmUpMovieCount >= 0){
+            mWarmUp = new DatabaseWarmUp(mOpenHelper, warmUpMovieCount);
+            mWarmUp.start();
+        }
+
+        int movieRowCacheSize = getContext().getResources().getInteger(R.integer.movie_row_cache_size);
+        if(movieRowCacheSize > 0){
+            mMovieRows = new MovieRowCache(movieRowCacheSize);
+        }
+
+        mChangeNotifier = new ChangeNotifier(
+                getContext().getContentResolver(),
+                getContext().getResources().getInteger(R.integer.change_notification_window_ms)
+        );
         return true;
     }
 
+    /**
+     * Returns the database once the warm up has opened it.
+     */
+    private SQLiteDatabase getReadableDatabase(){
+        if(mWarmUp != null){
+            mWarmUp.await();
+        }
+        return mOpenHelper.getReadableDatabase();
+    }
+
+    /**
+     * Returns the database for writing once the warm up has opened it.
+     */
+    private SQLiteDatabase getWritableDatabase(){
+        if(mWarmUp != null){
+            mWarmUp.await();
+        }
+        return mOpenHelper.getWritableDatabase();
+    }
+
     /**
      * Builds a UriMatcher that is used to determine witch database request is being made.
      */
     public static UriMatcher buildUriMatcher(){
-        String content = MovieContract.CONTENT_AUTHORITY;
-
         // All paths to the UriMatcher have a corresponding code to return
         // when a match is found (the ints above).
         UriMatcher matcher = new UriMatcher(UriMatcher.NO_MATCH);
-        matcher.addURI(content, MovieContract.PATH_GENRE, GENRE);
-        matcher.addURI(content, MovieContract.PATH_GENRE + "/#", GENRE_ID);
-        matcher.addURI(content, MovieContract.PATH_MOVIE, MOVIE);
-        matcher.addURI(content, MovieContract.PATH_MOVIE + "/#", MOVIE_ID);
+        addURI(matcher, MovieContract.PATH_GENRE, GENRE);
+        addURI(matcher, MovieContract.PATH_GENRE + "/#", GENRE_ID);
+        addURI(matcher, MovieContract.PATH_GENRE + "/" + MovieContract.PATH_STATS, GENRE_STATS);
+        addURI(matcher, MovieContract.PATH_MOVIE, MOVIE);
+        addURI(matcher, MovieContract.PATH_MOVIE + "/#", MOVIE_ID);
+        addURI(matcher, MovieContract.PATH_MOVIE + "/" + MovieContract.PATH_PAGE, MOVIE_PAGE);
+        addURI(matcher, MovieContract.PATH_MOVIE + "/" + MovieContract.PATH_SEARCH + "/*", MOVIE_SEARCH);
+        addURI(matcher, MovieContract.PATH_MOVIE + "/" + MovieContract.PATH_WITH_GENRE, MOVIE_WITH_GENRE);
+        addURI(matcher, MovieContract.PATH_MOVIE + "/" + MovieContract.PATH_CHANGES, MOVIE_CHANGES);
+        addURI(matcher, MovieContract.PATH_MOVIE + "/" + MovieContract.PATH_STATS + "/" + MovieContract.PATH_YEAR, MOVIE_YEAR_STATS);
+        addURI(matcher, MovieContract.PATH_MOVIE + "/" + MovieContract.PATH_FRAME, MOVIE_FRAME);
+        addURI(matcher, MovieContract.PATH_BACKUP, BACKUP);
 
         return matcher;
     }
 
+    private static void addURI(UriMatcher matcher, String path, int code){
+        matcher.addURI(MovieContract.CONTENT_AUTHORITY, path, code);
+        sUriPaths.put(code, path);
+    }
+
+    /**
+     * Names an operation on the URI with the given code in the metrics.
+     */
+    private static String getMetricsName(String operation, int match){
+        return operation + " " + sUriPaths.get(match);
+    }
+
+    /**
+     * Builds a projection map that qualifies each of the columns with the table they belong to.
+     */
+    private static Map<String, String> buildColumnMap(String table, String... columns){
+        Map<String, String> map = new HashMap<String, String>();
+        for(String column : columns){
+            map.put(column, table + "." + column + " AS " + column);
+        }
+        return map;
+    }
+
+    private static Map<String, String> buildMovieWithGenreColumns(){
+        Map<String, String> map = new HashMap<String, String>(sMovieColumns);
+        map.putAll(buildColumnMap(MovieContract.GenreEntry.TABLE_NAME, MovieContract.GenreEntry.COLUMN_NAME));
+        return map;
+    }
+
+    private static Map<String, String> buildGenreStatsColumns(){
+        Map<String, String> map = buildColumnMap(MovieContract.GenreEntry.TABLE_NAME, MovieContract.GenreEntry.COLUMNS);
+        String count = MovieContract.GenreStatsEntry.COLUMN_MOVIE_COUNT;
+        map.put(count, "IFNULL(" + MovieContract.GenreStatsEntry.TABLE_NAME + "." + count + ", 0) AS " + count);
+        return map;
+    }
+
+    private static Map<String, String> buildMovieChangeColumns(){
+        String version = MovieContract.MovieChangeEntry.COLUMN_VERSION;
+        String movieId = MovieContract.MovieChangeEntry.COLUMN_MOVIE_ID;
+        String operation = MovieContract.MovieChangeEntry.COLUMN_OPERATION;
+
+        Map<String, String> map = new HashMap<String, String>(sMovieWithGenreColumns);
+        map.remove(MovieContract.MovieEntry._ID);
+        map.put(version, "latest." + version + " AS " + version);
+        map.put(movieId, "latest." + movieId + " AS " + movieId);
+        map.put(operation, "CASE WHEN " + MovieContract.MovieChangeEntry.TABLE_NAME + "." + operation + " = " +
+                MovieContract.MovieChangeEntry.OPERATION_DELETE + " THEN " + MovieContract.MovieChangeEntry.OPERATION_DELETE +
+                " WHEN inserted THEN " + MovieContract.MovieChangeEntry.OPERATION_INSERT +
+                " ELSE " + MovieContract.MovieChangeEntry.OPERATION_UPDATE + " END AS " + operation);
+        return map;
+    }
+
     @Override
     public String getType(Uri uri) {
         switch(sUriMatcher.match(uri)){
@@ -51,10 +254,23 @@ public class MovieProvider extends ContentProvider {
                 return MovieContract.GenreEntry.CONTENT_TYPE;
             case GENRE_ID:
                 return MovieContract.GenreEntry.CONTENT_ITEM_TYPE;
+            case GENRE_STATS:
+                return MovieContract.GenreStatsEntry.CONTENT_TYPE;
             case MOVIE:
+            case MOVIE_PAGE:
+            case MOVIE_SEARCH:
+            case MOVIE_WITH_GENRE:
                 return MovieContract.MovieEntry.CONTENT_TYPE;
             case MOVIE_ID:
                 return MovieContract.MovieEntry.CONTENT_ITEM_TYPE;
+            case MOVIE_CHANGES:
+                return MovieContract.MovieChangeEntry.CONTENT_TYPE;
+            case MOVIE_YEAR_STATS:
+                return MovieContract.MovieYearStatsEntry.CONTENT_TYPE;
+            case MOVIE_FRAME:
+                return MovieFrame.MIME_TYPE;
+            case BACKUP:
+                return MovieBackup.MIME_TYPE;
             default:
                 throw new UnsupportedOperationException("Unknown uri: " + uri);
         }
@@ -62,37 +278,39 @@ public class MovieProvider extends ContentProvider {
 
     @Override
     public Cursor query(Uri uri, String[] projection, String selection, String[] selectionArgs, String sortOrder) {
-        final SQLiteDatabase db = mOpenHelper.getWritableDatabase();
+        // With write ahead logging, queries outside of a transaction run on a read only
+        // connection, so they don't wait for writes on other threads.
+        final SQLiteDatabase db = getReadableDatabase();
+        final long start = System.nanoTime();
+        final int match = sUriMatcher.match(uri);
+        projection = getProjection(uri, match, projection);
         Cursor retCursor;
-        switch(sUriMatcher.match(uri)){
+        switch(match){
             case GENRE:
-                retCursor = db.query(
-                        MovieContract.GenreEntry.TABLE_NAME,
-                        projection,
-                        selection,
-                        selectionArgs,
-                        null,
-                        null,
-                        sortOrder
-                );
+                retCursor = queryGenres(db, projection, selection, sortOrder);
+                if(retCursor == null){
+                    retCursor = db.query(
+                            MovieContract.GenreEntry.TABLE_NAME,
+                            projection,
+                            selection,
+                            selectionArgs,
+                            null,
+                            null,
+                            sortOrder
+                    );
+                }
                 break;
             case GENRE_ID:
-                long _id = ContentUris.parseId(uri);
-                retCursor = db.query(
-                        MovieContract.GenreEntry.TABLE_NAME,
-                        projection,
-                        MovieContract.GenreEntry._ID + " = ?",
-                        new String[]{String.valueOf(_id)},
-                        null,
-                        null,
-                        sortOrder
-                );
+                retCursor = queryGenre(db, projection, Long.parseLong(uri.getLastPathSegment()));
+                if(retCursor == null){
+                    retCursor = queryById(db, MovieContract.GenreEntry.TABLE_NAME, uri, projection);
+                }
                 break;
             case MOVIE:
                 retCursor = db.query(
                         MovieContract.MovieEntry.TABLE_NAME,
                         projection,
-                        selection,
+                        withReleaseDateRange(uri, selection),
                         selectionArgs,
                         null,
                         null,
@@ -100,15 +318,32 @@ public class MovieProvider extends ContentProvider {
                 );
                 break;
             case MOVIE_ID:
-                _id = ContentUris.parseId(uri);
+                retCursor = queryMovie(db, uri, projection);
+                break;
+            case MOVIE_PAGE:
+                retCursor = queryMoviePage(db, uri, projection, withReleaseDateRange(uri, selection), selectionArgs);
+                break;
+            case MOVIE_SEARCH:
+                retCursor = searchMovies(db, uri, projection, selection, selectionArgs);
+                break;
+            case MOVIE_WITH_GENRE:
+                retCursor = queryMoviesWithGenre(db, projection, withReleaseDateRange(uri, selection), selectionArgs, sortOrder);
+                break;
+            case MOVIE_CHANGES:
+                retCursor = queryMovieChanges(db, uri, projection);
+                break;
+            case GENRE_STATS:
+                retCursor = queryGenreStats(db, projection, selection, selectionArgs, sortOrder);
+                break;
+            case MOVIE_YEAR_STATS:
                 retCursor = db.query(
-                        MovieContract.MovieEntry.TABLE_NAME,
+                        MovieContract.MovieYearStatsEntry.TABLE_NAME,
                         projection,
-                        MovieContract.MovieEntry._ID + " = ?",
-                        new String[]{String.valueOf(_id)},
+                        selection,
+                        selectionArgs,
                         null,
                         null,
-                        sortOrder
+                        sortOrder != null ? sortOrder : MovieContract.MovieYearStatsEntry.COLUMN_YEAR
                 );
                 break;
             default:
@@ -119,19 +354,228 @@ public class MovieProvider extends ContentProvider {
         // causes the cursor to register a content observer to watch for changes that happen to
         // this URI and any of it's descendants. By descendants, we mean any URI that begins
         // with this path.
-        retCursor.setNotificationUri(getContext().getContentResolver(), uri);
+        retCursor.setNotificationUri(getContext().getContentResolver(),
+                match == GENRE_STATS || match == MOVIE_WITH_GENRE ? GENRE_AND_MOVIE_NOTIFICATION_URI : uri);
+        mMetrics.recordQuery(getMetricsName(ProviderMetrics.QUERY, match), start, retCursor);
         return retCursor;
     }
 
+    /**
+     * Returns the projection a query on the uri reads. Without one, only the URI's default
+     * columns are read rather than every column of the table, so more rows fit in each cursor
+     * window. A given projection may only ask for the URI's own columns, so nothing else is
+     * passed through to SQLite.
+     */
+    private static String[] getProjection(Uri uri, int match, String[] projection){
+        String[] columns;
+        String[] defaultProjection;
+        switch(match){
+            case GENRE:
+            case GENRE_ID:
+                columns = MovieContract.GenreEntry.COLUMNS;
+                defaultProjection = MovieContract.GenreEntry.COLUMNS;
+                break;
+            case MOVIE:
+            case MOVIE_ID:
+            case MOVIE_PAGE:
+            case MOVIE_SEARCH:
+                columns = MovieContract.MovieEntry.COLUMNS;
+                defaultProjection = MovieContract.MovieEntry.DEFAULT_PROJECTION;
+                break;
+            case MOVIE_WITH_GENRE:
+                columns = MovieContract.MovieEntry.WITH_GENRE_COLUMNS;
+                defaultProjection = MovieContract.MovieEntry.WITH_GENRE_DEFAULT_PROJECTION;
+                break;
+            case MOVIE_CHANGES:
+                columns = MovieContract.MovieChangeEntry.COLUMNS;
+                defaultProjection = MovieContract.MovieChangeEntry.DEFAULT_PROJECTION;
+                break;
+            case GENRE_STATS:
+                columns = MovieContract.GenreStatsEntry.COLUMNS;
+                defaultProjection = MovieContract.GenreStatsEntry.COLUMNS;
+                break;
+            case MOVIE_YEAR_STATS:
+                columns = MovieContract.MovieYearStatsEntry.COLUMNS;
+                defaultProjection = MovieContract.MovieYearStatsEntry.COLUMNS;
+                break;
+            default:
+                // The query reports the unknown uri itself.
+                return projection;
+        }
+
+        if(projection == null){
+            return defaultProjection;
+        }
+
+        List<String> known = Arrays.asList(columns);
+        for(String column : projection){
+            if(!known.contains(column)){
+                throw new IllegalArgumentException("Invalid column " + column + " for uri: " + uri);
+            }
+        }
+        return projection;
+    }
+
+    /**
+     * Opens a backup of the database, or a frame of every movie, for reading. Either is written
+     * into a pipe on a background thread while the caller reads it.
+     */
+    @Override
+    public ParcelFileDescriptor openFile(Uri uri, String mode) throws FileNotFoundException {
+        int match = sUriMatcher.match(uri);
+        if((match != BACKUP && match != MOVIE_FRAME) || !"r".equals(mode)){
+            throw new FileNotFoundException("Unable to open " + uri + " with mode " + mode);
+        }
+
+        if(match == MOVIE_FRAME){
+            return openPipeHelper(uri, MovieFrame.MIME_TYPE, null, null, new PipeDataWriter<Object>() {
+                @Override
+                public void writeDataToPipe(ParcelFileDescriptor output, Uri uri, String mimeType, Bundle opts, Object args) {
+                    try{
+                        OutputStream stream = new BufferedOutputStream(
+                                new FileOutputStream(output.getFileDescriptor()), FRAME_BUFFER_SIZE);
+                        MovieFrame.write(getReadableDatabase(), stream);
+                    } catch(IOException e){
+                        Log.w(LOG_TAG, "Unable to write movie frame", e);
+                    }
+                }
+            });
+        }
+
+        return openPipeHelper(uri, MovieBackup.MIME_TYPE, null, null, new PipeDataWriter<Object>() {
+            @Override
+            public void writeDataToPipe(ParcelFileDescriptor output, Uri uri, String mimeType, Bundle opts, Object args) {
+                try{
+                    Writer writer = new BufferedWriter(new OutputStreamWriter(
+                            new FileOutputStream(output.getFileDescriptor()), "UTF-8"));
+                    MovieBackup.write(getReadableDatabase(), writer);
+                } catch(IOException e){
+                    // The reader went away, or the pipe broke. Either way nobody is left to tell.
+                    Log.w(LOG_TAG, "Unable to write backup", e);
+                }
+            }
+        });
+    }
+
+    @Override
+    public Bundle call(String method, String arg, Bundle extras) {
+        if(MovieContract.METHOD_GET_MOVIE_CACHE_STATS.equals(method)){
+            return mMovieRows != null ? mMovieRows.getStats() : new Bundle();
+        } else if(MovieContract.METHOD_GET_METRICS.equals(method)){
+            return mMetrics.getStats();
+        } else if(MovieContract.METHOD_GET_MOVIE_VERSION.equals(method)){
+            Bundle result = new Bundle();
+            result.putLong(MovieContract.EXTRA_VERSION, getMovieVersion(getReadableDatabase()));
+            return result;
+        } else if(MovieContract.METHOD_RESTORE.equals(method)){
+            ParcelFileDescriptor descriptor = extras != null
+                    ? (ParcelFileDescriptor) extras.getParcelable(MovieContract.EXTRA_FILE_DESCRIPTOR)
+                    : null;
+            if(descriptor == null){
+                throw new IllegalArgumentException("No backup to restore.");
+            }
+            return restore(descriptor);
+        } else if(MovieContract.METHOD_UPSERT.equals(method)){
+            Parcelable[] parcels = extras != null ? extras.getParcelableArray(MovieContract.EXTRA_VALUES) : null;
+            if(arg == null || parcels == null){
+                throw new IllegalArgumentException("Upsert requires a uri and values.");
+            }
+            ContentValues[] values = new ContentValues[parcels.length];
+            for(int i = 0; i < parcels.length; i++){
+                values[i] = (ContentValues) parcels[i];
+            }
+
+            int[] counts = insertAll(Uri.parse(arg), values, true);
+            Bundle result = new Bundle();
+            result.putInt(MovieContract.EXTRA_INSERTED_COUNT, counts[MovieStatementCache.Upsert.INSERTED]);
+            result.putInt(MovieContract.EXTRA_UPDATED_COUNT, counts[MovieStatementCache.Upsert.UPDATED]);
+            return result;
+        } else if(MovieContract.METHOD_DELETE_IDS.equals(method) || MovieContract.METHOD_UPDATE_IDS.equals(method)){
+            boolean delete = MovieContract.METHOD_DELETE_IDS.equals(method);
+            long[] ids = extras != null ? extras.getLongArray(MovieContract.EXTRA_IDS) : null;
+            ContentValues values = extras != null
+                    ? (ContentValues) extras.getParcelable(MovieContract.EXTRA_UPDATE_VALUES)
+                    : null;
+            if(arg == null || ids == null || (!delete && values == null)){
+                throw new IllegalArgumentException(delete
+                        ? "Delete requires a uri and identifiers."
+                        : "Update requires a uri, identifiers and values.");
+            }
+
+            Bundle result = new Bundle();
+            result.putInt(MovieContract.EXTRA_ROW_COUNT, writeByIds(Uri.parse(arg), ids, delete ? null : values));
+            return result;
+        }
+        return super.call(method, arg, extras);
+    }
+
+    /**
+     * Replaces every genre and movie with the ones in the backup, inside of a single transaction.
+     */
+    private Bundle restore(ParcelFileDescriptor descriptor){
+        final SQLiteDatabase db = getWritableDatabase();
+        final MovieStatementCache statements = mOpenHelper.getStatementCache();
+        final int[] counts = new int[2];
+
+        db.beginTransactionWithListenerNonExclusive(mMetrics.newTransactionListener(ProviderMetrics.RESTORE));
+        try{
+            Reader reader = new BufferedReader(new InputStreamReader(
+                    new ParcelFileDescriptor.AutoCloseInputStream(descriptor), "UTF-8"));
+            try{
+                db.delete(MovieContract.MovieEntry.TABLE_NAME, null, null);
+                db.delete(MovieContract.GenreEntry.TABLE_NAME, null, null);
+
+                MovieBackup.read(reader, new MovieBackup.RowHandler() {
+                    @Override
+                    public void onGenre(ContentValues values) {
+                        insertRestored(statements, MovieContract.GenreEntry.TABLE_NAME, values);
+                        counts[0]++;
+                    }
+
+                    @Override
+                    public void onMovie(ContentValues values) {
+                        insertRestored(statements, MovieContract.MovieEntry.TABLE_NAME, withReleaseDay(values));
+                        counts[1]++;
+                    }
+                });
+            } finally{
+                reader.close();
+            }
+            db.setTransactionSuccessful();
+        } catch(IOException e){
+            throw new IllegalArgumentException("Unable to restore backup", e);
+        } finally{
+            db.endTransaction();
+        }
+
+        dispatchChange(MovieContract.GenreEntry.CONTENT_URI);
+        dispatchChange(MovieContract.MovieEntry.CONTENT_URI);
+        flushChanges();
+
+        Bundle result = new Bundle();
+        result.putInt(MovieContract.EXTRA_GENRE_COUNT, counts[0]);
+        result.putInt(MovieContract.EXTRA_MOVIE_COUNT, counts[1]);
+        return result;
+    }
+
+    private static void insertRestored(MovieStatementCache statements, String table, ContentValues values){
+        if(statements.getInsert(table, values.keySet()).execute(values) <= 0){
+            throw new IllegalArgumentException("Unable to restore row into " + table + ": " + values);
+        }
+    }
+
     @Override
     public Uri insert(Uri uri, ContentValues values) {
-        final SQLiteDatabase db = mOpenHelper.getWritableDatabase();
         long _id;
         Uri returnUri;
+        boolean upsert = isUpsert(uri);
+        final long start = System.nanoTime();
+        final int match = sUriMatcher.match(uri);
 
-        switch(sUriMatcher.match(uri)){
+        switch(match){
             case GENRE:
-                _id = db.insert(MovieContract.GenreEntry.TABLE_NAME, null, values);
+                _id = insert(MovieContract.GenreEntry.TABLE_NAME, values, upsert ? GENRE_KEY : null,
+                        getMetricsName(ProviderMetrics.INSERT, match));
                 if(_id > 0){
                     returnUri =  MovieContract.GenreEntry.buildGenreUri(_id);
                 } else{
@@ -139,7 +583,8 @@ public class MovieProvider extends ContentProvider {
                 }
                 break;
             case MOVIE:
-                _id = db.insert(MovieContract.MovieEntry.TABLE_NAME, null, values);
+                _id = insert(MovieContract.MovieEntry.TABLE_NAME, withReleaseDay(values), upsert ? MOVIE_KEY : null,
+                        getMetricsName(ProviderMetrics.INSERT, match));
                 if(_id > 0){
                     returnUri = MovieContract.MovieEntry.buildMovieUri(_id);
                 } else{
@@ -150,23 +595,164 @@ public class MovieProvider extends ContentProvider {
                 throw new UnsupportedOperationException("Unknown uri: " + uri);
         }
 
-        // Use this on the URI passed into the function to notify any observers that the uri has
-        // changed.
-        getContext().getContentResolver().notifyChange(uri, null);
+        // Use this on the URI that was returned to notify any observers that the row has been
+        // added. Observers of the URI passed into the function are notified as well, because it
+        // is the parent of the returned one.
+        notifyChange(returnUri);
+        mMetrics.recordOperation(getMetricsName(ProviderMetrics.INSERT, match), start, 1);
         return returnUri;
     }
 
+    /**
+     * Inserts all of the rows inside of a single transaction, instead of the one transaction per
+     * row that the default implementation uses. Either every row is inserted or none of them are.
+     * If the URI asks for an upsert, the returned count includes the rows that were updated.
+     */
+    @Override
+    public int bulkInsert(Uri uri, ContentValues[] values) {
+        int[] counts = insertAll(uri, values, isUpsert(uri));
+        return counts[MovieStatementCache.Upsert.INSERTED] + counts[MovieStatementCache.Upsert.UPDATED];
+    }
+
+    /**
+     * Inserts or upserts all of the rows inside of a single transaction.
+     * @return The number of rows inserted and updated, at the positions given by
+     * MovieStatementCache.Upsert.
+     */
+    private int[] insertAll(Uri uri, ContentValues[] values, boolean upsert) {
+        final String table;
+        final String[] key;
+        final boolean isMovie;
+        final long start = System.nanoTime();
+        final int match = sUriMatcher.match(uri);
+
+        switch(match){
+            case GENRE:
+                table = MovieContract.GenreEntry.TABLE_NAME;
+                key = GENRE_KEY;
+                isMovie = false;
+                break;
+            case MOVIE:
+                table = MovieContract.MovieEntry.TABLE_NAME;
+                key = MOVIE_KEY;
+                isMovie = true;
+                break;
+            default:
+                throw new UnsupportedOperationException("Unknown uri: " + uri);
+        }
+
+        final SQLiteDatabase db = getWritableDatabase();
+        final MovieStatementCache statements = mOpenHelper.getStatementCache();
+        final String name = getMetricsName(ProviderMetrics.BULK_INSERT, match);
+        int[] counts = new int[2];
+
+        // Queries keep reading the last committed rows while this transaction is open.
+        db.beginTransactionWithListenerNonExclusive(mMetrics.newTransactionListener(name));
+        try{
+            // Rows in a batch almost always share the same columns, so the statement is only
+            // looked up again when a row with a different set of columns comes along.
+            MovieStatementCache.Insert insert = null;
+            MovieStatementCache.Upsert upsertStatement = null;
+            Set<String> columns = null;
+
+            for(ContentValues value : values){
+                if(isMovie){
+                    value = withReleaseDay(value);
+                }
+
+                boolean changed = columns == null || !columns.equals(value.keySet());
+                if(changed){
+                    columns = value.keySet();
+                }
+
+                long id;
+                if(upsert){
+                    if(changed){
+                        upsertStatement = statements.getUpsert(table, key, columns);
+                    }
+                    id = upsertStatement.execute(value, counts);
+                } else{
+                    if(changed){
+                        insert = statements.getInsert(table, columns);
+                    }
+                    id = insert.execute(value);
+                    if(id > 0){
+                        counts[MovieStatementCache.Upsert.INSERTED]++;
+                    }
+                }
+
+                if(id <= 0){
+                    throw new UnsupportedOperationException("Unable to insert rows into: " + uri);
+                }
+            }
+
+            db.setTransactionSuccessful();
+        } catch(SQLException e){
+            throw new UnsupportedOperationException("Unable to insert rows into: " + uri, e);
+        } finally{
+            db.endTransaction();
+        }
+
+        if(counts[MovieStatementCache.Upsert.INSERTED] + counts[MovieStatementCache.Upsert.UPDATED] != 0){
+            notifyChange(uri);
+            flushChanges();
+        }
+
+        mMetrics.recordOperation(name, start,
+                counts[MovieStatementCache.Upsert.INSERTED] + counts[MovieStatementCache.Upsert.UPDATED]);
+        return counts;
+    }
+
+    /**
+     * Applies every operation inside of a single transaction. Observers are notified once for
+     * each URI that was changed, after the whole batch has been committed.
+     */
+    @Override
+    public ContentProviderResult[] applyBatch(ArrayList<ContentProviderOperation> operations)
+            throws OperationApplicationException {
+        final SQLiteDatabase db = getWritableDatabase();
+        final Set<Uri> pending = new LinkedHashSet<Uri>();
+        ContentProviderResult[] results;
+
+        mPendingNotifications.set(pending);
+        db.beginTransactionWithListenerNonExclusive(mMetrics.newTransactionListener(ProviderMetrics.APPLY_BATCH));
+        try{
+            results = super.applyBatch(operations);
+            db.setTransactionSuccessful();
+        } finally{
+            db.endTransaction();
+            mPendingNotifications.remove();
+        }
+
+        for(Uri uri : pending){
+            dispatchChange(uri);
+        }
+        flushChanges();
+
+        return results;
+    }
+
     @Override
     public int delete(Uri uri, String selection, String[] selectionArgs) {
-        final SQLiteDatabase db = mOpenHelper.getWritableDatabase();
+        final SQLiteDatabase db = getWritableDatabase();
+        final long start = System.nanoTime();
+        final int match = sUriMatcher.match(uri);
         int rows; // Number of rows effected
 
-        switch(sUriMatcher.match(uri)){
+        switch(match){
             case GENRE:
-                rows = db.delete(MovieContract.GenreEntry.TABLE_NAME, selection, selectionArgs);
+                rows = delete(db, MovieContract.GenreEntry.TABLE_NAME, selection, selectionArgs);
+                break;
+            case GENRE_ID:
+                rows = delete(db, MovieContract.GenreEntry.TABLE_NAME,
+                        appendSelection(selection, BY_ID_SELECTION), appendIdArg(uri, selectionArgs));
                 break;
             case MOVIE:
-                rows = db.delete(MovieContract.MovieEntry.TABLE_NAME, selection, selectionArgs);
+                rows = delete(db, MovieContract.MovieEntry.TABLE_NAME, selection, selectionArgs);
+                break;
+            case MOVIE_ID:
+                rows = delete(db, MovieContract.MovieEntry.TABLE_NAME,
+                        appendSelection(selection, BY_ID_SELECTION), appendIdArg(uri, selectionArgs));
                 break;
             default:
                 throw new UnsupportedOperationException("Unknown uri: " + uri);
@@ -174,32 +760,608 @@ public class MovieProvider extends ContentProvider {
 
         // Because null could delete all rows:
         if(selection == null || rows != 0){
-            getContext().getContentResolver().notifyChange(uri, null);
+            notifyChange(uri);
+            if(match == GENRE || match == GENRE_ID){
+                notifyGenreMoviesChanged();
+            }
         }
 
+        mMetrics.recordOperation(getMetricsName(ProviderMetrics.DELETE, match), start, rows);
         return rows;
     }
 
     @Override
     public int update(Uri uri, ContentValues values, String selection, String[] selectionArgs) {
-        final SQLiteDatabase db = mOpenHelper.getWritableDatabase();
+        final SQLiteDatabase db = getWritableDatabase();
+        final long start = System.nanoTime();
+        final int match = sUriMatcher.match(uri);
         int rows;
 
-        switch(sUriMatcher.match(uri)){
+        switch(match){
             case GENRE:
                 rows = db.update(MovieContract.GenreEntry.TABLE_NAME, values, selection, selectionArgs);
                 break;
+            case GENRE_ID:
+                rows = db.update(MovieContract.GenreEntry.TABLE_NAME, values,
+                        appendSelection(selection, BY_ID_SELECTION), appendIdArg(uri, selectionArgs));
+                break;
             case MOVIE:
-                rows = db.update(MovieContract.MovieEntry.TABLE_NAME, values, selection, selectionArgs);
+                rows = db.update(MovieContract.MovieEntry.TABLE_NAME, withReleaseDay(values), selection, selectionArgs);
+                break;
+            case MOVIE_ID:
+                rows = db.update(MovieContract.MovieEntry.TABLE_NAME, withReleaseDay(values),
+                        appendSelection(selection, BY_ID_SELECTION), appendIdArg(uri, selectionArgs));
                 break;
             default:
                 throw new UnsupportedOperationException("Unknown uri: " + uri);
         }
 
         if(rows != 0){
-            getContext().getContentResolver().notifyChange(uri, null);
+            notifyChange(uri);
+        }
+
+        mMetrics.recordOperation(getMetricsName(ProviderMetrics.UPDATE, match), start, rows);
+        return rows;
+    }
+
+    /**
+     * Adds the identifier at the end of the uri to the selection arguments, for a selection
+     * ending in BY_ID_SELECTION.
+     */
+    private static String[] appendIdArg(Uri uri, String[] selectionArgs){
+        return DatabaseUtils.appendSelectionArgs(selectionArgs, new String[]{uri.getLastPathSegment()});
+    }
+
+    /**
+     * Deletes the genres or movies with the given identifiers, or updates them with the values,
+     * inside of a single transaction. The identifiers are bound to IN lists in chunks of
+     * MAX_IDS_PER_STATEMENT, so every full chunk runs the same statement and the connection
+     * reuses its compiled copy of it. Observers are notified once, after the commit.
+     * @param values The values to update the rows with, or null to delete them.
+     * @return The number of rows deleted or updated.
+     */
+    private int writeByIds(Uri uri, long[] ids, ContentValues values){
+        final long start = System.nanoTime();
+        final int match = sUriMatcher.match(uri);
+        final String table;
+        switch(match){
+            case GENRE:
+                table = MovieContract.GenreEntry.TABLE_NAME;
+                break;
+            case MOVIE:
+                table = MovieContract.MovieEntry.TABLE_NAME;
+                values = withReleaseDay(values);
+                break;
+            default:
+                throw new UnsupportedOperationException("Unknown uri: " + uri);
+        }
+
+        final SQLiteDatabase db = getWritableDatabase();
+        final String name = getMetricsName(values != null ? ProviderMetrics.UPDATE_IDS : ProviderMetrics.DELETE_IDS, match);
+        int rows = 0;
+
+        db.beginTransactionWithListenerNonExclusive(mMetrics.newTransactionListener(name));
+        try{
+            for(int from = 0; from < ids.length; from += MAX_IDS_PER_STATEMENT){
+                int count = Math.min(MAX_IDS_PER_STATEMENT, ids.length - from);
+                StringBuilder selection = new StringBuilder(BaseColumns._ID).append(" IN (");
+                String[] selectionArgs = new String[count];
+                for(int i = 0; i < count; i++){
+                    selection.append(i > 0 ? ", ?" : "?");
+                    selectionArgs[i] = String.valueOf(ids[from + i]);
+                }
+                selection.append(')');
+
+                rows += values != null
+                        ? db.update(table, values, selection.toString(), selectionArgs)
+                        : db.delete(table, selection.toString(), selectionArgs);
+            }
+            db.setTransactionSuccessful();
+        } finally{
+            db.endTransaction();
+        }
+
+        if(rows != 0){
+            notifyChange(uri);
+            if(match == GENRE && values == null){
+                notifyGenreMoviesChanged();
+            }
+            flushChanges();
         }
 
+        mMetrics.recordOperation(name, start, rows);
         return rows;
     }
+
+    /**
+     * Notifies any observers that the uri has changed. If a batch is running on this thread the
+     * notification is held until the batch has been committed.
+     */
+    private void notifyChange(Uri uri){
+        Set<Uri> pending = mPendingNotifications.get();
+        if(pending != null){
+            pending.add(uri);
+        } else{
+            dispatchChange(uri);
+        }
+    }
+
+    /**
+     * Notifies observers of the movies after genres have been deleted, since SQLite deleted their
+     * movies along with them or moved them to the default genre, see MovieDBHelper. This also
+     * throws away every cached movie.
+     */
+    private void notifyGenreMoviesChanged(){
+        notifyChange(MovieContract.MovieEntry.CONTENT_URI);
+    }
+
+    /**
+     * Notifies observers of every change made so far, unless a batch is still running on this
+     * thread. Called at the end of a transaction, so observers don't wait for the window.
+     */
+    private void flushChanges(){
+        if(mPendingNotifications.get() == null){
+            mChangeNotifier.flush();
+        }
+    }
+
+    /**
+     * Called once a change to the uri has been committed. Throws away anything cached for it
+     * straight away, then hands the notification to the ChangeNotifier, so observers never read
+     * the old data back.
+     */
+    private void dispatchChange(Uri uri){
+        switch(sUriMatcher.match(uri)){
+            case GENRE:
+            case GENRE_ID:
+                GenreCache.getInstance().invalidate();
+                break;
+            case MOVIE:
+                if(mMovieRows != null){
+                    mMovieRows.removeAll();
+                }
+                break;
+            case MOVIE_ID:
+                if(mMovieRows != null){
+                    mMovieRows.remove(Long.parseLong(uri.getLastPathSegment()));
+                }
+                break;
+        }
+
+        mChangeNotifier.notifyChange(uri);
+    }
+
+    /**
+     * Serves a query for every genre from the GenreCache.
+     * @return The cursor, or null if the query can't be answered from the cache and has to go
+     * to the database.
+     */
+    private Cursor queryGenres(SQLiteDatabase db, String[] projection, String selection, String sortOrder){
+        // The cache only holds committed genres, in order of their identifiers.
+        if(selection != null || db.inTransaction()
+                || !(sortOrder == null || MovieContract.GenreEntry._ID.equals(sortOrder))){
+            return null;
+        }
+        return GenreCache.getInstance().getSnapshot(db).query(projection);
+    }
+
+    /**
+     * Serves a query for a single genre from the GenreCache.
+     * @return The cursor, or null if the query can't be answered from the cache and has to go
+     * to the database.
+     */
+    private Cursor queryGenre(SQLiteDatabase db, String[] projection, long id){
+        if(db.inTransaction()){
+            return null;
+        }
+        return GenreCache.getInstance().getSnapshot(db).query(projection, id);
+    }
+
+    /**
+     * Queries a single row by the identifier at the end of the uri. The SQL for each projection
+     * comes from the statement cache, so the connection can reuse its compiled copy of it.
+     */
+    private Cursor queryById(SQLiteDatabase db, String table, Uri uri, String[] projection){
+        String[] selectionArgs = new String[]{uri.getLastPathSegment()};
+        return db.rawQuery(mOpenHelper.getStatementCache().getSelectByIdSql(table, projection), selectionArgs);
+    }
+
+    /**
+     * Returns a copy of the movie values with the release day worked out from the release date,
+     * if the release date is being written, so the two columns never disagree.
+     */
+    private static ContentValues withReleaseDay(ContentValues values){
+        if(values == null || !values.containsKey(MovieContract.MovieEntry.COLUMN_RELEASE_DATE)){
+            return values;
+        }
+
+        ContentValues copy = new ContentValues(values);
+        Long releaseDay = MovieContract.MovieEntry.toReleaseDay(values.getAsString(MovieContract.MovieEntry.COLUMN_RELEASE_DATE));
+        if(releaseDay != null){
+            copy.put(MovieContract.MovieEntry.COLUMN_RELEASE_DAY, releaseDay);
+        } else{
+            copy.putNull(MovieContract.MovieEntry.COLUMN_RELEASE_DAY);
+        }
+        return copy;
+    }
+
+    /**
+     * Limits the selection to the release dates given by the uri's query parameters. The dates
+     * are compared as release days, so the range is read from the release day index. The days
+     * are numbers worked out here, so they are written into the selection directly, which also
+     * lets SQLite see the size of the range when it plans the query.
+     */
+    private static String withReleaseDateRange(Uri uri, String selection){
+        String releaseDay = MovieContract.MovieEntry.TABLE_NAME + "." + MovieContract.MovieEntry.COLUMN_RELEASE_DAY;
+
+        String from = uri.getQueryParameter(MovieContract.MovieEntry.PARAM_RELEASED_FROM);
+        if(from != null){
+            selection = appendSelection(selection, releaseDay + " >= " + parseReleaseDay(uri, from));
+        }
+
+        String to = uri.getQueryParameter(MovieContract.MovieEntry.PARAM_RELEASED_TO);
+        if(to != null){
+            selection = appendSelection(selection, releaseDay + " <= " + parseReleaseDay(uri, to));
+        }
+
+        return selection;
+    }
+
+    private static long parseReleaseDay(Uri uri, String releaseDate){
+        Long releaseDay = MovieContract.MovieEntry.toReleaseDay(releaseDate);
+        if(releaseDay == null){
+            throw new IllegalArgumentException("Invalid release date: " + uri);
+        }
+        return releaseDay;
+    }
+
+    /**
+     * Combines the selection with another clause that must also be true.
+     */
+    private static String appendSelection(String selection, String clause){
+        return selection != null ? "(" + selection + ") AND " + clause : clause;
+    }
+
+    /**
+     * Queries a page of movies using the last row of the previous page as the starting point,
+     * instead of an OFFSET that would have to step over every earlier row. The page URI decides
+     * the order, so there is no sort order; a selection narrows down the movies being paged.
+     */
+    private Cursor queryMoviePage(SQLiteDatabase db, Uri uri, String[] projection, String selection, String[] selectionArgs){
+        String limit = uri.getQueryParameter(MovieContract.MovieEntry.PARAM_LIMIT);
+        if(limit == null){
+            limit = String.valueOf(MovieContract.MovieEntry.DEFAULT_PAGE_SIZE);
+        } else if(!TextUtils.isDigitsOnly(limit)){
+            throw new IllegalArgumentException("Invalid limit: " + uri);
+        }
+
+        String afterId = uri.getQueryParameter(MovieContract.MovieEntry.PARAM_AFTER_ID);
+        String afterDate = uri.getQueryParameter(MovieContract.MovieEntry.PARAM_AFTER_RELEASE_DATE);
+        String order = uri.getQueryParameter(MovieContract.MovieEntry.PARAM_ORDER);
+
+        String keySelection;
+        String[] keyArgs;
+        String sortOrder;
+        if(order == null || MovieContract.MovieEntry.ORDER_ID.equals(order)){
+            keySelection = afterId != null ? MovieContract.MovieEntry._ID + " > ?" : null;
+            keyArgs = afterId != null ? new String[]{afterId} : null;
+            sortOrder = MovieContract.MovieEntry._ID;
+        } else if(MovieContract.MovieEntry.ORDER_RELEASE_DATE.equals(order)){
+            // Seek straight to the release date, then skip the movies on that date which were on
+            // the previous page.
+            if(afterDate != null){
+                keySelection = MovieContract.MovieEntry.COLUMN_RELEASE_DATE + " >= ? AND (" +
+                        MovieContract.MovieEntry.COLUMN_RELEASE_DATE + " > ? OR " +
+                        MovieContract.MovieEntry._ID + " > ?)";
+                keyArgs = new String[]{afterDate, afterDate, afterId != null ? afterId : "0"};
+            } else{
+                keySelection = null;
+                keyArgs = null;
+            }
+            sortOrder = MovieContract.MovieEntry.COLUMN_RELEASE_DATE + ", " + MovieContract.MovieEntry._ID;
+        } else if(MovieContract.MovieEntry.ORDER_RELEASE_DATE_DESCENDING.equals(order)){
+            // The same, walking the list index backwards.
+            if(afterDate != null){
+                keySelection = MovieContract.MovieEntry.COLUMN_RELEASE_DATE + " <= ? AND (" +
+                        MovieContract.MovieEntry.COLUMN_RELEASE_DATE + " < ? OR " +
+                        MovieContract.MovieEntry._ID + " < ?)";
+                keyArgs = new String[]{afterDate, afterDate, afterId != null ? afterId : String.valueOf(Long.MAX_VALUE)};
+            } else{
+                keySelection = null;
+                keyArgs = null;
+            }
+            sortOrder = MovieContract.MovieEntry.COLUMN_RELEASE_DATE + " DESC, " + MovieContract.MovieEntry._ID + " DESC";
+        } else{
+            throw new IllegalArgumentException("Unknown order: " + uri);
+        }
+
+        if(keySelection != null){
+            selection = appendSelection(selection, keySelection);
+            selectionArgs = DatabaseUtils.appendSelectionArgs(selectionArgs, keyArgs);
+        }
+
+        return db.query(
+                MovieContract.MovieEntry.TABLE_NAME,
+                projection,
+                selection,
+                selectionArgs,
+                null,
+                null,
+                sortOrder,
+                limit
+        );
+    }
+
+    /**
+     * Queries the movies joined to their genre. Movies whose genre doesn't exist are still
+     * returned, with a null genre name.
+     */
+    private Cursor queryMoviesWithGenre(SQLiteDatabase db, String[] projection, String selection, String[] selectionArgs, String sortOrder){
+        String movie = MovieContract.MovieEntry.TABLE_NAME;
+        String genre = MovieContract.GenreEntry.TABLE_NAME;
+
+        SQLiteQueryBuilder builder = new SQLiteQueryBuilder();
+        builder.setTables(movie + " LEFT JOIN " + genre + " ON " +
+                genre + "." + MovieContract.GenreEntry._ID + " = " + movie + "." + MovieContract.MovieEntry.COLUMN_GENRE);
+        builder.setProjectionMap(sMovieWithGenreColumns);
+        // Reject columns that aren't in the projection map, instead of passing them through.
+        builder.setStrict(true);
+
+        return builder.query(db, projection, selection, selectionArgs, null, null, sortOrder);
+    }
+
+    /**
+     * Queries every genre along with the number of movies in it, from the counts the movie
+     * triggers keep up to date. Genres without any movies have no count, so they are joined to
+     * it and read as zero.
+     */
+    private Cursor queryGenreStats(SQLiteDatabase db, String[] projection, String selection, String[] selectionArgs, String sortOrder){
+        String genre = MovieContract.GenreEntry.TABLE_NAME;
+        String stats = MovieContract.GenreStatsEntry.TABLE_NAME;
+
+        SQLiteQueryBuilder builder = new SQLiteQueryBuilder();
+        builder.setTables(genre + " LEFT JOIN " + stats + " ON " +
+                stats + "." + MovieContract.GenreStatsEntry.COLUMN_GENRE_ID + " = " + genre + "." + MovieContract.GenreEntry._ID);
+        builder.setProjectionMap(sGenreStatsColumns);
+        builder.setStrict(true);
+
+        if(sortOrder == null){
+            sortOrder = genre + "." + MovieContract.GenreEntry._ID;
+        }
+        return builder.query(db, projection, selection, selectionArgs, null, null, sortOrder);
+    }
+
+    /**
+     * Builds the single row returned instead of the changes when they are no longer all kept. It
+     * has the same columns as any other change, so it can be read the same way, but only the
+     * version and operation have values.
+     */
+    private static Cursor buildResetCursor(String[] projection, long latestVersion){
+        if(projection == null){
+            projection = MovieContract.MovieChangeEntry.DEFAULT_PROJECTION;
+        }
+
+        Object[] row = new Object[projection.length];
+        for(int i = 0; i < projection.length; i++){
+            if(!sMovieChangeColumns.containsKey(projection[i])){
+                throw new IllegalArgumentException("Unknown column: " + projection[i]);
+            }
+            if(MovieContract.MovieChangeEntry.COLUMN_VERSION.equals(projection[i])){
+                row[i] = latestVersion;
+            } else if(MovieContract.MovieChangeEntry.COLUMN_OPERATION.equals(projection[i])){
+                row[i] = MovieContract.MovieChangeEntry.OPERATION_RESET;
+            }
+        }
+
+        MatrixCursor reset = new MatrixCursor(projection, 1);
+        reset.addRow(row);
+        return reset;
+    }
+
+    /**
+     * Returns the latest change to every movie that changed since the version in the URI, or a
+     * single reset row if those changes are no longer all in the log.
+     */
+    private Cursor queryMovieChanges(SQLiteDatabase db, Uri uri, String[] projection){
+        String since = uri.getQueryParameter(MovieContract.MovieChangeEntry.PARAM_SINCE);
+        if(TextUtils.isEmpty(since) || !TextUtils.isDigitsOnly(since)){
+            throw new IllegalArgumentException("Invalid version: " + uri);
+        }
+        long sinceVersion = Long.parseLong(since);
+
+        String changes = MovieContract.MovieChangeEntry.TABLE_NAME;
+        String version = MovieContract.MovieChangeEntry.COLUMN_VERSION;
+        String movieId = MovieContract.MovieChangeEntry.COLUMN_MOVIE_ID;
+        String operation = MovieContract.MovieChangeEntry.COLUMN_OPERATION;
+
+        // The oldest change kept must directly follow the version, otherwise some of the changes
+        // since it have already been removed. A version newer than the latest one comes from a
+        // database that has since been replaced.
+        long latest = getMovieVersion(db);
+        long oldest = DatabaseUtils.longForQuery(db,
+                "SELECT IFNULL(MIN(" + version + "), " + (latest + 1) + ") FROM " + changes, null);
+        if(sinceVersion > latest || sinceVersion < oldest - 1){
+            return buildResetCursor(projection, latest);
+        }
+
+        String movie = MovieContract.MovieEntry.TABLE_NAME;
+        String genre = MovieContract.GenreEntry.TABLE_NAME;
+
+        // The latest change to each movie, and whether the movie was inserted since the version.
+        String latestChanges = "(SELECT " + movieId + ", MAX(" + version + ") AS " + version + ", " +
+                "MAX(" + operation + " = " + MovieContract.MovieChangeEntry.OPERATION_INSERT + ") AS inserted" +
+                " FROM " + changes + " WHERE " + version + " > " + sinceVersion +
+                " GROUP BY " + movieId + ") AS latest";
+
+        SQLiteQueryBuilder builder = new SQLiteQueryBuilder();
+        builder.setTables(latestChanges +
+                " JOIN " + changes + " ON " + changes + "." + version + " = latest." + version +
+                " LEFT JOIN " + movie + " ON " + movie + "." + MovieContract.MovieEntry._ID + " = latest." + movieId +
+                " LEFT JOIN " + genre + " ON " + genre + "." + MovieContract.GenreEntry._ID + " = " +
+                movie + "." + MovieContract.MovieEntry.COLUMN_GENRE);
+        builder.setProjectionMap(sMovieChangeColumns);
+        builder.setStrict(true);
+        // A movie that was inserted and deleted again since the version never needs to be seen.
+        builder.appendWhere("NOT (inserted AND " + changes + "." + operation + " = " +
+                MovieContract.MovieChangeEntry.OPERATION_DELETE + ")");
+
+        return builder.query(db, projection, null, null, null, null, "latest." + version);
+    }
+
+    /**
+     * Returns the version of the latest change to the movies, or 0 if there hasn't been one.
+     */
+    private static long getMovieVersion(SQLiteDatabase db){
+        return DatabaseUtils.longForQuery(db,
+                "SELECT IFNULL((SELECT seq FROM sqlite_sequence WHERE name = ?), 0)",
+                new String[]{MovieContract.MovieChangeEntry.TABLE_NAME});
+    }
+
+    /**
+     * Searches the full text index of movie names. Every word in the query has to match the
+     * start of a word in the name. Names that start with the first word of the query come first,
+     * then shorter names, since those are the closest matches to what has been typed so far.
+     *
+     * A short prefix can match most of the movies, so they aren't all ranked. Only a limited set
+     * of candidates is: the first matches whose name starts with the first word, and the first
+     * matches of any kind, SEARCH_CANDIDATES_PER_RESULT of each for every movie returned.
+     */
+    private Cursor searchMovies(SQLiteDatabase db, Uri uri, String[] projection, String selection, String[] selectionArgs){
+        String limit = uri.getQueryParameter(MovieContract.MovieEntry.PARAM_LIMIT);
+        if(limit == null){
+            limit = String.valueOf(MovieContract.MovieEntry.DEFAULT_SEARCH_LIMIT);
+        } else if(!TextUtils.isDigitsOnly(limit)){
+            throw new IllegalArgumentException("Invalid limit: " + uri);
+        }
+
+        // Only keep the letters and digits of each word, so nothing the user types can be read
+        // as full text query syntax.
+        String query = uri.getLastPathSegment();
+        StringBuilder match = new StringBuilder();
+        String firstWord = null;
+        int start = -1;
+        for(int i = 0; i <= query.length(); i++){
+            boolean isWordCharacter = i < query.length() && Character.isLetterOrDigit(query.charAt(i));
+            if(isWordCharacter && start == -1){
+                start = i;
+            } else if(!isWordCharacter && start != -1){
+                String word = query.substring(start, i);
+                if(firstWord == null){
+                    firstWord = word;
+                }
+                match.append(match.length() > 0 ? " " : "").append(word).append('*');
+                start = -1;
+            }
+        }
+
+        String movie = MovieContract.MovieEntry.TABLE_NAME;
+        String search = MovieContract.MovieEntry.SEARCH_TABLE_NAME;
+
+        SQLiteQueryBuilder builder = new SQLiteQueryBuilder();
+        builder.setProjectionMap(sMovieColumns);
+
+        if(firstWord == null){
+            // Nothing searchable was typed, so nothing matches.
+            builder.setTables(movie);
+            builder.appendWhere("0");
+            return builder.query(db, projection, selection, selectionArgs, null, null, null, limit);
+        }
+
+        // Each set of candidates stops being read once it is full. The ^ only matches the first
+        // word of the name.
+        long candidates = Long.parseLong(limit) * SEARCH_CANDIDATES_PER_RESULT;
+        String matches = "SELECT docid FROM " + search + " WHERE " + search + " MATCH ? LIMIT " + candidates;
+        builder.setTables(movie + " JOIN (" +
+                "SELECT docid AS candidate FROM (" + matches + ") UNION SELECT docid FROM (" + matches + ")" +
+                ") ON candidate = " + movie + "." + MovieContract.MovieEntry._ID);
+        String[] args = DatabaseUtils.appendSelectionArgs(new String[]{"^" + match, match.toString()}, selectionArgs);
+        args = DatabaseUtils.appendSelectionArgs(args, new String[]{firstWord + "%"});
+
+        String name = movie + "." + MovieContract.MovieEntry.COLUMN_NAME;
+        String sortOrder = "(" + name + " LIKE ?) DESC, length(" + name + "), " + name;
+
+        return builder.query(db, projection, selection, args, null, null, sortOrder, limit);
+    }
+
+    /**
+     * Queries a single movie, serving it from the MovieRowCache when possible. On a miss the
+     * whole row is read so it can be cached, whatever the projection asked for.
+     */
+    private Cursor queryMovie(SQLiteDatabase db, Uri uri, String[] projection){
+        // Don't let uncommitted rows into the cache.
+        if(mMovieRows == null || db.inTransaction()){
+            return queryById(db, MovieContract.MovieEntry.TABLE_NAME, uri, projection);
+        }
+
+        long id = Long.parseLong(uri.getLastPathSegment());
+        Cursor cursor = mMovieRows.query(id, projection);
+        if(cursor != null){
+            return cursor;
+        }
+
+        int generation = mMovieRows.getGeneration();
+        Cursor row = queryById(db, MovieContract.MovieEntry.TABLE_NAME, uri, null);
+        if(!row.moveToFirst()){
+            // There is no such movie, so there is nothing to cache.
+            row.close();
+            return queryById(db, MovieContract.MovieEntry.TABLE_NAME, uri, projection);
+        }
+
+        cursor = mMovieRows.put(id, row, generation, projection);
+        row.close();
+
+        // A projection can only miss here if it asks for a column the table doesn't have, so let
+        // the database report the error.
+        return cursor != null ? cursor : queryById(db, MovieContract.MovieEntry.TABLE_NAME, uri, projection);
+    }
+
+    /**
+     * Inserts a single row using the cached statement for its columns. An upsert finds the
+     * existing row and inserts the new one in a single transaction, the same way insertAll()
+     * does, so two upserts of the same key can't both insert it.
+     * @param upsertKey The columns that identify an existing row to update instead, or null to
+     *                  always insert.
+     * @param name The name the upsert's transaction is recorded under in the metrics.
+     * @return The row ID of the new or updated row, or -1 if it could not be inserted.
+     */
+    private long insert(String table, ContentValues values, String[] upsertKey, String name){
+        if(values == null){
+            values = new ContentValues();
+        }
+
+        SQLiteDatabase db = getWritableDatabase();
+        MovieStatementCache statements = mOpenHelper.getStatementCache();
+        try{
+            if(upsertKey == null){
+                return statements.getInsert(table, values.keySet()).execute(values);
+            }
+
+            db.beginTransactionWithListenerNonExclusive(mMetrics.newTransactionListener(name));
+            try{
+                long id = statements.getUpsert(table, upsertKey, values.keySet()).execute(values, new int[2]);
+                db.setTransactionSuccessful();
+                return id;
+            } finally{
+                db.endTransaction();
+            }
+        } catch(SQLException e){
+            return -1;
+        }
+    }
+
+    private static boolean isUpsert(Uri uri){
+        return uri.getBooleanQueryParameter(MovieContract.PARAM_UPSERT, false);
+    }
+
+    /**
+     * Deletes the matching rows. Deleting a single row by its identifier is common enough that it
+     * runs through a cached statement instead of building a new DELETE each time.
+     */
+    private int delete(SQLiteDatabase db, String table, String selection, String[] selectionArgs){
+        if(BY_ID_SELECTION.equals(selection) && selectionArgs != null && selectionArgs.length == 1
+                && !TextUtils.isEmpty(selectionArgs[0]) && TextUtils.isDigitsOnly(selectionArgs[0])){
+            return mOpenHelper.getStatementCache().deleteById(table, Long.parseLong(selectionArgs[0]));
+        }
+        return db.delete(table, selection, selectionArgs);
+    }
 }
@@ -0,0 +1,178 @@
+package androidessence.moviedatabase;
+
+import android.database.Cursor;
+import android.database.MatrixCursor;
+import android.os.Bundle;
+import android.util.LruCache;
+
+/**
+ * Keeps the most recently read movie rows in memory, keyed by their identifier, so repeated
+ * lookups of the same movie don't have to open a new database cursor each time.
+ *
+ * The cache only ever holds committed rows. MovieProvider removes rows when a change to them is
+ * committed, and a row that was loaded while such a change happened is never kept.
+ */
+class MovieRowCache {
+    private final LruCache<Long, Row> mRows;
+
+    /**
+     * Incremented every time rows are removed. A row is only kept if nothing was removed while
+     * it was being loaded, otherwise it may already be stale.
+     */
+    private int mGeneration;
+
+    /**
+     * The number of rows removed because they changed, and how many of them were cleared by
+     * evictAll(). LruCache counts those as evictions, so they are taken back out of its count,
+     * which then only has the rows dropped to make room. Guarded by mRows, like the counts of
+     * the LruCache.
+     */
+    private int mInvalidations;
+    private int mEvictedInvalidations;
+
+    /**
+     * @param maxRows The most rows to keep in memory.
+     */
+    MovieRowCache(int maxRows){
+        mRows = new LruCache<Long, Row>(maxRows);
+    }
+
+    /**
+     * Must be called before a row is loaded from the database, and passed back to
+     * {@link #put} once it has been.
+     */
+    synchronized int getGeneration(){
+        return mGeneration;
+    }
+
+    /**
+     * Builds a cursor over the cached row.
+     * @return The cursor, or null if the row isn't cached or the projection asks for a column
+     * the row doesn't have.
+     */
+    Cursor query(long id, String[] projection){
+        Row row = mRows.get(id);
+        return row != null ? query(row, projection) : null;
+    }
+
+    /**
+     * Caches the row the cursor is positioned on, which must contain every column of the movie,
+     * and builds a cursor over it.
+     * @param generation The value of {@link #getGeneration} from before the row was loaded.
+     * @return The cursor, or null if the projection asks for a column the row doesn't have.
+     */
+    Cursor put(long id, Cursor cursor, int generation, String[] projection){
+        String[] columns = cursor.getColumnNames();
+        Object[] values = new Object[columns.length];
+        for(int i = 0; i < columns.length; i++){
+            switch(cursor.getType(i)){
+                case Cursor.FIELD_TYPE_INTEGER:
+                    values[i] = cursor.getLong(i);
+                    break;
+                case Cursor.FIELD_TYPE_FLOAT:
+                    values[i] = cursor.getDouble(i);
+                    break;
+                case Cursor.FIELD_TYPE_STRING:
+                    values[i] = cursor.getString(i);
+                    break;
+                case Cursor.FIELD_TYPE_BLOB:
+                    values[i] = cursor.getBlob(i);
+                    break;
+                default:
+                    values[i] = null;
+                    break;
+            }
+        }
+
+        Row row = new Row(columns, values);
+        synchronized(this){
+            if(generation == mGeneration){
+                mRows.put(id, row);
+            }
+        }
+        return query(row, projection);
+    }
+
+    private static Cursor query(Row row, String[] projection){
+        if(projection == null){
+            projection = row.mColumns;
+        }
+
+        Object[] values = new Object[projection.length];
+        for(int i = 0; i < projection.length; i++){
+            int index = row.indexOf(projection[i]);
+            if(index == -1){
+                return null;
+            }
+            values[i] = row.mValues[index];
+        }
+
+        MatrixCursor cursor = new MatrixCursor(projection, 1);
+        cursor.addRow(values);
+        return cursor;
+    }
+
+    /**
+     * Removes a single movie from the cache.
+     */
+    synchronized void remove(long id){
+        mGeneration++;
+        synchronized(mRows){
+            if(mRows.remove(id) != null){
+                mInvalidations++;
+            }
+        }
+    }
+
+    /**
+     * Removes every movie from the cache.
+     */
+    synchronized void removeAll(){
+        mGeneration++;
+        synchronized(mRows){
+            int size = mRows.size();
+            mRows.evictAll();
+            mInvalidations += size;
+            mEvictedInvalidations += size;
+        }
+    }
+
+    /**
+     * Returns the size and hit, miss, eviction and invalidation counters of the cache. Rows
+     * removed because they changed are only counted as invalidations.
+     */
+    Bundle getStats(){
+        Bundle stats = new Bundle();
+        synchronized(mRows){
+            stats.putInt(MovieContract.EXTRA_CACHE_SIZE, mRows.size());
+            stats.putInt(MovieContract.EXTRA_CACHE_MAX_SIZE, mRows.maxSize());
+            stats.putInt(MovieContract.EXTRA_CACHE_HITS, mRows.hitCount());
+            stats.putInt(MovieContract.EXTRA_CACHE_MISSES, mRows.missCount());
+            stats.putInt(MovieContract.EXTRA_CACHE_EVICTIONS, mRows.evictionCount() - mEvictedInvalidations);
+            stats.putInt(MovieContract.EXTRA_CACHE_INVALIDATIONS, mInvalidations);
+        }
+        return stats;
+    }
+
+    /**
+     * A single cached movie, along with the names of its columns.
+     */
+    private static final class Row {
+        private final String[] mColumns;
+        private final Object[] mValues;
+
+        private Row(String[] columns, Object[] values){
+            mColumns = columns;
+            mValues = values;
+        }
+
+        private int indexOf(String column){
+            for(int i = 0; i < mColumns.length; i++){
+                if(mColumns[i].equals(column)){
+                    return i;
+                }
+            }
+            return -1;
+        }
+    }
+}
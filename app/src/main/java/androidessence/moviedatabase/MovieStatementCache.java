@@ -0,0 +1,366 @@
+package androidessence.moviedatabase;
+
+import android.content.ContentValues;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteDoneException;
+import android.database.sqlite.SQLiteStatement;
+import android.provider.BaseColumns;
+import android.text.TextUtils;
+import android.util.LruCache;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Caches the compiled statements that MovieProvider runs over and over again, so the SQL for
+ * them is only built and compiled once per database. A cache belongs to a single open database
+ * and is thrown away by MovieDBHelper whenever that database is closed, reopened or upgraded.
+ *
+ * Compiled statements are not synchronized, so every statement is locked while it is bound and
+ * executed. The lock is only ever taken by a thread that already holds the database's write
+ * connection, inside a transaction that is started here if the caller isn't in one already.
+ * Otherwise a thread could hold the lock while it waits for the connection, and block the thread
+ * that holds the connection as soon as it needs the same statement.
+ */
+class MovieStatementCache {
+    // The most select by id queries kept. Each projection needs its own, and a few of them are
+    // used over and over again.
+    private static final int MAX_SELECTS = 32;
+
+    private final SQLiteDatabase mDatabase;
+    private final Map<String, Insert> mInserts = new HashMap<String, Insert>();
+    private final Map<String, Upsert> mUpserts = new HashMap<String, Upsert>();
+    private final Map<String, SQLiteStatement> mDeletes = new HashMap<String, SQLiteStatement>();
+    private final LruCache<String, String> mSelects = new LruCache<String, String>(MAX_SELECTS);
+    private boolean mClosed;
+
+    MovieStatementCache(SQLiteDatabase database){
+        mDatabase = database;
+    }
+
+    /**
+     * Returns the compiled INSERT for the given table and columns.
+     */
+    synchronized Insert getInsert(String table, Set<String> columns){
+        // Sort the columns so every row with the same columns shares one statement, no matter
+        // what order its ContentValues happens to iterate them in.
+        String[] sorted = sort(columns);
+        String key = buildKey(table, sorted);
+
+        Insert insert = mInserts.get(key);
+        if(insert == null){
+            StringBuilder sql = new StringBuilder("INSERT INTO ").append(table).append(" (");
+            StringBuilder params = new StringBuilder();
+            String separator = "";
+            for(String column : sorted){
+                sql.append(separator).append(column);
+                params.append(separator).append('?');
+                separator = ", ";
+            }
+            sql.append(") VALUES (").append(params).append(");");
+
+            insert = new Insert(mDatabase, compile(sql.toString()), sorted);
+            mInserts.put(key, insert);
+        }
+        return insert;
+    }
+
+    /**
+     * Returns the compiled statements that insert a row into the given table, or update the row
+     * that already has the same values in the key columns.
+     * @param keyColumns The columns that identify a row, which must all be in the columns.
+     */
+    synchronized Upsert getUpsert(String table, String[] keyColumns, Set<String> columns){
+        String[] sorted = sort(columns);
+        String key = buildKey(table, sorted);
+
+        Upsert upsert = mUpserts.get(key);
+        if(upsert == null){
+            StringBuilder find = new StringBuilder("SELECT ").append(BaseColumns._ID)
+                    .append(" FROM ").append(table).append(" WHERE ");
+            String separator = "";
+            for(String column : keyColumns){
+                find.append(separator).append(column).append(" = ?");
+                separator = " AND ";
+            }
+            find.append(" LIMIT 1;");
+
+            // The key and identifier of an existing row are never changed, so only the other
+            // columns are updated. If there are none, finding the row is all there is to do.
+            List<String> updateColumns = new ArrayList<String>();
+            StringBuilder update = new StringBuilder("UPDATE ").append(table).append(" SET ");
+            separator = "";
+            for(String column : sorted){
+                if(!BaseColumns._ID.equals(column) && !Arrays.asList(keyColumns).contains(column)){
+                    update.append(separator).append(column).append(" = ?");
+                    separator = ", ";
+                    updateColumns.add(column);
+                }
+            }
+            update.append(" WHERE ").append(BaseColumns._ID).append(" = ?;");
+
+            upsert = new Upsert(
+                    mDatabase,
+                    compile(find.toString()),
+                    keyColumns,
+                    updateColumns.isEmpty() ? null : compile(update.toString()),
+                    updateColumns.toArray(new String[updateColumns.size()]),
+                    getInsert(table, columns)
+            );
+            mUpserts.put(key, upsert);
+        }
+        return upsert;
+    }
+
+    /**
+     * Deletes a single row from the table by its identifier.
+     * @return The number of rows deleted.
+     */
+    int deleteById(String table, long id){
+        SQLiteStatement statement;
+        synchronized(this){
+            statement = mDeletes.get(table);
+            if(statement == null){
+                statement = compile("DELETE FROM " + table + " WHERE " + BaseColumns._ID + " = ?;");
+                mDeletes.put(table, statement);
+            }
+        }
+
+        boolean transaction = beginTransaction(mDatabase);
+        try{
+            int rows;
+            synchronized(statement){
+                statement.bindLong(1, id);
+                rows = statement.executeUpdateDelete();
+            }
+            endTransaction(mDatabase, transaction, true);
+            transaction = false;
+            return rows;
+        } finally{
+            endTransaction(mDatabase, transaction, false);
+        }
+    }
+
+    /**
+     * Starts a transaction unless the calling thread is in one already, so it holds the write
+     * connection before it locks a statement.
+     * @return Whether a transaction was started, which has to be ended with
+     * {@link #endTransaction}.
+     */
+    private static boolean beginTransaction(SQLiteDatabase db){
+        if(db.inTransaction()){
+            return false;
+        }
+        db.beginTransactionNonExclusive();
+        return true;
+    }
+
+    /**
+     * Ends a transaction started by {@link #beginTransaction}, if one was.
+     */
+    private static void endTransaction(SQLiteDatabase db, boolean transaction, boolean successful){
+        if(transaction){
+            if(successful){
+                db.setTransactionSuccessful();
+            }
+            db.endTransaction();
+        }
+    }
+
+    /**
+     * Returns the SQL that selects the projection of a single row by its identifier. Queries
+     * can't be run from a SQLiteStatement, but reusing the exact same SQL lets the connection
+     * find its own compiled copy instead of building and compiling a new one.
+     * @param projection The columns to select, which must already have been checked against the
+     *                   table's columns, or null for every column.
+     */
+    synchronized String getSelectByIdSql(String table, String[] projection){
+        String columns = projection != null ? TextUtils.join(", ", projection) : "*";
+        String key = table + ":" + columns;
+        String sql = mSelects.get(key);
+        if(sql == null){
+            sql = "SELECT " + columns + " FROM " + table + " WHERE " + BaseColumns._ID + " = ?";
+            mSelects.put(key, sql);
+        }
+        return sql;
+    }
+
+    /**
+     * Closes every compiled statement. The cache can't be used after this.
+     */
+    synchronized void close(){
+        mClosed = true;
+        for(Insert insert : mInserts.values()){
+            insert.mStatement.close();
+        }
+        for(Upsert upsert : mUpserts.values()){
+            upsert.mFind.close();
+            if(upsert.mUpdate != null){
+                upsert.mUpdate.close();
+            }
+        }
+        for(SQLiteStatement statement : mDeletes.values()){
+            statement.close();
+        }
+        mInserts.clear();
+        mUpserts.clear();
+        mDeletes.clear();
+        mSelects.evictAll();
+    }
+
+    private static String[] sort(Set<String> columns){
+        String[] sorted = columns.toArray(new String[columns.size()]);
+        Arrays.sort(sorted);
+        return sorted;
+    }
+
+    private static String buildKey(String table, String[] columns){
+        StringBuilder key = new StringBuilder(table);
+        for(String column : columns){
+            key.append(',').append(column);
+        }
+        return key.toString();
+    }
+
+    private SQLiteStatement compile(String sql){
+        if(mClosed){
+            throw new IllegalStateException("Statement cache has already been closed.");
+        }
+        return mDatabase.compileStatement(sql);
+    }
+
+    /**
+     * A compiled INSERT along with the order its columns are bound in.
+     */
+    static final class Insert {
+        private final SQLiteDatabase mDatabase;
+        private final SQLiteStatement mStatement;
+        private final String[] mColumns;
+
+        private Insert(SQLiteDatabase database, SQLiteStatement statement, String[] columns){
+            mDatabase = database;
+            mStatement = statement;
+            mColumns = columns;
+        }
+
+        /**
+         * Inserts a single row. The values must contain exactly the columns this statement was
+         * compiled for.
+         * @return The row ID of the new row, or -1 if it could not be inserted.
+         */
+        long execute(ContentValues values){
+            boolean transaction = beginTransaction(mDatabase);
+            try{
+                long id;
+                synchronized(mStatement){
+                    mStatement.clearBindings();
+                    for(int i = 0; i < mColumns.length; i++){
+                        DatabaseUtils.bindObjectToProgram(mStatement, i + 1, values.get(mColumns[i]));
+                    }
+                    id = mStatement.executeInsert();
+                }
+                endTransaction(mDatabase, transaction, true);
+                transaction = false;
+                return id;
+            } finally{
+                endTransaction(mDatabase, transaction, false);
+            }
+        }
+    }
+
+    /**
+     * The compiled statements that insert a row, or update the existing row with the same key.
+     * The platform's SQLite doesn't support INSERT ... ON CONFLICT DO UPDATE, so the existing row
+     * is looked up through its key index first. All of the statements run on the caller's
+     * connection without going back through the provider.
+     */
+    static final class Upsert {
+        // Positions of the inserted and updated counts in the array passed to execute().
+        static final int INSERTED = 0;
+        static final int UPDATED = 1;
+
+        private final SQLiteDatabase mDatabase;
+        private final SQLiteStatement mFind;
+        private final String[] mKeyColumns;
+        private final SQLiteStatement mUpdate;
+        private final String[] mUpdateColumns;
+        private final Insert mInsert;
+
+        private Upsert(SQLiteDatabase database, SQLiteStatement find, String[] keyColumns, SQLiteStatement update,
+                       String[] updateColumns, Insert insert){
+            mDatabase = database;
+            mFind = find;
+            mKeyColumns = keyColumns;
+            mUpdate = update;
+            mUpdateColumns = updateColumns;
+            mInsert = insert;
+        }
+
+        /**
+         * Inserts a single row, or updates the row that has the same key. The values must contain
+         * exactly the columns these statements were compiled for.
+         * @param counts Has the count at {@link #INSERTED} or {@link #UPDATED} incremented.
+         * @return The row ID of the inserted or updated row, or -1 if it could not be inserted.
+         */
+        long execute(ContentValues values, int[] counts){
+            // Finding the row and inserting it run in the same transaction, so no other writer
+            // can insert the same key in between.
+            boolean transaction = beginTransaction(mDatabase);
+            try{
+                long id;
+                synchronized(this){
+                    id = find(values);
+                    if(id < 0){
+                        id = mInsert.execute(values);
+                        if(id > 0){
+                            counts[INSERTED]++;
+                        }
+                    } else{
+                        update(values, id);
+                        counts[UPDATED]++;
+                    }
+                }
+                endTransaction(mDatabase, transaction, true);
+                transaction = false;
+                return id;
+            } finally{
+                endTransaction(mDatabase, transaction, false);
+            }
+        }
+
+        /**
+         * @return The identifier of the row with the same key, or -1 if there is none.
+         */
+        private long find(ContentValues values){
+            mFind.clearBindings();
+            for(int i = 0; i < mKeyColumns.length; i++){
+                Object key = values.get(mKeyColumns[i]);
+                if(key == null){
+                    throw new IllegalArgumentException("Upsert requires a value for " + mKeyColumns[i]);
+                }
+                DatabaseUtils.bindObjectToProgram(mFind, i + 1, key);
+            }
+            try{
+                return mFind.simpleQueryForLong();
+            } catch(SQLiteDoneException e){
+                return -1;
+            }
+        }
+
+        private void update(ContentValues values, long id){
+            if(mUpdate != null){
+                mUpdate.clearBindings();
+                for(int i = 0; i < mUpdateColumns.length; i++){
+                    DatabaseUtils.bindObjectToProgram(mUpdate, i + 1, values.get(mUpdateColumns[i]));
+                }
+                mUpdate.bindLong(mUpdateColumns.length + 1, id);
+                mUpdate.executeUpdateDelete();
+            }
+        }
+    }
+}
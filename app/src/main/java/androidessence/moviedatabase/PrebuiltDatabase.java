@@ -0,0 +1,172 @@
+package androidessence.moviedatabase;
+
+import android.content.res.AssetManager;
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.util.Properties;
+import java.util.zip.CRC32;
+
+/**
+ * A movie database built ahead of time and shipped in the assets, so a new install starts with
+ * the whole catalog by copying a single file instead of inserting every movie.
+ *
+ * The database is the asset {@link #ASSET_NAME}, described by the manifest
+ * {@link #MANIFEST_NAME}. The manifest is a properties file holding the database version the
+ * asset was built at, its length in bytes, and its CRC32 checksum as a hexadecimal number:
+ *
+ * <pre>
+ * version=10
+ * length=1048576
+ * crc32=1c291ca3
+ * </pre>
+ *
+ * Shipping the asset is optional. Without the manifest the database is created empty, as before.
+ */
+class PrebuiltDatabase {
+    private static final String LOG_TAG = PrebuiltDatabase.class.getSimpleName();
+
+    static final String ASSET_NAME = "movieList.db";
+    static final String MANIFEST_NAME = "movieList.db.properties";
+
+    private static final String KEY_VERSION = "version";
+    private static final String KEY_LENGTH = "length";
+    private static final String KEY_CRC32 = "crc32";
+
+    // How much of the asset is copied at a time.
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final int mVersion;
+    private final long mLength;
+    private final long mCrc32;
+
+    private PrebuiltDatabase(int version, long length, long crc32){
+        mVersion = version;
+        mLength = length;
+        mCrc32 = crc32;
+    }
+
+    /**
+     * Reads the manifest of the prebuilt database.
+     * @return The prebuilt database, or null if none is shipped or its manifest can't be read.
+     */
+    static PrebuiltDatabase open(AssetManager assets){
+        Properties manifest = new Properties();
+        InputStream input;
+        try{
+            input = assets.open(MANIFEST_NAME);
+        } catch(FileNotFoundException e){
+            return null;
+        } catch(IOException e){
+            Log.w(LOG_TAG, "Unable to open " + MANIFEST_NAME, e);
+            return null;
+        }
+
+        try{
+            manifest.load(input);
+            return new PrebuiltDatabase(
+                    Integer.parseInt(manifest.getProperty(KEY_VERSION)),
+                    Long.parseLong(manifest.getProperty(KEY_LENGTH)),
+                    Long.parseLong(manifest.getProperty(KEY_CRC32), 16)
+            );
+        } catch(IOException e){
+            Log.w(LOG_TAG, "Unable to read " + MANIFEST_NAME, e);
+            return null;
+        } catch(NumberFormatException e){
+            // Also thrown for a missing property, since parsing null fails the same way.
+            Log.w(LOG_TAG, "Invalid " + MANIFEST_NAME, e);
+            return null;
+        } finally{
+            try{
+                input.close();
+            } catch(IOException e){
+                // Everything needed has already been read.
+            }
+        }
+    }
+
+    /**
+     * Returns the database version the asset was built at.
+     */
+    int getVersion(){
+        return mVersion;
+    }
+
+    /**
+     * Copies the asset to the destination. The copy is written next to it first, and only
+     * renamed into place once its length and checksum match the manifest, so the destination is
+     * never left holding a partial or corrupt database.
+     * @return Whether the destination now holds the prebuilt database.
+     */
+    boolean copyTo(AssetManager assets, File destination){
+        File copy = new File(destination.getPath() + ".tmp");
+        try{
+            long start = System.nanoTime();
+            long crc32 = copy(assets, copy);
+            if(copy.length() != mLength || crc32 != mCrc32){
+                Log.w(LOG_TAG, ASSET_NAME + " doesn't match " + MANIFEST_NAME + ": " + copy.length()
+                        + " bytes with checksum " + Long.toHexString(crc32));
+                return false;
+            }
+            if(!copy.renameTo(destination)){
+                Log.w(LOG_TAG, "Unable to move " + copy + " to " + destination);
+                return false;
+            }
+
+            Log.d(LOG_TAG, "Copied " + mLength + " bytes of " + ASSET_NAME + " in "
+                    + (System.nanoTime() - start) / 1000000 + " ms");
+            return true;
+        } catch(IOException e){
+            Log.w(LOG_TAG, "Unable to copy " + ASSET_NAME, e);
+            return false;
+        } finally{
+            // Only left behind if the copy failed.
+            copy.delete();
+        }
+    }
+
+    /**
+     * Streams the asset into the file through a channel, and works out its checksum on the way,
+     * so it is read only once.
+     * @return The CRC32 checksum of everything copied.
+     */
+    private static long copy(AssetManager assets, File file) throws IOException {
+        File parent = file.getParentFile();
+        if(parent != null && !parent.isDirectory() && !parent.mkdirs()){
+            throw new IOException("Unable to create " + parent);
+        }
+
+        ReadableByteChannel source = Channels.newChannel(assets.open(ASSET_NAME, AssetManager.ACCESS_STREAMING));
+        try{
+            FileOutputStream output = new FileOutputStream(file);
+            try{
+                FileChannel destination = output.getChannel();
+                ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+                CRC32 crc32 = new CRC32();
+                while(source.read(buffer) != -1){
+                    buffer.flip();
+                    crc32.update(buffer.array(), buffer.arrayOffset(), buffer.limit());
+                    while(buffer.hasRemaining()){
+                        destination.write(buffer);
+                    }
+                    buffer.clear();
+                }
+                // The copy is about to replace the database, so it must be on disk first.
+                destination.force(true);
+                return crc32.getValue();
+            } finally{
+                output.close();
+            }
+        } finally{
+            source.close();
+        }
+    }
+}
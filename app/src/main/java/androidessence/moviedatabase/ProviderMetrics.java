@@ -0,0 +1,332 @@
+package androidessence.moviedatabase;
+
+import android.database.Cursor;
+import android.database.SQLException;
+import android.database.sqlite.SQLiteCursor;
+import android.database.sqlite.SQLiteCursorDriver;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteQuery;
+import android.database.sqlite.SQLiteTransactionListener;
+import android.os.Bundle;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.Map;
+
+/**
+ * Records how long MovieProvider's operations and transactions take, and how many rows they
+ * touch. Queries are only run by SQLite once their cursor first fills a window, which may be
+ * long after the provider has returned it, so the database is opened with
+ * {@link #getCursorFactory()} to time every window fill as well.
+ *
+ * Any query whose window fill, or any operation, that takes longer than the slow threshold is
+ * logged along with its SQL and query plan. Everything recorded is returned by
+ * {@link #getStats()}.
+ */
+class ProviderMetrics {
+    private static final String LOG_TAG = ProviderMetrics.class.getSimpleName();
+
+    // The names of the operations recorded for each URI.
+    static final String QUERY = "query";
+    static final String INSERT = "insert";
+    static final String BULK_INSERT = "bulkInsert";
+    static final String UPDATE = "update";
+    static final String DELETE = "delete";
+    static final String UPDATE_IDS = "updateIds";
+    static final String DELETE_IDS = "deleteIds";
+
+    // The names of the transactions that aren't tied to a single URI.
+    static final String APPLY_BATCH = "applyBatch";
+    static final String RESTORE = "restore";
+
+    /**
+     * The upper bound of each latency bucket in microseconds, doubling from a quarter of a
+     * millisecond to about a second. Anything slower is counted in one last bucket.
+     */
+    private static final long[] BUCKET_BOUNDS_MICROS = new long[]{
+            250, 500, 1000, 2000, 4000, 8000, 16000, 32000, 64000, 128000, 256000, 512000, 1024000
+    };
+
+    // The most slow queries kept, the oldest are dropped first.
+    private static final int MAX_SLOW_QUERIES = 20;
+
+    private final long mSlowThresholdNanos;
+    private final Map<String, Timer> mOperations = new HashMap<String, Timer>();
+    private final Map<String, Timer> mTransactions = new HashMap<String, Timer>();
+    private final Timer mWindowFills = new Timer();
+    private final LinkedList<String> mSlowQueries = new LinkedList<String>();
+
+    private final SQLiteDatabase.CursorFactory mCursorFactory = new SQLiteDatabase.CursorFactory() {
+        @Override
+        public Cursor newCursor(SQLiteDatabase db, SQLiteCursorDriver masterQuery, String editTable, SQLiteQuery query) {
+            return new TimedCursor(masterQuery, editTable, query);
+        }
+    };
+
+    /**
+     * @param slowThresholdMillis Operations and window fills that take longer than this are
+     *                            logged as slow.
+     */
+    ProviderMetrics(int slowThresholdMillis){
+        mSlowThresholdNanos = slowThresholdMillis * 1000000L;
+    }
+
+    /**
+     * Returns the factory the database must be opened with for window fills to be timed.
+     */
+    SQLiteDatabase.CursorFactory getCursorFactory(){
+        return mCursorFactory;
+    }
+
+    /**
+     * Records an operation that has finished.
+     * @param name The operation, followed by the path of the URI it ran on.
+     * @param startNanos The value of System.nanoTime() when the operation started.
+     * @param rows The number of rows the operation returned or changed.
+     */
+    void recordOperation(String name, long startNanos, int rows){
+        long nanos = System.nanoTime() - startNanos;
+        getTimer(mOperations, name).record(nanos, rows);
+        if(nanos > mSlowThresholdNanos){
+            addSlowQuery(name + " took " + toMillis(nanos) + "ms");
+        }
+    }
+
+    /**
+     * Records a query that has returned its cursor. The rows of a database cursor aren't known
+     * until its first window is filled, so they are recorded against the query then.
+     */
+    void recordQuery(String name, long startNanos, Cursor cursor){
+        if(cursor instanceof TimedCursor){
+            ((TimedCursor) cursor).mName = name;
+            recordOperation(name, startNanos, 0);
+        } else{
+            recordOperation(name, startNanos, cursor.getCount());
+        }
+    }
+
+    /**
+     * Returns a listener that records how long a transaction stays open, from when it begins
+     * until it is committed or rolled back.
+     */
+    SQLiteTransactionListener newTransactionListener(final String name){
+        return new SQLiteTransactionListener() {
+            private long mStartNanos;
+
+            @Override
+            public void onBegin() {
+                mStartNanos = System.nanoTime();
+            }
+
+            @Override
+            public void onCommit() {
+                getTimer(mTransactions, name).record(System.nanoTime() - mStartNanos, 0);
+            }
+
+            @Override
+            public void onRollback() {
+                Timer timer = getTimer(mTransactions, name);
+                timer.record(System.nanoTime() - mStartNanos, 0);
+                synchronized(timer){
+                    timer.mRollbacks++;
+                }
+            }
+        };
+    }
+
+    /**
+     * Returns everything recorded so far.
+     */
+    Bundle getStats(){
+        Bundle stats = new Bundle();
+        stats.putLongArray(MovieContract.EXTRA_LATENCY_BUCKETS_MICROS, BUCKET_BOUNDS_MICROS.clone());
+        stats.putBundle(MovieContract.EXTRA_OPERATIONS, toBundle(mOperations));
+        stats.putBundle(MovieContract.EXTRA_TRANSACTIONS, toBundle(mTransactions));
+        stats.putBundle(MovieContract.EXTRA_WINDOW_FILLS, mWindowFills.toBundle());
+        synchronized(mSlowQueries){
+            stats.putStringArrayList(MovieContract.EXTRA_SLOW_QUERIES, new ArrayList<String>(mSlowQueries));
+        }
+        return stats;
+    }
+
+    private static Timer getTimer(Map<String, Timer> timers, String name){
+        synchronized(timers){
+            Timer timer = timers.get(name);
+            if(timer == null){
+                timer = new Timer();
+                timers.put(name, timer);
+            }
+            return timer;
+        }
+    }
+
+    private static Bundle toBundle(Map<String, Timer> timers){
+        Bundle bundle = new Bundle();
+        synchronized(timers){
+            for(Map.Entry<String, Timer> entry : timers.entrySet()){
+                bundle.putBundle(entry.getKey(), entry.getValue().toBundle());
+            }
+        }
+        return bundle;
+    }
+
+    private void onWindowFilled(TimedCursor cursor, long nanos, int rows){
+        mWindowFills.record(nanos, rows);
+        if(cursor.mName != null){
+            Timer timer = getTimer(mOperations, cursor.mName);
+            synchronized(timer){
+                timer.mRows += rows;
+                timer.mWindowFills++;
+                timer.mWindowFillNanos += nanos;
+            }
+        }
+
+        if(nanos > mSlowThresholdNanos){
+            String sql = cursor.mSql;
+            addSlowQuery((cursor.mName != null ? cursor.mName : "query") + " window fill took " +
+                    toMillis(nanos) + "ms\n" + sql + "\n" + explain(cursor.getDatabase(), sql));
+        }
+    }
+
+    private void addSlowQuery(String entry){
+        Log.w(LOG_TAG, "Slow " + entry);
+        synchronized(mSlowQueries){
+            if(mSlowQueries.size() == MAX_SLOW_QUERIES){
+                mSlowQueries.removeFirst();
+            }
+            mSlowQueries.addLast(entry);
+        }
+    }
+
+    /**
+     * Returns the query plan of the SQL, one step per line. The arguments the query ran with
+     * aren't known, so every parameter is left unbound, which SQLite treats as null. The plan
+     * is chosen from the indexes rather than the values, so it is the same one.
+     */
+    private static String explain(SQLiteDatabase db, String sql){
+        StringBuilder plan = new StringBuilder();
+        try{
+            // Explained with a plain cursor, so explaining isn't timed itself.
+            Cursor cursor = db.rawQueryWithFactory(new SQLiteDatabase.CursorFactory() {
+                @Override
+                public Cursor newCursor(SQLiteDatabase db, SQLiteCursorDriver masterQuery, String editTable, SQLiteQuery query) {
+                    return new SQLiteCursor(masterQuery, editTable, query);
+                }
+            }, "EXPLAIN QUERY PLAN " + sql, null, null);
+            try{
+                int detail = cursor.getColumnIndexOrThrow("detail");
+                while(cursor.moveToNext()){
+                    plan.append(cursor.getString(detail)).append('\n');
+                }
+            } finally{
+                cursor.close();
+            }
+        } catch(SQLException e){
+            plan.append("Unable to explain query: ").append(e.getMessage());
+        } catch(IllegalStateException e){
+            // The database was closed since the query ran.
+            plan.append("Unable to explain query: ").append(e.getMessage());
+        }
+        return plan.toString();
+    }
+
+    private static long toMillis(long nanos){
+        return nanos / 1000000L;
+    }
+
+    /**
+     * The count, total and maximum latency, latency histogram and rows of a single kind of
+     * operation.
+     */
+    private static final class Timer {
+        private final long[] mBuckets = new long[BUCKET_BOUNDS_MICROS.length + 1];
+        private long mCount;
+        private long mTotalNanos;
+        private long mMaxNanos;
+        private long mRows;
+        private long mWindowFills;
+        private long mWindowFillNanos;
+        private long mRollbacks;
+
+        synchronized void record(long nanos, int rows){
+            long micros = nanos / 1000L;
+            int bucket = 0;
+            while(bucket < BUCKET_BOUNDS_MICROS.length && micros >= BUCKET_BOUNDS_MICROS[bucket]){
+                bucket++;
+            }
+            mBuckets[bucket]++;
+            mCount++;
+            mTotalNanos += nanos;
+            mMaxNanos = Math.max(mMaxNanos, nanos);
+            mRows += rows;
+        }
+
+        synchronized Bundle toBundle(){
+            Bundle bundle = new Bundle();
+            bundle.putLong(MovieContract.EXTRA_COUNT, mCount);
+            bundle.putLong(MovieContract.EXTRA_TOTAL_MICROS, mTotalNanos / 1000L);
+            bundle.putLong(MovieContract.EXTRA_MAX_MICROS, mMaxNanos / 1000L);
+            bundle.putLongArray(MovieContract.EXTRA_LATENCY_HISTOGRAM, mBuckets.clone());
+            bundle.putLong(MovieContract.EXTRA_ROWS, mRows);
+            bundle.putLong(MovieContract.EXTRA_WINDOW_FILL_COUNT, mWindowFills);
+            bundle.putLong(MovieContract.EXTRA_WINDOW_FILL_MICROS, mWindowFillNanos / 1000L);
+            bundle.putLong(MovieContract.EXTRA_ROLLBACKS, mRollbacks);
+            return bundle;
+        }
+    }
+
+    /**
+     * A database cursor that times every fill of its window. The first fill also counts every
+     * row of the query, and is where SQLite does most of the work of running it.
+     */
+    private final class TimedCursor extends SQLiteCursor {
+        private final String mSql;
+
+        // The operation this cursor was returned by, or null if it wasn't returned by one.
+        private volatile String mName;
+        private boolean mCounted;
+
+        TimedCursor(SQLiteCursorDriver driver, String editTable, SQLiteQuery query){
+            super(driver, editTable, query);
+            // SQLiteQuery doesn't expose its SQL, but its description ends with it.
+            String description = query.toString();
+            mSql = description.substring(description.indexOf(':') + 1).trim();
+        }
+
+        @Override
+        public int getCount() {
+            if(mCounted){
+                return super.getCount();
+            }
+
+            long start = System.nanoTime();
+            int count = super.getCount();
+            mCounted = true;
+            onWindowFilled(this, System.nanoTime() - start, count);
+            return count;
+        }
+
+        @Override
+        public boolean onMove(int oldPosition, int newPosition) {
+            if(mWindow != null && newPosition >= mWindow.getStartPosition()
+                    && newPosition < mWindow.getStartPosition() + mWindow.getNumRows()){
+                return super.onMove(oldPosition, newPosition);
+            }
+
+            // The window has to be filled with the rows around the new position first.
+            long start = System.nanoTime();
+            boolean moved = super.onMove(oldPosition, newPosition);
+            onWindowFilled(this, System.nanoTime() - start, 0);
+            return moved;
+        }
+
+        @Override
+        @SuppressWarnings("deprecation")
+        public boolean requery() {
+            mCounted = false;
+            return super.requery();
+        }
+    }
+}